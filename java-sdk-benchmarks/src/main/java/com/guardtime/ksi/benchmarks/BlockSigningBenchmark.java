@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.benchmarks;
+
+import com.guardtime.ksi.blocksigner.KsiBlockSigner;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.samples.ParallelBlockSigner;
+import com.guardtime.ksi.unisignature.KSISignature;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signing a block of hashes with {@link KsiBlockSigner}: building the local aggregation tree, the round
+ * trip to the stub service and creating a signature for each leaf. A block is signed once per
+ * invocation, so the time of an invocation is measured. A block of a million leaves takes minutes.
+ * <p>
+ * {@link #signBlockInParallel} measures the same with {@link ParallelBlockSigner}, which builds the tree
+ * in parallel and leaves creating the per-leaf signatures to the caller.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class BlockSigningBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    private int leaves;
+
+    private DataHash[] hashes;
+
+    @Setup
+    public void setUp() {
+        hashes = new DataHash[leaves];
+        for (int i = 0; i < leaves; i++) {
+            hashes[i] = new DataHasher(HashAlgorithm.SHA2_256).addData(ByteBuffer.allocate(4).putInt(i).array()).getHash();
+        }
+    }
+
+    @Benchmark
+    public List<KSISignature> signBlock(StubKsiState state) throws KSIException {
+        KsiBlockSigner blockSigner = new KsiBlockSigner(state.service);
+        for (DataHash hash : hashes) {
+            blockSigner.add(hash);
+        }
+        return blockSigner.sign();
+    }
+
+    @Benchmark
+    public ParallelBlockSigner.SignedBlock signBlockInParallel(StubKsiState state) throws KSIException {
+        ParallelBlockSigner blockSigner = new ParallelBlockSigner(state.service);
+        for (DataHash hash : hashes) {
+            blockSigner.add(hash);
+        }
+        return blockSigner.sign();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.benchmarks;
+
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing of in-memory data with {@link DataHasher}, by hash algorithm and data size. The SDK does not
+ * implement the SHA-3 and SM3 algorithms and does not allow hashing new data with SHA-1.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashingBenchmark {
+
+    @Param({"SHA-256", "SHA-384", "SHA-512", "RIPEMD-160"})
+    private String algorithm;
+
+    @Param({"32", "1024", "65536", "1048576"})
+    private int size;
+
+    private HashAlgorithm hashAlgorithm;
+    private byte[] data;
+
+    @Setup
+    public void setUp() {
+        hashAlgorithm = HashAlgorithm.getByName(algorithm);
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+    }
+
+    @Benchmark
+    public DataHash hash() {
+        return new DataHasher(hashAlgorithm).addData(data).getHash();
+    }
+}
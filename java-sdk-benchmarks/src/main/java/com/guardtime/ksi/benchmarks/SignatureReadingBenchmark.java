@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.benchmarks;
+
+import com.guardtime.ksi.Reader;
+import com.guardtime.ksi.SignatureReader;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.unisignature.KSISignature;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing an encoded signature with {@link SignatureReader}, which includes the internal verification
+ * of the signature, with and without the publication record of an extended signature.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureReadingBenchmark {
+
+    @Param({"false", "true"})
+    private boolean extended;
+
+    private final Reader reader = new SignatureReader();
+    private byte[] signature;
+
+    @Setup
+    public void setUp(StubKsiState state) throws KSIException, IOException {
+        KSISignature signed = extended ? state.ksi.extend(state.signature) : state.signature;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        signed.writeTo(output);
+        signature = output.toByteArray();
+    }
+
+    @Benchmark
+    public KSISignature read() throws KSIException {
+        return reader.read(signature);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.benchmarks;
+
+import com.guardtime.ksi.KSI;
+import com.guardtime.ksi.KSIBuilder;
+import com.guardtime.ksi.blocksigner.KsiBlockSigner;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.publication.PublicationData;
+import com.guardtime.ksi.samples.StubKsiService;
+import com.guardtime.ksi.service.client.KSIServiceCredentials;
+import com.guardtime.ksi.unisignature.KSISignature;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * KSI set up with {@link StubKsiService} in place of the KSI service, so the benchmarks measure the
+ * SDK and not the network. The publications file is cached, like it should be in applications, so
+ * there is a signature and its publication in the file before KSI is set up.
+ */
+@State(Scope.Benchmark)
+public class StubKsiState {
+
+    StubKsiService service;
+    KSI ksi;
+    KSISignature signature;
+    PublicationData publication;
+
+    @Setup
+    public void setUp() throws KSIException {
+        service = new StubKsiService(new KSIServiceCredentials("anon", "anon"));
+        KsiBlockSigner blockSigner = new KsiBlockSigner(service);
+        blockSigner.add(new DataHasher(HashAlgorithm.SHA2_256).addData(new byte[32]).getHash());
+        signature = blockSigner.sign().get(0);
+        publication = service.publish();
+        ksi = new KSIBuilder()
+                .setKsiProtocolSignerClient(service)
+                .setKsiProtocolExtenderClient(service)
+                .setKsiProtocolPublicationsFileClient(service)
+                .setPublicationsFilePkiTrustStore(service.getTrustStore())
+                .setPublicationsFileTrustedCertSelector(service.getCertificateSelector())
+                .setPublicationsFileCacheExpirationTime(Long.MAX_VALUE)
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        ksi.close();
+    }
+}
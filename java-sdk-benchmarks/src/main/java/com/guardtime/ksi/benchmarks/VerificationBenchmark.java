@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.benchmarks;
+
+import com.guardtime.ksi.SignatureVerifier;
+import com.guardtime.ksi.Verifier;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.unisignature.KSISignature;
+import com.guardtime.ksi.unisignature.verifier.VerificationResult;
+import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicy;
+import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicyAdapter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verification of a signature with {@link Verifier#verify(KSISignature, ContextAwarePolicy)} by each
+ * policy of {@link ContextAwarePolicyAdapter}. The publication based policies get an extended
+ * signature; the calendar policy extends the signature from the stub service on each verification. A
+ * verification that fails is an error, so that a broken setup is not measured as a fast one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VerificationBenchmark {
+
+    @Param({"internal", "key", "calendar", "publicationsFile", "userPublication"})
+    private String policyName;
+
+    private final Verifier verifier = new SignatureVerifier();
+    private ContextAwarePolicy policy;
+    private KSISignature signature;
+
+    @Setup
+    public void setUp(StubKsiState state) throws KSIException {
+        signature = state.signature;
+        if ("internal".equals(policyName)) {
+            policy = ContextAwarePolicyAdapter.createInternalPolicy();
+        } else if ("key".equals(policyName)) {
+            policy = ContextAwarePolicyAdapter.createKeyPolicy(state.ksi);
+        } else if ("calendar".equals(policyName)) {
+            policy = ContextAwarePolicyAdapter.createCalendarPolicy(state.ksi);
+        } else if ("publicationsFile".equals(policyName)) {
+            policy = ContextAwarePolicyAdapter.createPublicationsFilePolicy(state.ksi);
+            signature = state.ksi.extend(state.signature);
+        } else if ("userPublication".equals(policyName)) {
+            policy = ContextAwarePolicyAdapter.createUserProvidedPublicationPolicy(state.publication);
+            signature = state.ksi.extend(state.signature);
+        } else {
+            throw new IllegalArgumentException("Unknown policy " + policyName);
+        }
+        verify();
+    }
+
+    @Benchmark
+    public VerificationResult verify() throws KSIException {
+        VerificationResult result = verifier.verify(signature, policy);
+        if (!result.isOk()) {
+            throw new IllegalStateException("Verification with the " + policyName + " policy failed: " + result.getErrorCode());
+        }
+        return result;
+    }
+}
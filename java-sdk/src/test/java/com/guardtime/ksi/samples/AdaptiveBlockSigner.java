@@ -0,0 +1,570 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.blocksigner.IdentityMetadata;
+import com.guardtime.ksi.blocksigner.KsiBlockSigner;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.service.client.KSISigningClient;
+import com.guardtime.ksi.service.client.http.HttpProtocolException;
+import com.guardtime.ksi.unisignature.KSISignature;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signing pipeline like {@link MicroBatchingSigner} that adapts to the capacity of the KSI Gateway. Up to
+ * a limited number of blocks are signed at the same time, and the limit, the block size and the flush
+ * interval follow the responses:
+ * <ul>
+ * <li>A block whose aggregation request returns in the target round-trip time raises the limit of the outstanding blocks, by one
+ * per block at first and by one per round of blocks after the first congestion, and shortens the flush
+ * interval towards the minimum.</li>
+ * <li>A block that takes longer than the target halves the limit and lengthens the flush interval.</li>
+ * <li>A failed or throttled block halves the limit, doubles the flush interval and the block size, so the
+ * same items are sent in fewer requests. Throttled blocks (HTTP status 429 or 503) are sent again with
+ * an exponential backoff, up to the given number of times; other failures fail the items of the block.</li>
+ * <li>A block that is full while items are waiting doubles the block size; a block cut by the flush
+ * interval at less than a quarter of the block size halves it.</li>
+ * </ul>
+ * While all the allowed blocks are outstanding, the items wait in a queue of limited capacity. When the
+ * queue is full, {@link #submit(DataHash)} blocks, drops the oldest waiting item or fails, see
+ * {@link OverflowPolicy}.
+ * <p>
+ * The signing client is not owned by this class and is not closed by {@link #close()}.
+ */
+public class AdaptiveBlockSigner implements Closeable {
+
+    public enum OverflowPolicy {
+        /**
+         * The submitting thread waits until there is room in the queue.
+         */
+        BLOCK,
+        /**
+         * The oldest waiting item is failed with {@link RejectedExecutionException} to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * The submitted item is rejected with {@link RejectedExecutionException}.
+         */
+        FAIL
+    }
+
+    private final KSISigningClient signingClient;
+    private final int minBlockSize;
+    private final int maxBlockSize;
+    private final long minFlushIntervalNanos;
+    private final long maxFlushIntervalNanos;
+    private final int maxOutstandingBlocks;
+    private final long targetRoundTripNanos;
+    private final int maxRetries;
+    private final long retryDelayNanos;
+    private final OverflowPolicy overflowPolicy;
+    private final KsiMetrics metrics;
+    private final RoundTripRecorder roundTrips;
+    private final BlockingDeque<PendingItem> queue;
+    private final Thread dispatcher;
+    private final ExecutorService executor;
+    private final AtomicLong droppedItems = new AtomicLong();
+    private final AtomicLong throttledBlocks = new AtomicLong();
+    private volatile boolean closed;
+
+    // Controller state, guarded by this
+    private double outstandingLimit = 1;
+    private boolean congested;
+    private int outstandingBlocks;
+    private int blockSize;
+    private long flushIntervalNanos;
+
+    private AdaptiveBlockSigner(Builder builder) {
+        this.roundTrips = new RoundTripRecorder(builder.metrics);
+        this.signingClient = Metered.signingClient(builder.signingClient, roundTrips);
+        this.minBlockSize = builder.minBlockSize;
+        this.maxBlockSize = builder.maxBlockSize;
+        this.minFlushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(builder.minFlushIntervalMillis);
+        this.maxFlushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(builder.maxFlushIntervalMillis);
+        this.maxOutstandingBlocks = builder.maxOutstandingBlocks;
+        this.targetRoundTripNanos = TimeUnit.MILLISECONDS.toNanos(builder.targetRoundTripMillis);
+        this.maxRetries = builder.maxRetries;
+        this.retryDelayNanos = TimeUnit.MILLISECONDS.toNanos(builder.retryDelayMillis);
+        this.overflowPolicy = builder.overflowPolicy;
+        this.metrics = builder.metrics;
+        this.queue = new LinkedBlockingDeque<>(builder.queueCapacity);
+        this.blockSize = minBlockSize;
+        this.flushIntervalNanos = minFlushIntervalNanos;
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ksi-adaptive-block-signer-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        this.executor = Executors.newFixedThreadPool(maxOutstandingBlocks, threadFactory);
+        this.dispatcher = threadFactory.newThread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        });
+        this.dispatcher.start();
+    }
+
+    /**
+     * Submits a hash to be signed in one of the next blocks.
+     *
+     * @return future that is completed with the signature once the block containing the hash is signed.
+     * @throws RejectedExecutionException if the queue is full and the overflow policy is
+     *                                    {@link OverflowPolicy#FAIL}.
+     */
+    public CompletableFuture<KSISignature> submit(DataHash hash) throws InterruptedException {
+        return submit(hash, null);
+    }
+
+    /**
+     * Submits a hash together with the identity metadata to be embedded into the signature.
+     */
+    public CompletableFuture<KSISignature> submit(DataHash hash, IdentityMetadata metadata) throws InterruptedException {
+        if (hash == null) {
+            throw new IllegalArgumentException("Hash must be present");
+        }
+        if (closed) {
+            throw new IllegalStateException("Signer is closed");
+        }
+        PendingItem item = new PendingItem(hash, metadata);
+        switch (overflowPolicy) {
+            case BLOCK:
+                while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                    if (closed) {
+                        throw new IllegalStateException("Signer is closed");
+                    }
+                }
+                break;
+            case DROP_OLDEST:
+                while (!queue.offerLast(item)) {
+                    PendingItem oldest = queue.pollFirst();
+                    if (oldest != null) {
+                        droppedItems.incrementAndGet();
+                        oldest.future.completeExceptionally(new RejectedExecutionException("Item was dropped, the queue is full"));
+                    }
+                }
+                break;
+            default:
+                if (!queue.offer(item)) {
+                    throw new RejectedExecutionException("Queue is full");
+                }
+        }
+        // Items that raced with closing are never signed
+        if (closed && queue.remove(item)) {
+            item.future.completeExceptionally(new IllegalStateException("Signer is closed"));
+        }
+        return item.future;
+    }
+
+    public synchronized int getBlockSize() {
+        return blockSize;
+    }
+
+    public synchronized long getFlushIntervalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos);
+    }
+
+    /**
+     * Current limit of the blocks being signed at the same time.
+     */
+    public synchronized int getOutstandingLimit() {
+        return (int) outstandingLimit;
+    }
+
+    /**
+     * Number of items waiting for a block.
+     */
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * Number of items dropped by the {@link OverflowPolicy#DROP_OLDEST} policy.
+     */
+    public long getDroppedCount() {
+        return droppedItems.get();
+    }
+
+    /**
+     * Number of blocks the KSI Gateway refused because of throttling, including the retries.
+     */
+    public long getThrottledCount() {
+        return throttledBlocks.get();
+    }
+
+    /**
+     * Stops accepting new items, signs the items already submitted and waits for the blocks to be signed.
+     */
+    public void close() {
+        closed = true;
+        try {
+            dispatcher.join();
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        PendingItem item;
+        while ((item = queue.poll()) != null) {
+            item.future.completeExceptionally(new IllegalStateException("Signer is closed"));
+        }
+    }
+
+    private void dispatch() {
+        while (!closed || !queue.isEmpty()) {
+            List<PendingItem> block = new ArrayList<>();
+            try {
+                // The items keep queuing while all the allowed blocks are outstanding
+                awaitOutstandingSlot();
+                int size;
+                long flushInterval;
+                synchronized (this) {
+                    size = blockSize;
+                    flushInterval = flushIntervalNanos;
+                }
+                PendingItem first = queue.poll(Math.max(flushInterval, TimeUnit.MILLISECONDS.toNanos(1)), TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    releaseOutstandingSlot();
+                    continue;
+                }
+                block.add(first);
+                long deadline = System.nanoTime() + flushInterval;
+                while (block.size() < size) {
+                    if (queue.drainTo(block, size - block.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    PendingItem next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    block.add(next);
+                }
+                onBlockCut(block.size(), size, !queue.isEmpty());
+                executor.execute(() -> signBlock(block));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failAll(block, e);
+                return;
+            } catch (RuntimeException e) {
+                releaseOutstandingSlot();
+                failAll(block, e);
+            }
+        }
+    }
+
+    private void signBlock(List<PendingItem> block) {
+        try {
+            for (int attempt = 0; ; attempt++) {
+                roundTrips.reset();
+                try {
+                    signItems(block);
+                    onBlockSigned(roundTrips.getMax());
+                    return;
+                } catch (KSIException | RuntimeException e) {
+                    boolean throttled = isThrottled(e);
+                    if (throttled) {
+                        throttledBlocks.incrementAndGet();
+                    }
+                    onBlockFailed();
+                    if (!throttled || attempt >= maxRetries || closed) {
+                        failAll(block, e);
+                        return;
+                    }
+                    // Exponential backoff with jitter, so that the throttled blocks do not come back together
+                    long delay = retryDelayNanos << Math.min(attempt, 20);
+                    TimeUnit.NANOSECONDS.sleep(delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failAll(block, e);
+        } finally {
+            releaseOutstandingSlot();
+        }
+    }
+
+    private void signItems(List<PendingItem> block) throws KSIException {
+        CorrelatingBlockSigner<PendingItem> blockSigner = new CorrelatingBlockSigner<>(new KsiBlockSigner(signingClient));
+        int added = 0;
+        while (added < block.size()) {
+            PendingItem item = block.get(added);
+            if (!blockSigner.add(item.hash, item.metadata, item)) {
+                break;
+            }
+            added++;
+        }
+        if (added == 0) {
+            throw new KSIException("Item does not fit into an empty block");
+        }
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            for (Map.Entry<PendingItem, KSISignature> entry : blockSigner.sign().entrySet()) {
+                entry.getKey().future.complete(entry.getValue());
+            }
+            succeeded = true;
+        } finally {
+            metrics.recordBlockSize(added);
+            metrics.recordLatency(KsiMetrics.Operation.BLOCK_SIGN, System.nanoTime() - start, succeeded);
+        }
+
+        // The tree reached its maximum height, the rest goes to another request
+        if (added < block.size()) {
+            signItems(new ArrayList<>(block.subList(added, block.size())));
+        }
+    }
+
+    private synchronized void awaitOutstandingSlot() throws InterruptedException {
+        while (outstandingBlocks >= (int) outstandingLimit) {
+            wait();
+        }
+        outstandingBlocks++;
+    }
+
+    private synchronized void releaseOutstandingSlot() {
+        outstandingBlocks--;
+        notifyAll();
+    }
+
+    private synchronized void onBlockCut(int size, int maxSize, boolean backlog) {
+        if (size >= maxSize && backlog) {
+            blockSize = Math.min(maxBlockSize, blockSize * 2);
+        } else if (size < maxSize / 4) {
+            blockSize = Math.max(minBlockSize, blockSize / 2);
+        }
+    }
+
+    private synchronized void onBlockSigned(long roundTripNanos) {
+        if (roundTripNanos > targetRoundTripNanos) {
+            decreaseLimit();
+            flushIntervalNanos = Math.min(maxFlushIntervalNanos, Math.max(flushIntervalNanos * 3 / 2, minFlushIntervalNanos + 1));
+        } else {
+            // Slow start until the first congestion, then one more block per round of blocks
+            outstandingLimit = Math.min(maxOutstandingBlocks, outstandingLimit + (congested ? 1 / outstandingLimit : 1));
+            flushIntervalNanos = Math.max(minFlushIntervalNanos, flushIntervalNanos * 9 / 10);
+        }
+        notifyAll();
+    }
+
+    private synchronized void onBlockFailed() {
+        decreaseLimit();
+        flushIntervalNanos = Math.min(maxFlushIntervalNanos, Math.max(flushIntervalNanos * 2, TimeUnit.MILLISECONDS.toNanos(1)));
+        blockSize = Math.min(maxBlockSize, blockSize * 2);
+    }
+
+    private void decreaseLimit() {
+        congested = true;
+        outstandingLimit = Math.max(1, outstandingLimit / 2);
+    }
+
+    private static boolean isThrottled(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpProtocolException) {
+                int status = ((HttpProtocolException) cause).getErrorCode();
+                return status == 429 || status == 503;
+            }
+        }
+        return false;
+    }
+
+    private static void failAll(List<PendingItem> items, Throwable cause) {
+        for (PendingItem item : items) {
+            // No-op for the futures that are already completed
+            item.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Passes the measurements on and keeps the longest aggregation request of the block signed in the
+     * current thread, as building the signatures of a large block takes longer than the request itself.
+     */
+    private static final class RoundTripRecorder implements KsiMetrics {
+        private final KsiMetrics metrics;
+        private final ThreadLocal<long[]> maxRoundTrip = ThreadLocal.withInitial(() -> new long[1]);
+
+        private RoundTripRecorder(KsiMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        private void reset() {
+            maxRoundTrip.get()[0] = 0;
+        }
+
+        private long getMax() {
+            return maxRoundTrip.get()[0];
+        }
+
+        public void recordLatency(Operation operation, long nanos, boolean succeeded) {
+            if (operation == Operation.AGGREGATION_REQUEST) {
+                long[] max = maxRoundTrip.get();
+                max[0] = Math.max(max[0], nanos);
+            }
+            metrics.recordLatency(operation, nanos, succeeded);
+        }
+
+        public void recordBlockSize(int size) {
+            metrics.recordBlockSize(size);
+        }
+
+        public void recordBytes(Operation operation, long sent, long received) {
+            metrics.recordBytes(operation, sent, received);
+        }
+
+        public void recordFailure(Operation operation, String errorCode) {
+            metrics.recordFailure(operation, errorCode);
+        }
+
+        public void registerCache(String name, CacheStatistics cache) {
+            metrics.registerCache(name, cache);
+        }
+    }
+
+    private static final class PendingItem {
+        private final DataHash hash;
+        private final IdentityMetadata metadata;
+        private final CompletableFuture<KSISignature> future = new CompletableFuture<>();
+
+        private PendingItem(DataHash hash, IdentityMetadata metadata) {
+            this.hash = hash;
+            this.metadata = metadata;
+        }
+    }
+
+    public static final class Builder {
+
+        private final KSISigningClient signingClient;
+        private int minBlockSize = 1;
+        private int maxBlockSize = 10000;
+        private long minFlushIntervalMillis = 10;
+        private long maxFlushIntervalMillis = 1000;
+        private int maxOutstandingBlocks = 8;
+        private long targetRoundTripMillis = 1000;
+        private int maxRetries = 5;
+        private long retryDelayMillis = 100;
+        private int queueCapacity = 100000;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        private KsiMetrics metrics = KsiMetrics.NONE;
+
+        /**
+         * @param signingClient client used for signing the root hashes of the blocks, e.g. the one created in
+         *                      {@link KsiSamples#setUpKsi()}.
+         */
+        public Builder(KSISigningClient signingClient) {
+            if (signingClient == null) {
+                throw new IllegalArgumentException("Signing client must be present");
+            }
+            this.signingClient = signingClient;
+        }
+
+        /**
+         * Range of the number of items in a block, 1 to 10000 by default.
+         */
+        public Builder setBlockSize(int minBlockSize, int maxBlockSize) {
+            this.minBlockSize = minBlockSize;
+            this.maxBlockSize = maxBlockSize;
+            return this;
+        }
+
+        /**
+         * Range of the time an item waits for the block to fill up, 10 ms to 1 s by default.
+         */
+        public Builder setFlushInterval(long minFlushIntervalMillis, long maxFlushIntervalMillis) {
+            this.minFlushIntervalMillis = minFlushIntervalMillis;
+            this.maxFlushIntervalMillis = maxFlushIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Maximum number of blocks being signed at the same time, 8 by default.
+         */
+        public Builder setMaxOutstandingBlocks(int maxOutstandingBlocks) {
+            this.maxOutstandingBlocks = maxOutstandingBlocks;
+            return this;
+        }
+
+        /**
+         * Round-trip time of a block above which the KSI Gateway is considered overloaded, 1 s by default.
+         */
+        public Builder setTargetRoundTrip(long targetRoundTripMillis) {
+            this.targetRoundTripMillis = targetRoundTripMillis;
+            return this;
+        }
+
+        /**
+         * Number of times a throttled block is sent again and the delay before the first retry, doubled for
+         * each next one, 5 and 100 ms by default.
+         */
+        public Builder setRetries(int maxRetries, long retryDelayMillis) {
+            this.maxRetries = maxRetries;
+            this.retryDelayMillis = retryDelayMillis;
+            return this;
+        }
+
+        /**
+         * Maximum number of items waiting for a block and what to do when there are more, 100000 and
+         * {@link OverflowPolicy#BLOCK} by default.
+         */
+        public Builder setQueue(int queueCapacity, OverflowPolicy overflowPolicy) {
+            this.queueCapacity = queueCapacity;
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * Receiver of the block sizes, the signing times of the blocks and the measurements of the
+         * aggregation requests.
+         */
+        public Builder setMetrics(KsiMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public AdaptiveBlockSigner build() {
+            if (minBlockSize < 1 || maxBlockSize < minBlockSize) {
+                throw new IllegalStateException("Invalid block size range");
+            }
+            if (minFlushIntervalMillis < 0 || maxFlushIntervalMillis < minFlushIntervalMillis) {
+                throw new IllegalStateException("Invalid flush interval range");
+            }
+            if (maxOutstandingBlocks < 1 || targetRoundTripMillis < 1 || maxRetries < 0 || retryDelayMillis < 0 || queueCapacity < 1) {
+                throw new IllegalStateException("Invalid adaptive block signer settings");
+            }
+            if (overflowPolicy == null || metrics == null) {
+                throw new IllegalStateException("Overflow policy and metrics must be present");
+            }
+            return new AdaptiveBlockSigner(this);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.Extender;
+import com.guardtime.ksi.Signer;
+import com.guardtime.ksi.Verifier;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.publication.PublicationRecord;
+import com.guardtime.ksi.service.Future;
+import com.guardtime.ksi.unisignature.KSISignature;
+import com.guardtime.ksi.unisignature.verifier.VerificationResult;
+import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicy;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking facade for {@link Signer}, {@link Extender} and {@link Verifier} returning
+ * {@link CompletableFuture}s. At most {@code maxInFlight} operations are started at a time, the rest
+ * wait in a queue without occupying a thread.
+ * <p>
+ * The operations are started on the given executor through the {@code async*} methods of the SDK.
+ * If the client behind the signer or extender returns a future that is not finished yet, the future
+ * is watched by a single polling thread, so the number of threads does not grow with the number of
+ * operations in flight, {@link PooledHttpClient} works this way. The thread polls only while there
+ * are such futures. The simple HTTP clients complete the round-trip before returning, with them the
+ * executor needs as many threads as operations are wanted in flight.
+ */
+public class AsyncKsi implements Closeable {
+
+    private static final long POLL_INTERVAL_MICROS = 500;
+
+    private final Signer signer;
+    private final Extender extender;
+    private final Verifier verifier;
+    private final int maxInFlight;
+    private final Executor executor;
+    private final ScheduledExecutorService poller;
+    private final Queue<Operation<?>> waiting = new ConcurrentLinkedQueue<>();
+    private final Set<Operation<?>> polled = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicBoolean pollScheduled = new AtomicBoolean();
+    private volatile boolean closed;
+
+    /**
+     * @param signer      signer used for signing, may be null if not needed.
+     * @param extender    extender used for extending, may be null if not needed.
+     * @param verifier    verifier used for verification, may be null if not needed.
+     * @param maxInFlight maximum number of operations started but not finished.
+     * @param executor    executor the operations are started and completed on.
+     */
+    public AsyncKsi(Signer signer, Extender extender, Verifier verifier, int maxInFlight, Executor executor) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Maximum number of operations in flight must be positive");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor must be present");
+        }
+        this.signer = signer;
+        this.extender = extender;
+        this.verifier = verifier;
+        this.maxInFlight = maxInFlight;
+        this.executor = executor;
+        this.poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ksi-async-poller");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public CompletableFuture<KSISignature> sign(final DataHash hash) {
+        checkPresent(signer, "Signer");
+        return submit(new Call<KSISignature>() {
+            public Future<KSISignature> start() throws KSIException {
+                return signer.asyncSign(hash);
+            }
+        });
+    }
+
+    public CompletableFuture<KSISignature> extend(final KSISignature signature) {
+        checkPresent(extender, "Extender");
+        return submit(new Call<KSISignature>() {
+            public Future<KSISignature> start() throws KSIException {
+                return extender.asyncExtend(signature);
+            }
+        });
+    }
+
+    public CompletableFuture<KSISignature> extend(final KSISignature signature, final PublicationRecord publicationRecord) {
+        checkPresent(extender, "Extender");
+        return submit(new Call<KSISignature>() {
+            public Future<KSISignature> start() throws KSIException {
+                return extender.asyncExtend(signature, publicationRecord);
+            }
+        });
+    }
+
+    /**
+     * Verifies the signature on the executor. The verification counts against the operations in
+     * flight as it may need to contact the extender, depending on the policy.
+     */
+    public CompletableFuture<VerificationResult> verify(final KSISignature signature, final DataHash documentHash,
+                                                        final ContextAwarePolicy policy) {
+        checkPresent(verifier, "Verifier");
+        return submit(new Call<VerificationResult>() {
+            public Future<VerificationResult> start() throws KSIException {
+                return new FinishedFuture<>(verifier.verify(signature, documentHash, policy));
+            }
+        });
+    }
+
+    /**
+     * Number of operations started but not finished yet.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Stops the polling thread and completes the operations not finished yet exceptionally. The executor
+     * and the signer, extender and verifier are not closed.
+     */
+    public void close() {
+        closed = true;
+        poller.shutdownNow();
+        Operation<?> operation;
+        while ((operation = waiting.poll()) != null) {
+            operation.result.completeExceptionally(new IllegalStateException("AsyncKsi is closed"));
+        }
+        for (Operation<?> polledOperation : polled) {
+            abandon(polledOperation);
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Call<T> call) {
+        if (closed) {
+            throw new IllegalStateException("AsyncKsi is closed");
+        }
+        Operation<T> operation = new Operation<>(call);
+        waiting.add(operation);
+        startWaiting();
+        return operation.result;
+    }
+
+    private void startWaiting() {
+        while (!waiting.isEmpty()) {
+            int current = inFlight.get();
+            if (current >= maxInFlight) {
+                return;
+            }
+            if (!inFlight.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            Operation<?> operation = waiting.poll();
+            if (operation == null) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+            if (!start(operation)) {
+                // Failed without starting, the loop goes on with the next one
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private boolean start(final Operation<?> operation) {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        operation.start();
+                    } catch (KSIException | RuntimeException e) {
+                        operation.result.completeExceptionally(e);
+                        finished();
+                        return;
+                    }
+                    if (operation.future.isFinished()) {
+                        complete(operation);
+                    } else {
+                        polled.add(operation);
+                        schedulePoll();
+                        if (closed) {
+                            abandon(operation);
+                        }
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            operation.result.completeExceptionally(e);
+            return false;
+        }
+    }
+
+    /**
+     * Schedules the next poll unless one is already scheduled. The polling stops when there is nothing
+     * left to poll and starts again with the next unfinished operation.
+     */
+    private void schedulePoll() {
+        if (!pollScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            poller.schedule(new Runnable() {
+                public void run() {
+                    poll();
+                    pollScheduled.set(false);
+                    if (!polled.isEmpty()) {
+                        schedulePoll();
+                    }
+                }
+            }, POLL_INTERVAL_MICROS, TimeUnit.MICROSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed, the operations left to be polled are failed by close()
+            pollScheduled.set(false);
+        }
+    }
+
+    private void poll() {
+        Iterator<Operation<?>> iterator = polled.iterator();
+        while (iterator.hasNext()) {
+            final Operation<?> operation = iterator.next();
+            if (operation.future.isFinished()) {
+                iterator.remove();
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            complete(operation);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    operation.result.completeExceptionally(e);
+                    finished();
+                }
+            }
+        }
+    }
+
+    /**
+     * Fails an operation left to be polled after closing, unless the polling thread already took it.
+     */
+    private void abandon(Operation<?> operation) {
+        if (polled.remove(operation)) {
+            operation.result.completeExceptionally(new IllegalStateException("AsyncKsi is closed"));
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void complete(Operation<?> operation) {
+        try {
+            operation.complete();
+        } catch (KSIException | RuntimeException e) {
+            operation.result.completeExceptionally(e);
+        } finally {
+            finished();
+        }
+    }
+
+    private void finished() {
+        inFlight.decrementAndGet();
+        startWaiting();
+    }
+
+    private static void checkPresent(Object service, String name) {
+        if (service == null) {
+            throw new IllegalStateException(name + " is not configured");
+        }
+    }
+
+    private interface Call<T> {
+        Future<T> start() throws KSIException;
+    }
+
+    private static final class Operation<T> {
+        private final Call<T> call;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private volatile Future<T> future;
+
+        private Operation(Call<T> call) {
+            this.call = call;
+        }
+
+        private void start() throws KSIException {
+            future = call.start();
+        }
+
+        private void complete() throws KSIException {
+            result.complete(future.getResult());
+        }
+    }
+
+    private static final class FinishedFuture<T> implements Future<T> {
+        private final T result;
+
+        private FinishedFuture(T result) {
+            this.result = result;
+        }
+
+        public T getResult() {
+            return result;
+        }
+
+        public boolean isFinished() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.Reader;
+import com.guardtime.ksi.Verifier;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.unisignature.KSISignature;
+import com.guardtime.ksi.unisignature.verifier.VerificationResult;
+import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicy;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Verifies a large number of signatures in parallel with the same policy. The policy, and the
+ * publications handler or extender in it, is created once and shared by all the verifications.
+ * <p>
+ * The items are taken from the iterator only as fast as they are verified: at most
+ * {@code maxPending} items are read but not yet reported to the listener. A slow listener therefore
+ * slows down the reading of the items instead of letting the results pile up in memory.
+ */
+public class BatchVerifier implements Closeable {
+
+    /**
+     * A signature and the hash of the document to verify it against. Both are requested on the
+     * worker thread, so reading and parsing the signature is done in parallel as well.
+     */
+    public interface Item {
+
+        KSISignature getSignature() throws KSIException;
+
+        /**
+         * @return the document hash, or null to verify the signature without it.
+         */
+        DataHash getDocumentHash() throws KSIException;
+    }
+
+    /**
+     * Receives the results, called on the worker threads, so it must be thread-safe.
+     */
+    public interface ResultListener<T extends Item> {
+
+        void onResult(T item, VerificationResult result);
+
+        /**
+         * Called if the signature could not be read or the verification could not be performed.
+         */
+        void onFailure(T item, Exception failure);
+    }
+
+    /**
+     * Item reading the signature from a file.
+     */
+    public static class FileItem implements Item {
+
+        private final Path signatureFile;
+        private final DataHash documentHash;
+        private final Reader reader;
+
+        public FileItem(Path signatureFile, DataHash documentHash, Reader reader) {
+            this.signatureFile = signatureFile;
+            this.documentHash = documentHash;
+            this.reader = reader;
+        }
+
+        public KSISignature getSignature() throws KSIException {
+            return reader.read(signatureFile.toFile());
+        }
+
+        public DataHash getDocumentHash() {
+            return documentHash;
+        }
+
+        public Path getSignatureFile() {
+            return signatureFile;
+        }
+    }
+
+    private final Verifier verifier;
+    private final ContextAwarePolicy policy;
+    private final int maxPending;
+    private final ExecutorService executor;
+
+    /**
+     * @param verifier   the verifier.
+     * @param policy     the policy all the signatures are verified with.
+     * @param workers    number of verification threads.
+     * @param maxPending maximum number of items taken from the iterator but not reported yet.
+     */
+    public BatchVerifier(Verifier verifier, ContextAwarePolicy policy, int workers, int maxPending) {
+        if (verifier == null || policy == null) {
+            throw new IllegalArgumentException("Verifier and policy must be present");
+        }
+        if (workers < 1 || maxPending < 1) {
+            throw new IllegalArgumentException("Number of workers and pending items must be positive");
+        }
+        this.verifier = verifier;
+        this.policy = policy;
+        this.maxPending = maxPending;
+        this.executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ksi-batch-verifier-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public <T extends Item> Summary verify(Stream<T> items, ResultListener<? super T> listener) throws InterruptedException {
+        return verify(items.iterator(), listener);
+    }
+
+    /**
+     * Verifies all the items and returns when all the results have been reported to the listener.
+     */
+    public <T extends Item> Summary verify(Iterator<T> items, final ResultListener<? super T> listener) throws InterruptedException {
+        final Semaphore pending = new Semaphore(maxPending);
+        final Summary summary = new Summary();
+        while (items.hasNext()) {
+            final T item = items.next();
+            pending.acquire();
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        verify(item, listener, summary);
+                    } finally {
+                        pending.release();
+                    }
+                }
+            });
+        }
+        // Wait until the last items have been reported
+        pending.acquire(maxPending);
+        pending.release(maxPending);
+        return summary;
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private <T extends Item> void verify(T item, ResultListener<? super T> listener, Summary summary) {
+        VerificationResult result;
+        try {
+            DataHash documentHash = item.getDocumentHash();
+            KSISignature signature = item.getSignature();
+            result = documentHash != null ? verifier.verify(signature, documentHash, policy) : verifier.verify(signature, policy);
+        } catch (KSIException | RuntimeException e) {
+            summary.failures.incrementAndGet();
+            listener.onFailure(item, e);
+            return;
+        }
+        if (result.isOk()) {
+            summary.ok.incrementAndGet();
+        } else {
+            summary.notOk.incrementAndGet();
+        }
+        listener.onResult(item, result);
+    }
+
+    /**
+     * Counts of the verification outcomes of a batch.
+     */
+    public static final class Summary {
+
+        private final AtomicLong ok = new AtomicLong();
+        private final AtomicLong notOk = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+
+        /**
+         * Signatures verified successfully.
+         */
+        public long getOk() {
+            return ok.get();
+        }
+
+        /**
+         * Signatures that did not pass the verification.
+         */
+        public long getNotOk() {
+            return notOk.get();
+        }
+
+        /**
+         * Signatures that could not be read or verified.
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        @Override
+        public String toString() {
+            return "ok=" + ok + " notOk=" + notOk + " failures=" + failures;
+        }
+    }
+}
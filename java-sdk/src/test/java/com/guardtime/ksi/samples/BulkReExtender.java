@@ -0,0 +1,505 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.ExtensionFuture;
+import com.guardtime.ksi.PublicationsHandler;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.pdu.ExtensionResponse;
+import com.guardtime.ksi.publication.PublicationRecord;
+import com.guardtime.ksi.service.Future;
+import com.guardtime.ksi.service.KSIExtendingService;
+import com.guardtime.ksi.tlv.TLVParserException;
+import com.guardtime.ksi.unisignature.KSISignature;
+import com.guardtime.ksi.unisignature.KSISignatureComponentFactory;
+import com.guardtime.ksi.unisignature.KSISignatureFactory;
+import com.guardtime.ksi.unisignature.inmemory.InMemoryKsiSignatureComponentFactory;
+import com.guardtime.ksi.unisignature.inmemory.InMemoryKsiSignatureFactory;
+import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicyAdapter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Extends all the signatures in an archive directory to the latest publication in the publications
+ * file. Meant for archives too large to be extended one signature at a time:
+ * <ul>
+ * <li>A signature already extended to the latest publication is recognized from its TLV structure (see
+ * {@link SignatureView}) without building and verifying the signature.</li>
+ * <li>The remaining signatures are grouped by aggregation round, one request to the Extender is made
+ * per round and its calendar hash chain is used for all the signatures of the round.</li>
+ * <li>The rounds are extended in parallel, the rate of the requests to the Extender is limited.</li>
+ * <li>The archive is processed in a fixed order in batches and the progress is saved to a checkpoint
+ * file after each batch, a restarted job continues after the last finished batch.</li>
+ * </ul>
+ * The extended signatures replace the original files atomically. The files that failed are listed in
+ * a file next to the checkpoint file, with the reason.
+ */
+public class BulkReExtender {
+
+    private static final String CHECKPOINT_PUBLICATION_TIME = "publicationTime";
+    private static final String CHECKPOINT_LAST_FILE = "lastFile";
+
+    private final KSIExtendingService extendingService;
+    private final PublicationsHandler publicationsHandler;
+    private final int parallelism;
+    private final int batchSize;
+    private final RateLimiter rateLimiter;
+    private final KSISignatureComponentFactory signatureComponentFactory = new InMemoryKsiSignatureComponentFactory();
+    private final KSISignatureFactory signatureFactory =
+            new InMemoryKsiSignatureFactory(ContextAwarePolicyAdapter.createInternalPolicy(), signatureComponentFactory);
+
+    /**
+     * @param extendingService      the Extender service.
+     * @param publicationsHandler   publications handler for finding the latest publication.
+     * @param parallelism           number of threads reading and extending the signatures.
+     * @param maxRequestsPerSecond  maximum rate of the requests to the Extender.
+     * @param batchSize             number of files processed between two checkpoints.
+     */
+    public BulkReExtender(KSIExtendingService extendingService, PublicationsHandler publicationsHandler,
+                          int parallelism, double maxRequestsPerSecond, int batchSize) {
+        if (extendingService == null || publicationsHandler == null) {
+            throw new IllegalArgumentException("Extending service and publications handler must be present");
+        }
+        if (parallelism < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("Parallelism and batch size must be positive");
+        }
+        if (!(maxRequestsPerSecond > 0)) {
+            throw new IllegalArgumentException("Maximum request rate must be positive");
+        }
+        this.extendingService = extendingService;
+        this.publicationsHandler = publicationsHandler;
+        this.parallelism = parallelism;
+        this.batchSize = batchSize;
+        this.rateLimiter = new RateLimiter(maxRequestsPerSecond);
+    }
+
+    /**
+     * Extends the signatures with the given suffix found in the archive directory and its
+     * subdirectories. If the checkpoint file exists and was written for the same latest publication,
+     * the files up to the one recorded in it are skipped.
+     */
+    public Summary run(Path archive, String suffix, Path checkpointFile) throws IOException, KSIException {
+        PublicationRecord publication = publicationsHandler.getPublicationsFile().getLatestPublication();
+        long publicationTime = TimeUnit.MILLISECONDS.toSeconds(publication.getPublicationTime().getTime());
+
+        Summary summary = new Summary();
+        Path resumeAfter = null;
+        if (Files.isRegularFile(checkpointFile)) {
+            Properties checkpoint = new Properties();
+            try (InputStream input = Files.newInputStream(checkpointFile)) {
+                checkpoint.load(input);
+            }
+            // A newer publication makes the earlier progress out of date
+            if (Long.toString(publicationTime).equals(checkpoint.getProperty(CHECKPOINT_PUBLICATION_TIME))) {
+                resumeAfter = archive.resolve(checkpoint.getProperty(CHECKPOINT_LAST_FILE));
+                summary.load(checkpoint);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try (Writer failures = Files.newBufferedWriter(failuresFile(checkpointFile), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, resumeAfter != null ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+            Job job = new Job(archive, suffix, checkpointFile, publication, publicationTime, summary, executor, failures);
+            job.walk(archive, resumeAfter);
+            job.flush();
+        } finally {
+            executor.shutdownNow();
+        }
+        return summary;
+    }
+
+    private static Path failuresFile(Path checkpointFile) {
+        return checkpointFile.resolveSibling(checkpointFile.getFileName() + ".failed");
+    }
+
+    /**
+     * Compares the paths in the order the directories are walked: name by name, so all the files of a
+     * directory come before the next directory with a greater name.
+     */
+    private static int compareInWalkOrder(Path first, Path second) {
+        int count = Math.min(first.getNameCount(), second.getNameCount());
+        for (int i = 0; i < count; i++) {
+            int result = first.getName(i).toString().compareTo(second.getName(i).toString());
+            if (result != 0) {
+                return result;
+            }
+        }
+        return first.getNameCount() - second.getNameCount();
+    }
+
+    private final class Job {
+
+        private final Path archive;
+        private final String suffix;
+        private final Path checkpointFile;
+        private final PublicationRecord publication;
+        private final long publicationTime;
+        private final Summary summary;
+        private final ExecutorService executor;
+        private final Writer failures;
+        private final List<Path> batch = new ArrayList<>();
+
+        private Job(Path archive, String suffix, Path checkpointFile, PublicationRecord publication, long publicationTime,
+                    Summary summary, ExecutorService executor, Writer failures) {
+            this.archive = archive;
+            this.suffix = suffix;
+            this.checkpointFile = checkpointFile;
+            this.publication = publication;
+            this.publicationTime = publicationTime;
+            this.summary = summary;
+            this.executor = executor;
+            this.failures = failures;
+        }
+
+        private void walk(Path directory, Path resumeAfter) throws IOException, KSIException {
+            List<Path> entries = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path entry : stream) {
+                    entries.add(entry);
+                }
+            }
+            Collections.sort(entries);
+            for (Path entry : entries) {
+                boolean directoryEntry = Files.isDirectory(entry);
+                if (resumeAfter != null && compareInWalkOrder(entry, resumeAfter) <= 0) {
+                    // Already processed, unless the checkpoint is inside this directory
+                    if (directoryEntry && resumeAfter.startsWith(entry)) {
+                        walk(entry, resumeAfter);
+                    }
+                    continue;
+                }
+                if (directoryEntry) {
+                    walk(entry, null);
+                } else if (entry.getFileName().toString().endsWith(suffix)) {
+                    batch.add(entry);
+                    if (batch.size() >= batchSize) {
+                        flush();
+                    }
+                }
+            }
+        }
+
+        private void flush() throws IOException, KSIException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            Map<Long, List<ScannedSignature>> rounds = scan();
+            extend(rounds);
+            failures.flush();
+            saveCheckpoint(batch.get(batch.size() - 1));
+            batch.clear();
+        }
+
+        /**
+         * Reads the files of the batch and groups the signatures to be extended by aggregation time.
+         */
+        private Map<Long, List<ScannedSignature>> scan() throws IOException, KSIException {
+            List<Callable<ScannedSignature>> tasks = new ArrayList<>();
+            for (final Path file : batch) {
+                tasks.add(new Callable<ScannedSignature>() {
+                    public ScannedSignature call() throws IOException {
+                        return ScannedSignature.read(file);
+                    }
+                });
+            }
+            Map<Long, List<ScannedSignature>> rounds = new HashMap<>();
+            for (ScannedSignature signature : invokeAll(tasks)) {
+                summary.scanned.incrementAndGet();
+                if (signature.failure != null) {
+                    failed(signature.file, signature.failure);
+                } else if (signature.publicationTime >= publicationTime) {
+                    summary.upToDate.incrementAndGet();
+                } else if (signature.aggregationTime > publicationTime) {
+                    summary.notYetPublished.incrementAndGet();
+                } else {
+                    List<ScannedSignature> round = rounds.get(signature.aggregationTime);
+                    if (round == null) {
+                        round = new ArrayList<>();
+                        rounds.put(signature.aggregationTime, round);
+                    }
+                    round.add(signature);
+                }
+            }
+            return rounds;
+        }
+
+        private void extend(Map<Long, List<ScannedSignature>> rounds) throws IOException, KSIException {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (final Map.Entry<Long, List<ScannedSignature>> round : rounds.entrySet()) {
+                tasks.add(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        extendRound(round.getKey(), round.getValue());
+                        return null;
+                    }
+                });
+            }
+            invokeAll(tasks);
+        }
+
+        private void extendRound(long aggregationTime, List<ScannedSignature> signatures) throws InterruptedException, IOException {
+            Future<ExtensionResponse> response;
+            try {
+                rateLimiter.acquire();
+                response = new SharedResponse(extendingService.extend(new Date(TimeUnit.SECONDS.toMillis(aggregationTime)),
+                        publication.getPublicationTime()));
+            } catch (KSIException e) {
+                for (ScannedSignature signature : signatures) {
+                    failed(signature.file, e);
+                }
+                return;
+            }
+            for (ScannedSignature signature : signatures) {
+                try {
+                    KSISignature original = signatureFactory.createSignature(new ByteArrayInputStream(signature.content));
+                    KSISignature extended = new ExtensionFuture(response, publication, original,
+                            signatureComponentFactory, signatureFactory).getResult();
+                    replace(signature.file, extended);
+                    summary.extended.incrementAndGet();
+                } catch (KSIException | IOException e) {
+                    failed(signature.file, e);
+                }
+            }
+        }
+
+        private <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException, KSIException {
+            List<T> results = new ArrayList<>();
+            try {
+                for (java.util.concurrent.Future<T> future : executor.invokeAll(tasks)) {
+                    results.add(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new KSIException("Re-extending was interrupted", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new KSIException("Re-extending failed", e.getCause());
+            }
+            return results;
+        }
+
+        private void replace(Path file, KSISignature signature) throws IOException, KSIException {
+            Path temporaryFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try {
+                try (OutputStream output = Files.newOutputStream(temporaryFile)) {
+                    signature.writeTo(output);
+                }
+                Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporaryFile);
+            }
+        }
+
+        private void failed(Path file, Exception reason) {
+            summary.failed.incrementAndGet();
+            synchronized (failures) {
+                try {
+                    failures.write(archive.relativize(file) + "\t" + reason + System.lineSeparator());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        private void saveCheckpoint(Path lastFile) throws IOException {
+            Properties checkpoint = new Properties();
+            checkpoint.setProperty(CHECKPOINT_PUBLICATION_TIME, Long.toString(publicationTime));
+            checkpoint.setProperty(CHECKPOINT_LAST_FILE, archive.relativize(lastFile).toString());
+            summary.save(checkpoint);
+            Path directory = checkpointFile.toAbsolutePath().getParent();
+            Path temporaryFile = Files.createTempFile(directory, checkpointFile.getFileName().toString(), ".tmp");
+            try {
+                try (OutputStream output = Files.newOutputStream(temporaryFile)) {
+                    checkpoint.store(output, "Re-extending " + archive);
+                }
+                Files.move(temporaryFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporaryFile);
+            }
+        }
+    }
+
+    /**
+     * The times read from the TLV structure of a signature file, without parsing it into a signature.
+     */
+    private static final class ScannedSignature {
+
+        private final Path file;
+        private final byte[] content;
+        private final long aggregationTime;
+        private final long publicationTime;
+        private final Exception failure;
+
+        private ScannedSignature(Path file, byte[] content, long aggregationTime, long publicationTime, Exception failure) {
+            this.file = file;
+            this.content = content;
+            this.aggregationTime = aggregationTime;
+            this.publicationTime = publicationTime;
+            this.failure = failure;
+        }
+
+        private static ScannedSignature read(Path file) throws IOException {
+            byte[] content = Files.readAllBytes(file);
+            try {
+                SignatureView signature = SignatureView.wrap(content);
+                return new ScannedSignature(file, content, signature.getAggregationTime(), signature.getPublicationTime(), null);
+            } catch (TLVParserException e) {
+                return new ScannedSignature(file, null, -1, -1, e);
+            }
+        }
+    }
+
+    /**
+     * Lets all the signatures of a round wait for the same Extender response.
+     */
+    private static final class SharedResponse implements Future<ExtensionResponse> {
+
+        private final Future<ExtensionResponse> response;
+        private ExtensionResponse result;
+        private KSIException failure;
+
+        private SharedResponse(Future<ExtensionResponse> response) {
+            this.response = response;
+        }
+
+        public synchronized ExtensionResponse getResult() throws KSIException {
+            if (result == null && failure == null) {
+                try {
+                    result = response.getResult();
+                } catch (KSIException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return result;
+        }
+
+        public boolean isFinished() {
+            return response.isFinished();
+        }
+    }
+
+    /**
+     * Spaces the requests evenly at the given rate.
+     */
+    private static final class RateLimiter {
+
+        private final long intervalNanos;
+        private long nextNanos = System.nanoTime();
+
+        private RateLimiter(double permitsPerSecond) {
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        }
+
+        private void acquire() throws InterruptedException {
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                waitNanos = nextNanos - now;
+                nextNanos = Math.max(now, nextNanos) + intervalNanos;
+            }
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+    }
+
+    /**
+     * Counts of the signatures processed, including the ones processed before the restart.
+     */
+    public static final class Summary {
+
+        private final AtomicLong scanned = new AtomicLong();
+        private final AtomicLong upToDate = new AtomicLong();
+        private final AtomicLong notYetPublished = new AtomicLong();
+        private final AtomicLong extended = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+
+        public long getScanned() {
+            return scanned.get();
+        }
+
+        /**
+         * Signatures already extended to the latest publication.
+         */
+        public long getUpToDate() {
+            return upToDate.get();
+        }
+
+        /**
+         * Signatures created after the latest publication, they can be extended after the next one.
+         */
+        public long getNotYetPublished() {
+            return notYetPublished.get();
+        }
+
+        public long getExtended() {
+            return extended.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        private void load(Properties properties) {
+            scanned.set(Long.parseLong(properties.getProperty("scanned", "0")));
+            upToDate.set(Long.parseLong(properties.getProperty("upToDate", "0")));
+            notYetPublished.set(Long.parseLong(properties.getProperty("notYetPublished", "0")));
+            extended.set(Long.parseLong(properties.getProperty("extended", "0")));
+            failed.set(Long.parseLong(properties.getProperty("failed", "0")));
+        }
+
+        private void save(Properties properties) {
+            properties.setProperty("scanned", Long.toString(scanned.get()));
+            properties.setProperty("upToDate", Long.toString(upToDate.get()));
+            properties.setProperty("notYetPublished", Long.toString(notYetPublished.get()));
+            properties.setProperty("extended", Long.toString(extended.get()));
+            properties.setProperty("failed", Long.toString(failed.get()));
+        }
+
+        @Override
+        public String toString() {
+            return "scanned=" + scanned + " upToDate=" + upToDate + " notYetPublished=" + notYetPublished
+                    + " extended=" + extended + " failed=" + failed;
+        }
+    }
+}
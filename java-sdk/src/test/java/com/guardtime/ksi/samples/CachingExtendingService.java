@@ -0,0 +1,423 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.pdu.ExtenderConfiguration;
+import com.guardtime.ksi.pdu.ExtensionResponse;
+import com.guardtime.ksi.service.ConfigurationListener;
+import com.guardtime.ksi.service.Future;
+import com.guardtime.ksi.service.KSIExtendingService;
+import com.guardtime.ksi.tlv.TLVElement;
+import com.guardtime.ksi.tlv.TLVParserException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Extending service that remembers the calendar hash chains returned by another extending service.
+ * All the signatures created in the same second and extended to the same publication get the same
+ * calendar hash chain, so only the first of them needs a request to the Extender, the rest are
+ * extended locally.
+ * <p>
+ * The chains are kept in memory up to the given number, the least recently used one is evicted first,
+ * and for the given time. Optionally the chains are also kept in a {@link Store} which outlives the
+ * process. Concurrent requests for the same chain share a single request to the Extender. Requests
+ * extending to the head of the calendar, i.e. without a publication time, are not cached.
+ */
+public class CachingExtendingService implements KSIExtendingService, KsiMetrics.CacheStatistics {
+
+    /**
+     * Persistent storage for the calendar hash chains, in addition to the memory.
+     */
+    public interface Store {
+
+        /**
+         * @return the encoded calendar hash chain, or null if there is none for the times.
+         */
+        byte[] load(long aggregationTime, long publicationTime) throws IOException;
+
+        void save(long aggregationTime, long publicationTime, byte[] calendarHashChain) throws IOException;
+    }
+
+    private final KSIExtendingService extendingService;
+    private final int maxSize;
+    private final long ttlNanos;
+    private final Store store;
+    private final Map<Key, CachedChain> entries;
+    private final Map<Key, PendingResponse> pending = new HashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong storeFailures = new AtomicLong();
+    private volatile IOException lastStoreFailure;
+
+    public CachingExtendingService(KSIExtendingService extendingService, int maxSize, long ttlMillis) {
+        this(extendingService, maxSize, ttlMillis, null);
+    }
+
+    /**
+     * @param extendingService the extending service making the actual requests.
+     * @param maxSize          maximum number of calendar hash chains kept in memory.
+     * @param ttlMillis        time a calendar hash chain is kept in memory.
+     * @param store            persistent store for the calendar hash chains, may be null.
+     */
+    public CachingExtendingService(KSIExtendingService extendingService, final int maxSize, long ttlMillis, Store store) {
+        if (extendingService == null) {
+            throw new IllegalArgumentException("Extending service must be present");
+        }
+        if (maxSize < 1 || ttlMillis < 1) {
+            throw new IllegalArgumentException("Cache size and time to live must be positive");
+        }
+        this.extendingService = extendingService;
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.store = store;
+        this.entries = new LinkedHashMap<Key, CachedChain>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedChain> eldest) {
+                return size() > CachingExtendingService.this.maxSize;
+            }
+        };
+    }
+
+    public Future<ExtensionResponse> extend(Date aggregationTime, Date publicationTime) throws KSIException {
+        if (publicationTime == null) {
+            return extendingService.extend(aggregationTime, null);
+        }
+        Key key = new Key(TimeUnit.MILLISECONDS.toSeconds(aggregationTime.getTime()),
+                TimeUnit.MILLISECONDS.toSeconds(publicationTime.getTime()));
+        PendingResponse response;
+        synchronized (this) {
+            byte[] calendarHashChain = get(key);
+            if (calendarHashChain != null) {
+                hits.incrementAndGet();
+                return new CachedResponse(calendarHashChain);
+            }
+            response = pending.get(key);
+            if (response != null) {
+                hits.incrementAndGet();
+                return response;
+            }
+        }
+        byte[] stored = load(key);
+        synchronized (this) {
+            if (stored != null) {
+                put(key, stored);
+                hits.incrementAndGet();
+                return new CachedResponse(stored);
+            }
+            response = pending.get(key);
+            if (response != null) {
+                hits.incrementAndGet();
+                return response;
+            }
+            misses.incrementAndGet();
+            response = new PendingResponse(key);
+            pending.put(key, response);
+        }
+        // The request is sent outside the lock, the identical requests meanwhile wait for it to start
+        response.start(aggregationTime, publicationTime);
+        return response;
+    }
+
+    public List<KSIExtendingService> getSubExtendingServices() {
+        return extendingService.getSubExtendingServices();
+    }
+
+    public void registerExtenderConfigurationListener(ConfigurationListener<ExtenderConfiguration> listener) {
+        extendingService.registerExtenderConfigurationListener(listener);
+    }
+
+    public Future<ExtenderConfiguration> getExtendingConfiguration() {
+        return extendingService.getExtendingConfiguration();
+    }
+
+    /**
+     * Number of requests answered from the cache, including the ones that waited for a request made
+     * for an earlier identical request.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Number of requests sent to the Extender.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Number of calendar hash chains that could not be loaded from or saved to the store. The chains not
+     * loaded are requested from the Extender, the ones not saved are still cached in memory.
+     */
+    public long getStoreFailureCount() {
+        return storeFailures.get();
+    }
+
+    /**
+     * The last failure of loading or saving a calendar hash chain, or null if there has been none.
+     */
+    public IOException getLastStoreFailure() {
+        return lastStoreFailure;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public void close() throws IOException {
+        extendingService.close();
+    }
+
+    private byte[] get(Key key) {
+        CachedChain entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.createdNanos > ttlNanos) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.calendarHashChain;
+    }
+
+    private void put(Key key, byte[] calendarHashChain) {
+        entries.put(key, new CachedChain(calendarHashChain, System.nanoTime()));
+    }
+
+    private byte[] load(Key key) {
+        if (store == null) {
+            return null;
+        }
+        try {
+            return store.load(key.aggregationTime, key.publicationTime);
+        } catch (IOException e) {
+            // The chain is requested from the Extender instead
+            storeFailed(e);
+            return null;
+        }
+    }
+
+    private void received(Key key, byte[] calendarHashChain) {
+        synchronized (this) {
+            put(key, calendarHashChain);
+            pending.remove(key);
+        }
+        if (store != null) {
+            try {
+                store.save(key.aggregationTime, key.publicationTime, calendarHashChain);
+            } catch (IOException e) {
+                // The chain is still cached in memory and can be requested again later
+                storeFailed(e);
+            }
+        }
+    }
+
+    private void storeFailed(IOException e) {
+        lastStoreFailure = e;
+        storeFailures.incrementAndGet();
+    }
+
+    private synchronized void failed(Key key, PendingResponse response) {
+        if (pending.get(key) == response) {
+            pending.remove(key);
+        }
+    }
+
+    private static final class Key {
+
+        private final long aggregationTime;
+        private final long publicationTime;
+
+        private Key(long aggregationTime, long publicationTime) {
+            this.aggregationTime = aggregationTime;
+            this.publicationTime = publicationTime;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return aggregationTime == key.aggregationTime && publicationTime == key.publicationTime;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.valueOf(aggregationTime).hashCode() + Long.valueOf(publicationTime).hashCode();
+        }
+    }
+
+    private static final class CachedChain {
+
+        private final byte[] calendarHashChain;
+        private final long createdNanos;
+
+        private CachedChain(byte[] calendarHashChain, long createdNanos) {
+            this.calendarHashChain = calendarHashChain;
+            this.createdNanos = createdNanos;
+        }
+    }
+
+    private static final class CachedResponse implements Future<ExtensionResponse>, ExtensionResponse {
+
+        private final byte[] calendarHashChain;
+
+        private CachedResponse(byte[] calendarHashChain) {
+            this.calendarHashChain = calendarHashChain;
+        }
+
+        public TLVElement getCalendarHashChain() {
+            try {
+                // Every signature gets its own copy of the chain
+                return TLVElement.create(calendarHashChain);
+            } catch (TLVParserException e) {
+                throw new IllegalStateException("Cached calendar hash chain can not be parsed", e);
+            }
+        }
+
+        public ExtensionResponse getResult() {
+            return this;
+        }
+
+        public boolean isFinished() {
+            return true;
+        }
+    }
+
+    /**
+     * Request sent to the Extender, shared by all the identical requests until it has finished.
+     */
+    private final class PendingResponse implements Future<ExtensionResponse> {
+
+        private final Key key;
+        private final CountDownLatch started = new CountDownLatch(1);
+        private volatile Future<ExtensionResponse> response;
+        private volatile CachedResponse result;
+        private volatile KSIException failure;
+
+        private PendingResponse(Key key) {
+            this.key = key;
+        }
+
+        private void start(Date aggregationTime, Date publicationTime) throws KSIException {
+            try {
+                response = extendingService.extend(aggregationTime, publicationTime);
+            } catch (KSIException e) {
+                failure = e;
+                throw e;
+            } catch (RuntimeException e) {
+                failure = new KSIException("Extending failed", e);
+                throw failure;
+            } finally {
+                if (response == null) {
+                    if (failure == null) {
+                        failure = new KSIException("Extending failed");
+                    }
+                    failed(key, this);
+                }
+                started.countDown();
+            }
+        }
+
+        public ExtensionResponse getResult() throws KSIException {
+            try {
+                started.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new KSIException("Waiting for the calendar hash chain was interrupted", e);
+            }
+            synchronized (this) {
+                if (result == null && failure == null) {
+                    try {
+                        byte[] calendarHashChain = response.getResult().getCalendarHashChain().getEncoded();
+                        result = new CachedResponse(calendarHashChain);
+                        received(key, calendarHashChain);
+                    } catch (KSIException e) {
+                        failure = e;
+                    } catch (RuntimeException e) {
+                        failure = new KSIException("Extending failed", e);
+                    } finally {
+                        if (result == null) {
+                            if (failure == null) {
+                                failure = new KSIException("Extending failed");
+                            }
+                            failed(key, this);
+                        }
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                return result;
+            }
+        }
+
+        public boolean isFinished() {
+            if (result != null || failure != null) {
+                return true;
+            }
+            Future<ExtensionResponse> current = response;
+            return current != null && current.isFinished();
+        }
+    }
+
+    /**
+     * Keeps each calendar hash chain in a file of its own in the given directory.
+     */
+    public static class DirectoryStore implements Store {
+
+        private final Path directory;
+
+        public DirectoryStore(Path directory) throws IOException {
+            this.directory = Files.createDirectories(directory);
+        }
+
+        public byte[] load(long aggregationTime, long publicationTime) throws IOException {
+            Path file = file(aggregationTime, publicationTime);
+            return Files.isRegularFile(file) ? Files.readAllBytes(file) : null;
+        }
+
+        public void save(long aggregationTime, long publicationTime, byte[] calendarHashChain) throws IOException {
+            Path file = file(aggregationTime, publicationTime);
+            Path temporaryFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temporaryFile, calendarHashChain);
+                Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporaryFile);
+            }
+        }
+
+        private Path file(long aggregationTime, long publicationTime) {
+            return directory.resolve(aggregationTime + "-" + publicationTime + ".tlv");
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.PublicationsHandler;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.unisignature.CalendarAuthenticationRecord;
+import com.guardtime.ksi.unisignature.SignatureData;
+import com.guardtime.ksi.unisignature.verifier.RuleResult;
+import com.guardtime.ksi.unisignature.verifier.VerificationContext;
+import com.guardtime.ksi.unisignature.verifier.VerificationResultCode;
+import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicy;
+import com.guardtime.ksi.unisignature.verifier.policies.KeyBasedVerificationPolicy;
+import com.guardtime.ksi.unisignature.verifier.policies.PolicyContext;
+import com.guardtime.ksi.unisignature.verifier.rules.CalendarAuthenticationRecordSignatureVerificationRule;
+import com.guardtime.ksi.unisignature.verifier.rules.Rule;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Key-based verification policy remembering the calendar authentication records whose signature it has
+ * verified. All the signatures of the same aggregation round carry the same calendar authentication
+ * record, so in a bulk verification the signature of the record is checked once per round instead of
+ * once per KSI signature.
+ * <p>
+ * The records are kept by a digest of their publication data and signature data, together with the
+ * certificate they were verified with. A remembered record is accepted only if the publications file
+ * still returns the same certificate for it. The rest of the rules, including the validity of the
+ * certificate at the aggregation time, are checked for every signature as in
+ * {@link KeyBasedVerificationPolicy}. Only the successful verifications are remembered, up to the given
+ * number.
+ * <p>
+ * Can be used as a {@link ContextAwarePolicy} directly, like the one created by
+ * {@link com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicyAdapter#createKeyPolicy(PublicationsHandler)}.
+ */
+public class CachingKeyBasedVerificationPolicy extends KeyBasedVerificationPolicy implements ContextAwarePolicy, KsiMetrics.CacheStatistics {
+
+    private final PolicyContext policyContext;
+    private final int maxSize;
+    private final List<Rule> rules;
+    private final ConcurrentMap<DataHash, VerifiedRecord> verifiedRecords = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param publicationsHandler publications handler providing the certificates.
+     * @param maxSize             maximum number of verified calendar authentication records kept.
+     */
+    public CachingKeyBasedVerificationPolicy(PublicationsHandler publicationsHandler, int maxSize) {
+        if (publicationsHandler == null) {
+            throw new IllegalArgumentException("Publications handler must be present");
+        }
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        this.policyContext = new PolicyContext(publicationsHandler, null);
+        this.maxSize = maxSize;
+        List<Rule> rules = new ArrayList<>(super.getRules());
+        for (int i = 0; i < rules.size(); i++) {
+            if (rules.get(i) instanceof CalendarAuthenticationRecordSignatureVerificationRule) {
+                rules.set(i, new CachingSignatureVerificationRule(rules.get(i)));
+            }
+        }
+        this.rules = Collections.unmodifiableList(rules);
+    }
+
+    @Override
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    public PolicyContext getPolicyContext() {
+        return policyContext;
+    }
+
+    /**
+     * Number of calendar authentication records accepted without checking their signature.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Number of calendar authentication records whose signature was checked.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public void clear() {
+        verifiedRecords.clear();
+    }
+
+    private static DataHash digest(CalendarAuthenticationRecord record) throws KSIException {
+        SignatureData signatureData = record.getSignatureData();
+        DataHasher hasher = new DataHasher(HashAlgorithm.SHA2_256);
+        hasher.addData(record.getPublicationData().getEncoded());
+        hasher.addData(signatureData.getSignatureType().getBytes(StandardCharsets.UTF_8));
+        hasher.addData(signatureData.getSignatureValue());
+        hasher.addData(signatureData.getCertificateId());
+        return hasher.getHash();
+    }
+
+    private void remember(DataHash digest, VerifiedRecord record) {
+        if (verifiedRecords.size() >= maxSize) {
+            // The records are kept only for their aggregation round, so any of them can go
+            Iterator<DataHash> iterator = verifiedRecords.keySet().iterator();
+            if (iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        verifiedRecords.put(digest, record);
+    }
+
+    private static final class VerifiedRecord {
+
+        private final Certificate certificate;
+        private final RuleResult result;
+
+        private VerifiedRecord(Certificate certificate, RuleResult result) {
+            this.certificate = certificate;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Checks the signature of the calendar authentication record with the given rule, unless the record
+     * has been verified with the same certificate before.
+     */
+    private final class CachingSignatureVerificationRule implements Rule {
+
+        private final Rule rule;
+
+        private CachingSignatureVerificationRule(Rule rule) {
+            this.rule = rule;
+        }
+
+        public RuleResult verify(VerificationContext context) throws KSIException {
+            CalendarAuthenticationRecord record = context.getCalendarAuthenticationRecord();
+            if (record == null) {
+                return rule.verify(context);
+            }
+            DataHash digest = digest(record);
+            Certificate certificate = context.getCertificate(record.getSignatureData().getCertificateId());
+            VerifiedRecord verifiedRecord = verifiedRecords.get(digest);
+            if (verifiedRecord != null && certificate != null && certificate.equals(verifiedRecord.certificate)) {
+                hits.incrementAndGet();
+                return verifiedRecord.result;
+            }
+            misses.incrementAndGet();
+            RuleResult result = rule.verify(context);
+            if (certificate != null && result.getResultCode() == VerificationResultCode.OK) {
+                remember(digest, new VerifiedRecord(certificate, result));
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return rule.toString();
+        }
+    }
+}
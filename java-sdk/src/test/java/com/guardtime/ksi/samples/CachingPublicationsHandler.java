@@ -0,0 +1,226 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.PublicationsHandler;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.publication.PublicationsFileFactory;
+import com.guardtime.ksi.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publications handler that keeps the parsed publications file in memory and refreshes it in the
+ * background, so the verifications never wait for a download or parse once the file has been loaded.
+ * <p>
+ * Each downloaded file is verified by the {@link PublicationsFileFactory} and then saved as a snapshot
+ * on the local disk, from which the next start-up loads it without a download. The refresh is a
+ * conditional request, if the file has not changed on the server it is not downloaded again. If the
+ * refresh fails, the previous file is kept.
+ */
+public class CachingPublicationsHandler implements PublicationsHandler, Closeable {
+
+    private static final int CONNECTION_TIMEOUT_MILLIS = 10000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+    private static final String ETAG = "ETag";
+    private static final String LAST_MODIFIED = "Last-Modified";
+
+    private final URL url;
+    private final PublicationsFileFactory factory;
+    private final Path snapshotFile;
+    private final Path snapshotInfoFile;
+    private final ScheduledExecutorService refresher;
+    private volatile IndexedPublicationsFile publicationsFile;
+    private volatile Exception lastRefreshFailure;
+    private String etag;
+    private long lastModified;
+
+    /**
+     * @param url          URL of the publications file.
+     * @param factory      factory verifying and parsing the publications file.
+     * @param snapshotFile local file the last verified publications file is kept in.
+     * @param ttlMillis    time after which the publications file is checked for changes.
+     */
+    public CachingPublicationsHandler(URL url, PublicationsFileFactory factory, Path snapshotFile, long ttlMillis) {
+        if (url == null || factory == null || snapshotFile == null) {
+            throw new IllegalArgumentException("URL, publications file factory and snapshot file must be present");
+        }
+        if (ttlMillis < 1) {
+            throw new IllegalArgumentException("Time to live must be positive");
+        }
+        this.url = url;
+        this.factory = factory;
+        this.snapshotFile = snapshotFile;
+        this.snapshotInfoFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".properties");
+
+        long snapshotAge = loadSnapshot();
+        this.refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ksi-publications-refresher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.refresher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    refresh();
+                } catch (KSIException e) {
+                    // Keep using the previous publications file
+                }
+            }
+        }, Math.max(0, ttlMillis - snapshotAge), ttlMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the publications file from memory. Only if there was no snapshot and the first
+     * download has not finished yet, the call downloads the publications file itself. The publication
+     * records of the file are indexed by time, the index is replaced together with the file.
+     */
+    public IndexedPublicationsFile getPublicationsFile() throws KSIException {
+        IndexedPublicationsFile current = publicationsFile;
+        if (current == null) {
+            synchronized (this) {
+                if (publicationsFile == null) {
+                    refresh();
+                }
+                current = publicationsFile;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Checks if the publications file has changed on the server and replaces the file in memory and
+     * the snapshot if it has.
+     */
+    public synchronized void refresh() throws KSIException {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            try {
+                connection.setConnectTimeout(CONNECTION_TIMEOUT_MILLIS);
+                connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+                if (publicationsFile != null) {
+                    if (etag != null) {
+                        connection.setRequestProperty("If-None-Match", etag);
+                    }
+                    if (lastModified > 0) {
+                        connection.setIfModifiedSince(lastModified);
+                    }
+                }
+                int code = connection.getResponseCode();
+                if (code == HttpURLConnection.HTTP_NOT_MODIFIED && publicationsFile != null) {
+                    Files.setLastModifiedTime(snapshotFile, FileTime.fromMillis(System.currentTimeMillis()));
+                } else if (code == HttpURLConnection.HTTP_OK) {
+                    byte[] content;
+                    try (InputStream input = connection.getInputStream()) {
+                        content = Util.toByteArray(input);
+                    }
+                    IndexedPublicationsFile downloaded = new IndexedPublicationsFile(factory.create(new ByteArrayInputStream(content)));
+                    etag = connection.getHeaderField(ETAG);
+                    lastModified = connection.getLastModified();
+                    saveSnapshot(content);
+                    publicationsFile = downloaded;
+                } else {
+                    throw new KSIException("Downloading publications file from " + url + " failed with HTTP status " + code);
+                }
+            } finally {
+                connection.disconnect();
+            }
+            lastRefreshFailure = null;
+        } catch (IOException e) {
+            lastRefreshFailure = e;
+            throw new KSIException("Downloading publications file from " + url + " failed", e);
+        } catch (KSIException e) {
+            lastRefreshFailure = e;
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the failure of the last refresh, or null if it succeeded.
+     */
+    public Exception getLastRefreshFailure() {
+        return lastRefreshFailure;
+    }
+
+    public void close() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * Loads the publications file from the snapshot if there is one.
+     *
+     * @return the age of the snapshot in milliseconds, or {@link Long#MAX_VALUE} if there is no usable snapshot.
+     */
+    private long loadSnapshot() {
+        if (!Files.isRegularFile(snapshotFile)) {
+            return Long.MAX_VALUE;
+        }
+        try (InputStream input = Files.newInputStream(snapshotFile)) {
+            // The snapshot is verified again, it could have been modified on the disk
+            publicationsFile = new IndexedPublicationsFile(factory.create(input));
+            if (Files.isRegularFile(snapshotInfoFile)) {
+                Properties info = new Properties();
+                try (InputStream infoInput = Files.newInputStream(snapshotInfoFile)) {
+                    info.load(infoInput);
+                }
+                etag = info.getProperty(ETAG);
+                lastModified = Long.parseLong(info.getProperty(LAST_MODIFIED, "0"));
+            }
+            return System.currentTimeMillis() - Files.getLastModifiedTime(snapshotFile).toMillis();
+        } catch (IOException | KSIException | NumberFormatException e) {
+            publicationsFile = null;
+            etag = null;
+            lastModified = 0;
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private void saveSnapshot(byte[] content) throws IOException {
+        Path directory = snapshotFile.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temporaryFile = Files.createTempFile(directory, snapshotFile.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temporaryFile, content);
+            Files.move(temporaryFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+        Properties info = new Properties();
+        if (etag != null) {
+            info.setProperty(ETAG, etag);
+        }
+        info.setProperty(LAST_MODIFIED, Long.toString(lastModified));
+        try (OutputStream output = Files.newOutputStream(snapshotInfoFile)) {
+            info.store(output, "Publications file " + url);
+        }
+    }
+}
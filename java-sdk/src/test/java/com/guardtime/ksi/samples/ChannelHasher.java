@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+
+/**
+ * Hashes very large files by mapping them into memory region by region and feeding the mapped
+ * buffers to the message digest, so the whole file is never read into the heap. The digest may still
+ * copy the mapped content through a small heap array of its own while updating.
+ * The result is the same {@link DataHash} as {@link DataHasher} computes for the same content.
+ * <p>
+ * {@link DataHasher} always uses the Bouncy Castle implementation of the hash algorithm. This class
+ * prefers the JDK implementation when there is one, as it can make use of the hardware acceleration
+ * of the CPU, and falls back to Bouncy Castle for the algorithms the JDK does not implement.
+ */
+public class ChannelHasher {
+
+    /**
+     * Default size of the region mapped into memory at a time.
+     */
+    public static final int DEFAULT_REGION_SIZE = 64 * 1024 * 1024;
+
+    private static final Provider FALLBACK_PROVIDER = new BouncyCastleProvider();
+
+    /**
+     * Receives the progress of hashing after each mapped region.
+     */
+    public interface ProgressListener {
+        void onProgress(long bytesHashed, long totalBytes);
+    }
+
+    private final HashAlgorithm algorithm;
+    private final int regionSize;
+
+    public ChannelHasher(HashAlgorithm algorithm) {
+        this(algorithm, DEFAULT_REGION_SIZE);
+    }
+
+    /**
+     * @param algorithm  the hash algorithm.
+     * @param regionSize size of the region mapped into memory at a time, also the granularity of the
+     *                   progress notifications.
+     */
+    public ChannelHasher(HashAlgorithm algorithm, int regionSize) {
+        if (algorithm == null) {
+            throw new IllegalArgumentException("Hash algorithm must be present");
+        }
+        if (!algorithm.isImplemented()) {
+            throw new IllegalArgumentException("Hash algorithm " + algorithm.name() + " is not implemented");
+        }
+        if (regionSize < 1) {
+            throw new IllegalArgumentException("Region size must be positive");
+        }
+        algorithm.checkExpiration();
+        this.algorithm = algorithm;
+        this.regionSize = regionSize;
+    }
+
+    public DataHash hash(Path file) throws IOException {
+        return hash(file, null);
+    }
+
+    /**
+     * Hashes the content of the file.
+     *
+     * @param listener optional listener notified after each region, may be null.
+     */
+    public DataHash hash(Path file, ProgressListener listener) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return hash(channel, listener);
+        }
+    }
+
+    /**
+     * Hashes the content of the channel from its current position up to its current size. The
+     * position of the channel is not changed.
+     */
+    public DataHash hash(FileChannel channel, ProgressListener listener) throws IOException {
+        MessageDigest digest = createDigest();
+        long start = channel.position();
+        long total = channel.size() - start;
+        long hashed = 0;
+        while (hashed < total) {
+            long length = Math.min(regionSize, total - hashed);
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start + hashed, length);
+            digest.update(region);
+            hashed += length;
+            if (listener != null) {
+                listener.onProgress(hashed, total);
+            }
+        }
+        return new DataHash(algorithm, digest.digest());
+    }
+
+    private MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(algorithm.getName());
+        } catch (NoSuchAlgorithmException e) {
+            try {
+                return MessageDigest.getInstance(algorithm.getName(), FALLBACK_PROVIDER);
+            } catch (NoSuchAlgorithmException fallbackException) {
+                throw new IllegalArgumentException("Hash algorithm " + algorithm.name() + " is not supported", fallbackException);
+            }
+        }
+    }
+}
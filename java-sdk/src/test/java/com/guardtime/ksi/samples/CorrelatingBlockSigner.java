@@ -0,0 +1,193 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.blocksigner.IdentityMetadata;
+import com.guardtime.ksi.blocksigner.KsiBlockSigner;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.unisignature.Identity;
+import com.guardtime.ksi.unisignature.KSISignature;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Wrapper around {@link KsiBlockSigner} that returns the signatures keyed by a caller supplied
+ * correlation token, so that finding the signature of an item does not require scanning the whole
+ * list of signatures. The same input hash may be added any number of times with different tokens.
+ *
+ * @param <T> type of the correlation token, tokens must be unique within a block.
+ */
+public class CorrelatingBlockSigner<T> {
+
+    private final KsiBlockSigner blockSigner;
+    private final List<Item<T>> items = new ArrayList<>();
+    private final Set<T> tokens = new HashSet<>();
+
+    public CorrelatingBlockSigner(KsiBlockSigner blockSigner) {
+        if (blockSigner == null) {
+            throw new IllegalArgumentException("Block signer must be present");
+        }
+        this.blockSigner = blockSigner;
+    }
+
+    public boolean add(DataHash hash, T token) throws KSIException {
+        return add(hash, 0, null, token);
+    }
+
+    public boolean add(DataHash hash, IdentityMetadata metadata, T token) throws KSIException {
+        return add(hash, 0, metadata, token);
+    }
+
+    /**
+     * Adds the hash to the block. See {@link KsiBlockSigner#add(DataHash, long, IdentityMetadata)}.
+     *
+     * @return false if the hash did not fit into the block, the token is not registered in that case.
+     */
+    public boolean add(DataHash hash, long level, IdentityMetadata metadata, T token) throws KSIException {
+        if (token == null) {
+            throw new IllegalArgumentException("Correlation token must be present");
+        }
+        if (tokens.contains(token)) {
+            throw new IllegalArgumentException("Correlation token " + token + " has already been added");
+        }
+        if (!blockSigner.add(hash, level, metadata)) {
+            return false;
+        }
+        tokens.add(token);
+        items.add(new Item<>(hash, metadata, token));
+        return true;
+    }
+
+    /**
+     * Signs the block and correlates the signatures with the tokens in linear time.
+     *
+     * @return the signatures keyed by the correlation tokens, iterated in the order the items were added.
+     */
+    public Map<T, KSISignature> sign() throws KSIException {
+        List<KSISignature> signatures = blockSigner.sign();
+        if (signatures.size() != items.size()) {
+            throw new KSIException("Expected " + items.size() + " signatures but got " + signatures.size());
+        }
+        Map<T, KSISignature> result = new LinkedHashMap<>(items.size() * 4 / 3 + 1);
+        for (int i = 0; i < items.size(); i++) {
+            Item<T> item = items.get(i);
+            KSISignature signature = signatures.get(i);
+            if (!signature.getInputHash().equals(item.hash)) {
+                // The block signer does not guarantee the order of the signatures
+                return correlateByInputHash(signatures);
+            }
+            result.put(item.token, signature);
+        }
+        return result;
+    }
+
+    /**
+     * Groups the signatures by their input hashes. Signatures of duplicate input hashes are kept in the
+     * same order as in the given list.
+     */
+    public static Map<DataHash, List<KSISignature>> indexByInputHash(List<KSISignature> signatures) {
+        Map<DataHash, List<KSISignature>> index = new HashMap<>(signatures.size() * 4 / 3 + 1);
+        for (KSISignature signature : signatures) {
+            List<KSISignature> sameHash = index.get(signature.getInputHash());
+            if (sameHash == null) {
+                sameHash = new ArrayList<>(1);
+                index.put(signature.getInputHash(), sameHash);
+            }
+            sameHash.add(signature);
+        }
+        return index;
+    }
+
+    private Map<T, KSISignature> correlateByInputHash(List<KSISignature> signatures) throws KSIException {
+        Map<DataHash, Deque<KSISignature>> unclaimed = new HashMap<>();
+        for (Map.Entry<DataHash, List<KSISignature>> entry : indexByInputHash(signatures).entrySet()) {
+            unclaimed.put(entry.getKey(), new ArrayDeque<>(entry.getValue()));
+        }
+        Map<T, KSISignature> result = new LinkedHashMap<>(items.size() * 4 / 3 + 1);
+        for (Item<T> item : items) {
+            Deque<KSISignature> sameHash = unclaimed.get(item.hash);
+            KSISignature signature = sameHash == null ? null : claim(sameHash, item.metadata);
+            if (signature == null) {
+                throw new KSIException("No signature returned for the item " + item.token);
+            }
+            result.put(item.token, signature);
+        }
+        return result;
+    }
+
+    /**
+     * Takes a signature of a duplicate input hash. Identical hashes with different metadata get different
+     * signatures: for an item with metadata, the signature must contain an identity with the same fields;
+     * for an item without, the signature with the fewest identities is taken, as the signatures of the
+     * same block differ only by the identities of the local metadata.
+     */
+    private static KSISignature claim(Deque<KSISignature> sameHash, IdentityMetadata metadata) {
+        KSISignature claimed = null;
+        for (KSISignature signature : sameHash) {
+            Identity[] identities = signature.getAggregationHashChainIdentity();
+            if (metadata == null) {
+                if (claimed == null || identities.length < claimed.getAggregationHashChainIdentity().length) {
+                    claimed = signature;
+                }
+            } else if (containsIdentity(identities, metadata)) {
+                claimed = signature;
+                break;
+            }
+        }
+        Iterator<KSISignature> iterator = sameHash.iterator();
+        while (claimed != null && iterator.hasNext()) {
+            if (iterator.next() == claimed) {
+                iterator.remove();
+                break;
+            }
+        }
+        return claimed;
+    }
+
+    private static boolean containsIdentity(Identity[] identities, IdentityMetadata metadata) {
+        for (Identity identity : identities) {
+            if (metadata.getClientId().equals(identity.getDecodedClientId())
+                    && Objects.equals(metadata.getMachineId(), identity.getDecodedMachineId())
+                    && Objects.equals(metadata.getSequenceNumber(), identity.getSequenceNumber())
+                    && Objects.equals(metadata.getRequestTime(), identity.getRequestTime())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Item<T> {
+        private final DataHash hash;
+        private final IdentityMetadata metadata;
+        private final T token;
+
+        private Item(DataHash hash, IdentityMetadata metadata, T token) {
+            this.hash = hash;
+            this.metadata = metadata;
+            this.token = token;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.blocksigner.KsiBlockSigner;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.hashing.HashException;
+import com.guardtime.ksi.service.client.KSISigningClient;
+import com.guardtime.ksi.unisignature.KSISignature;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+
+/**
+ * Signs all the files in a directory tree. The files are hashed in parallel on a fork-join pool, each
+ * file is read through a buffer of fixed size, and the hashes are signed with {@link KsiBlockSigner}
+ * so that a single request to the KSI Gateway covers up to {@code maxBlockSize} files. The signature
+ * of every file is written next to it with the {@value #SIGNATURE_SUFFIX} suffix.
+ * <p>
+ * The directory tree is walked lazily and only one block of paths and hashes is held in memory at a
+ * time, so the memory use does not depend on the number of files.
+ */
+public class DirectorySigner implements Closeable {
+
+    public static final String SIGNATURE_SUFFIX = ".ksig";
+
+    private final KSISigningClient signingClient;
+    private final HashAlgorithm hashAlgorithm;
+    private final int maxBlockSize;
+    private final int readBufferSize;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param signingClient  client used for signing the blocks.
+     * @param hashAlgorithm  algorithm used for hashing the files.
+     * @param parallelism    number of threads used for hashing.
+     * @param maxBlockSize   maximum number of files signed with a single request.
+     * @param readBufferSize size of the buffer each hashing thread reads the files through.
+     */
+    public DirectorySigner(KSISigningClient signingClient, HashAlgorithm hashAlgorithm, int parallelism,
+                           int maxBlockSize, int readBufferSize) {
+        if (signingClient == null) {
+            throw new IllegalArgumentException("Signing client must be present");
+        }
+        if (hashAlgorithm == null) {
+            throw new IllegalArgumentException("Hash algorithm must be present");
+        }
+        if (maxBlockSize < 1) {
+            throw new IllegalArgumentException("Maximum block size must be positive");
+        }
+        if (readBufferSize < 1) {
+            throw new IllegalArgumentException("Read buffer size must be positive");
+        }
+        this.signingClient = signingClient;
+        this.hashAlgorithm = hashAlgorithm;
+        this.maxBlockSize = maxBlockSize;
+        this.readBufferSize = readBufferSize;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Signs all the regular files under the given directory, except the signature files themselves.
+     *
+     * @return number of files signed.
+     */
+    public int sign(Path directory) throws IOException, KSIException {
+        int signed = 0;
+        try (Stream<Path> files = Files.walk(directory)) {
+            Iterator<Path> iterator = files
+                    .filter(path -> Files.isRegularFile(path) && !path.toString().endsWith(SIGNATURE_SUFFIX))
+                    .iterator();
+            List<Path> block = new ArrayList<>(maxBlockSize);
+            while (iterator.hasNext()) {
+                block.add(iterator.next());
+                if (block.size() == maxBlockSize || !iterator.hasNext()) {
+                    signed += signBlock(block);
+                    block.clear();
+                }
+            }
+        }
+        return signed;
+    }
+
+    public void close() {
+        pool.shutdown();
+    }
+
+    private int signBlock(List<Path> files) throws IOException, KSIException {
+        DataHash[] hashes = new DataHash[files.size()];
+        try {
+            pool.invoke(new HashingTask(files, hashes, 0, hashes.length));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        CorrelatingBlockSigner<Path> blockSigner = new CorrelatingBlockSigner<>(new KsiBlockSigner(signingClient));
+        for (int i = 0; i < hashes.length; i++) {
+            if (!blockSigner.add(hashes[i], files.get(i))) {
+                throw new KSIException("Block of " + files.size() + " files does not fit into a single tree");
+            }
+        }
+        Map<Path, KSISignature> signatures = blockSigner.sign();
+        for (Map.Entry<Path, KSISignature> entry : signatures.entrySet()) {
+            Path file = entry.getKey();
+            try (OutputStream out = Files.newOutputStream(file.resolveSibling(file.getFileName() + SIGNATURE_SUFFIX))) {
+                entry.getValue().writeTo(out);
+            }
+        }
+        return signatures.size();
+    }
+
+    /**
+     * Hashes a range of the files, splitting the range in halves until it contains a single file.
+     */
+    private final class HashingTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> files;
+        private final DataHash[] hashes;
+        private final int from;
+        private final int to;
+
+        private HashingTask(List<Path> files, DataHash[] hashes, int from, int to) {
+            this.files = files;
+            this.hashes = hashes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new HashingTask(files, hashes, from, middle), new HashingTask(files, hashes, middle, to));
+                return;
+            }
+            Path file = files.get(from);
+            try {
+                hashes[from] = new DataHasher(hashAlgorithm).addData(file.toFile(), readBufferSize).getHash();
+            } catch (HashException e) {
+                throw new UncheckedIOException(new IOException("Hashing " + file + " failed", e));
+            }
+        }
+    }
+}
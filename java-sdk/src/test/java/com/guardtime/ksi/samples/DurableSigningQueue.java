@@ -0,0 +1,699 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.blocksigner.IdentityMetadata;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.unisignature.KSISignature;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Signing queue that survives a crash of the process. A submitted hash and its identity metadata are
+ * written to a write-ahead log before {@link #submit(DataHash, IdentityMetadata)} returns, so the
+ * document can be acknowledged without waiting for the KSI service. The hashes are then signed by an
+ * {@link AdaptiveBlockSigner} and the signatures are appended to a {@link SignatureStore}; only after the
+ * store has forced them to the disk are the records of the log marked as done.
+ * <p>
+ * The log is a directory of memory-mapped segment files of a fixed size. A record consists of its
+ * length, the CRC32 of its content, a state byte and the content; the length is written last, so a
+ * record that was only partly written is cut off by the length or the checksum when the log is opened.
+ * The submitting threads wait for a single thread that forces the log to the disk: all the records
+ * written while the previous force was running are forced together (group commit).
+ * <p>
+ * On opening, the records not marked as done are signed again. A hash that was signed but not yet marked
+ * as done when the process stopped is signed twice, so the store may hold two signatures of it. A
+ * segment is deleted once all of its records are done. Signing failures are retried after the given
+ * delay until the queue is closed; the records still pending at closing are signed after the next
+ * opening.
+ * <p>
+ * The signer and the store are not owned by the queue and are not closed by {@link #close()}; the queue
+ * must be closed before them.
+ */
+public class DurableSigningQueue implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x4b53574c;
+    private static final int SEGMENT_HEADER_LENGTH = 8;
+    private static final int RECORD_HEADER_LENGTH = 9;
+    private static final int STATE_OFFSET = 8;
+    private static final byte PENDING = 1;
+    private static final byte DONE = 2;
+    private static final int MACHINE_ID = 1;
+    private static final int SEQUENCE_NUMBER = 2;
+    private static final int REQUEST_TIME = 4;
+    private static final int METADATA = 8;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final AdaptiveBlockSigner signer;
+    private final SignatureStore store;
+    private final long retryDelayMillis;
+    private final ConcurrentLinkedQueue<SignedRecord> signed = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService retries;
+    private final Thread flusher;
+    private final Thread feeder;
+
+    // Guarded by this
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment current;
+    private long appended;
+    private long durable;
+    private long cursor;
+    private int inFlight;
+    private boolean closed;
+    private boolean stopped;
+    private IOException failure;
+
+    /**
+     * Opens the log in the given directory, or creates a new one, and starts signing the records that are
+     * not done.
+     *
+     * @param directory        directory of the log segments, created if it does not exist.
+     * @param segmentSize      size of a segment file in bytes.
+     * @param signer           signer of the hashes.
+     * @param store            store of the signatures.
+     * @param retryDelayMillis delay before signing a hash again after a failure.
+     */
+    public DurableSigningQueue(Path directory, int segmentSize, AdaptiveBlockSigner signer, SignatureStore store,
+                               long retryDelayMillis) throws IOException {
+        if (directory == null || signer == null || store == null) {
+            throw new IllegalArgumentException("Directory, signer and store must be present");
+        }
+        if (segmentSize < 4096) {
+            throw new IllegalArgumentException("Segment size must be at least 4096 bytes");
+        }
+        if (retryDelayMillis < 0) {
+            throw new IllegalArgumentException("Retry delay can not be negative");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.signer = signer;
+        this.store = store;
+        this.retryDelayMillis = retryDelayMillis;
+        open();
+        this.retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ksi-durable-signing-queue-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher = new Thread(this::flush, "ksi-durable-signing-queue-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+        this.feeder = new Thread(this::feed, "ksi-durable-signing-queue-feeder");
+        this.feeder.setDaemon(true);
+        this.feeder.start();
+    }
+
+    /**
+     * Writes the hash to the log and waits until it is on the disk.
+     *
+     * @return identifier of the record in the log.
+     * @throws IOException if the log can not be written.
+     */
+    public long submit(DataHash hash) throws IOException, InterruptedException {
+        return submit(hash, null);
+    }
+
+    /**
+     * Writes the hash and the identity metadata to be embedded into the signature to the log and waits
+     * until they are on the disk.
+     *
+     * @return identifier of the record in the log.
+     * @throws IOException if the log can not be written.
+     */
+    public long submit(DataHash hash, IdentityMetadata metadata) throws IOException, InterruptedException {
+        if (hash == null) {
+            throw new IllegalArgumentException("Hash must be present");
+        }
+        byte[] content = encode(hash, metadata);
+        if (SEGMENT_HEADER_LENGTH + RECORD_HEADER_LENGTH + content.length > segmentSize) {
+            throw new IllegalArgumentException("Record does not fit into a segment");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Queue is closed");
+            }
+            checkFailure();
+            if (current.end + RECORD_HEADER_LENGTH + content.length > segmentSize) {
+                roll();
+            }
+            int offset = current.end;
+            MappedByteBuffer buffer = current.buffer;
+            for (int i = 0; i < content.length; i++) {
+                buffer.put(offset + RECORD_HEADER_LENGTH + i, content[i]);
+            }
+            buffer.put(offset + STATE_OFFSET, PENDING);
+            buffer.putInt(offset + 4, (int) crc.getValue());
+            // The length makes the record visible
+            buffer.putInt(offset, content.length);
+            current.end += RECORD_HEADER_LENGTH + content.length;
+            current.pending++;
+            long id = position(current.number, offset);
+            long end = position(current.number, current.end);
+            appended = end;
+            notifyAll();
+            while (durable < end) {
+                checkFailure();
+                wait();
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Number of records in the log that are not done.
+     */
+    public synchronized long getPendingCount() {
+        long pending = 0;
+        for (Segment segment : segments.values()) {
+            pending += segment.pending;
+        }
+        return pending;
+    }
+
+    /**
+     * Waits until all the records in the log are done.
+     *
+     * @return false if the timeout elapsed first.
+     */
+    public synchronized boolean awaitDone(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (getPendingCount() > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Stops signing, waits for the hashes being signed and closes the log. The records that are not done
+     * are signed after the log is opened again.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        feeder.interrupt();
+        retries.shutdownNow();
+        try {
+            feeder.join();
+            synchronized (this) {
+                while (inFlight > 0) {
+                    wait();
+                }
+                stopped = true;
+                notifyAll();
+            }
+            flusher.join();
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        synchronized (this) {
+            try {
+                if (failure == null) {
+                    current.buffer.force();
+                }
+            } finally {
+                for (Segment segment : segments.values()) {
+                    segment.channel.close();
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        checkFailure();
+    }
+
+    private void open() throws IOException {
+        // Segments that were being created at a crash
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + TEMPORARY_SUFFIX)) {
+            for (Path file : stream) {
+                Files.delete(file);
+            }
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        try {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(number, Segment.open(file, number, segmentSize));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected segment file name in " + directory, e);
+        }
+        if (segments.isEmpty()) {
+            current = Segment.create(segmentFile(1), 1, segmentSize);
+            segments.put(1, current);
+        } else {
+            current = segments.lastEntry().getValue();
+            current.clearTail();
+        }
+        for (Iterator<Segment> iterator = segments.values().iterator(); iterator.hasNext(); ) {
+            Segment segment = iterator.next();
+            if (segment.pending == 0 && segment != current) {
+                iterator.remove();
+                segment.delete();
+            }
+        }
+        appended = position(current.number, current.end);
+        durable = appended;
+        cursor = position(segments.firstKey(), SEGMENT_HEADER_LENGTH);
+    }
+
+    /**
+     * Forces the current segment to the disk and starts the next one.
+     */
+    private void roll() throws IOException {
+        current.buffer.force();
+        int number = current.number + 1;
+        current = Segment.create(segmentFile(number), number, segmentSize);
+        segments.put(number, current);
+        if (durable < position(number, 0)) {
+            durable = position(number, 0);
+        }
+    }
+
+    /**
+     * Forces the records to the disk, appends the signatures to the store and marks their records as done.
+     */
+    private void flush() {
+        try {
+            while (true) {
+                long target;
+                Segment segment;
+                boolean force;
+                synchronized (this) {
+                    while (!stopped && durable == appended && signed.isEmpty()) {
+                        wait();
+                    }
+                    if (stopped && durable == appended && signed.isEmpty()) {
+                        return;
+                    }
+                    target = appended;
+                    segment = current;
+                    force = durable < target;
+                }
+                if (force) {
+                    // The records written meanwhile are forced together with the next round
+                    segment.buffer.force();
+                    synchronized (this) {
+                        durable = Math.max(durable, target);
+                        notifyAll();
+                    }
+                }
+                persistSigned();
+            }
+        } catch (IOException | KSIException | RuntimeException e) {
+            synchronized (this) {
+                failure = e instanceof IOException ? (IOException) e : new IOException("Persisting signatures failed", e);
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void persistSigned() throws IOException, KSIException {
+        List<SignedRecord> records = new ArrayList<>();
+        SignedRecord record;
+        while ((record = signed.poll()) != null) {
+            records.add(record);
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+        List<KSISignature> signatures = new ArrayList<>(records.size());
+        for (SignedRecord signedRecord : records) {
+            signatures.add(signedRecord.signature);
+        }
+        store.append(signatures);
+        store.sync();
+        synchronized (this) {
+            for (SignedRecord signedRecord : records) {
+                Segment segment = segments.get((int) (signedRecord.id >>> 32));
+                segment.buffer.put((int) signedRecord.id + STATE_OFFSET, DONE);
+                segment.pending--;
+                if (segment.pending == 0 && segment != current) {
+                    segments.remove(segment.number);
+                    segment.delete();
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Reads the records forced to the disk and passes the pending ones to the signer.
+     */
+    private void feed() {
+        try {
+            while (true) {
+                List<Record> records = new ArrayList<>();
+                synchronized (this) {
+                    while (!closed && cursor >= durable) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    readRecords(records, 1000);
+                }
+                for (Record record : records) {
+                    sign(record);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the records from the cursor up to the records forced to the disk.
+     */
+    private void readRecords(List<Record> records, int maxRecords) {
+        while (cursor < durable && records.size() < maxRecords) {
+            int number = (int) (cursor >>> 32);
+            int offset = (int) cursor;
+            // Segments of done records may have been deleted
+            Map.Entry<Integer, Segment> entry = segments.ceilingEntry(number);
+            if (entry.getKey() != number) {
+                cursor = position(entry.getKey(), SEGMENT_HEADER_LENGTH);
+                continue;
+            }
+            Segment segment = entry.getValue();
+            if (offset >= segment.end) {
+                cursor = position(number + 1, SEGMENT_HEADER_LENGTH);
+                continue;
+            }
+            int length = segment.buffer.getInt(offset);
+            if (segment.buffer.get(offset + STATE_OFFSET) == PENDING) {
+                byte[] content = new byte[length];
+                ByteBuffer source = segment.buffer.duplicate();
+                source.position(offset + RECORD_HEADER_LENGTH);
+                source.get(content);
+                records.add(decode(position(number, offset), content));
+            }
+            cursor = position(number, offset + RECORD_HEADER_LENGTH + length);
+        }
+    }
+
+    private void sign(Record record) throws InterruptedException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            inFlight++;
+        }
+        boolean submitted = false;
+        try {
+            signer.submit(record.hash, record.metadata).whenComplete((signature, error) -> {
+                if (error == null) {
+                    signed.add(new SignedRecord(record.id, signature));
+                } else {
+                    retry(record);
+                }
+                signDone();
+            });
+            submitted = true;
+        } catch (RejectedExecutionException | IllegalStateException e) {
+            retry(record);
+        } finally {
+            // Also when interrupted by closing while waiting for room in the signer
+            if (!submitted) {
+                signDone();
+            }
+        }
+    }
+
+    private void retry(Record record) {
+        try {
+            retries.schedule(() -> {
+                try {
+                    sign(record);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, retryDelayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed, the record is signed after the next opening
+        }
+    }
+
+    private synchronized void signDone() {
+        inFlight--;
+        notifyAll();
+    }
+
+    private synchronized void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Write-ahead log failed", failure);
+        }
+    }
+
+    private static byte[] encode(DataHash hash, IdentityMetadata metadata) {
+        ByteBuffer buffer;
+        byte[] imprint = hash.getImprint();
+        if (metadata == null) {
+            buffer = ByteBuffer.allocate(2 + imprint.length);
+            buffer.put((byte) imprint.length).put(imprint).put((byte) 0);
+            return buffer.array();
+        }
+        byte[] clientId = metadata.getClientId().getBytes(StandardCharsets.UTF_8);
+        byte[] machineId = metadata.getMachineId() != null ? metadata.getMachineId().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int flags = METADATA | (metadata.getMachineId() != null ? MACHINE_ID : 0)
+                | (metadata.getSequenceNumber() != null ? SEQUENCE_NUMBER : 0)
+                | (metadata.getRequestTime() != null ? REQUEST_TIME : 0);
+        buffer = ByteBuffer.allocate(2 + imprint.length + 4 + clientId.length + machineId.length + 16);
+        buffer.put((byte) imprint.length).put(imprint).put((byte) flags);
+        buffer.putShort((short) clientId.length).put(clientId);
+        buffer.putShort((short) machineId.length).put(machineId);
+        if (metadata.getSequenceNumber() != null) {
+            buffer.putLong(metadata.getSequenceNumber());
+        }
+        if (metadata.getRequestTime() != null) {
+            buffer.putLong(metadata.getRequestTime());
+        }
+        byte[] content = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(content);
+        return content;
+    }
+
+    private static Record decode(long id, byte[] content) {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        byte[] imprint = new byte[buffer.get() & 0xFF];
+        buffer.get(imprint);
+        int flags = buffer.get();
+        IdentityMetadata metadata = null;
+        if ((flags & METADATA) != 0) {
+            byte[] clientId = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(clientId);
+            byte[] machineId = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(machineId);
+            metadata = new IdentityMetadata(new String(clientId, StandardCharsets.UTF_8),
+                    (flags & MACHINE_ID) != 0 ? new String(machineId, StandardCharsets.UTF_8) : null,
+                    (flags & SEQUENCE_NUMBER) != 0 ? buffer.getLong() : null,
+                    (flags & REQUEST_TIME) != 0 ? buffer.getLong() : null);
+        }
+        return new Record(id, new DataHash(imprint), metadata);
+    }
+
+    private static long position(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private Path segmentFile(int number) {
+        return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Mapped segment file. It begins with a header, followed by the records; the space after the last
+     * record is zeroes.
+     */
+    private static final class Segment {
+
+        private final Path file;
+        private final int number;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int end = SEGMENT_HEADER_LENGTH;
+        private long pending;
+
+        private Segment(Path file, int number, FileChannel channel, int size) throws IOException {
+            this.file = file;
+            this.number = number;
+            this.channel = channel;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        /**
+         * Creates the segment with its header in a temporary file and moves it in place, so that a crash
+         * never leaves a segment without the header or of a wrong size behind.
+         */
+        static Segment create(Path file, int number, int size) throws IOException {
+            if (Files.exists(file)) {
+                throw new FileAlreadyExistsException(file.toString());
+            }
+            Path temporaryFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), TEMPORARY_SUFFIX);
+            try {
+                try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+                    ByteBuffer header = ByteBuffer.allocate(4).putInt(0, MAGIC);
+                    while (header.hasRemaining()) {
+                        channel.write(header);
+                    }
+                    // Extends the file to the segment size
+                    channel.write(ByteBuffer.allocate(1), size - 1);
+                    channel.force(true);
+                }
+                Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporaryFile);
+            }
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                return new Segment(file, number, channel, size);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Opens the segment and finds the end of its complete records.
+         */
+        static Segment open(Path file, int number, int size) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                if (channel.size() != size) {
+                    throw new IOException(file + " is not of the segment size " + size);
+                }
+                Segment segment = new Segment(file, number, channel, size);
+                if (segment.buffer.getInt(0) != MAGIC) {
+                    throw new IOException(file + " is not a write-ahead log segment");
+                }
+                segment.scan();
+                return segment;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private void scan() {
+            CRC32 crc = new CRC32();
+            while (end + RECORD_HEADER_LENGTH <= buffer.limit()) {
+                int length = buffer.getInt(end);
+                byte state = buffer.get(end + STATE_OFFSET);
+                if (length <= 0 || length > buffer.limit() - end - RECORD_HEADER_LENGTH || (state != PENDING && state != DONE)) {
+                    return;
+                }
+                ByteBuffer content = buffer.duplicate();
+                content.position(end + RECORD_HEADER_LENGTH).limit(end + RECORD_HEADER_LENGTH + length);
+                crc.reset();
+                crc.update(content);
+                if ((int) crc.getValue() != buffer.getInt(end + 4)) {
+                    return;
+                }
+                if (state == PENDING) {
+                    pending++;
+                }
+                end += RECORD_HEADER_LENGTH + length;
+            }
+        }
+
+        /**
+         * Zeroes what remains of a partly written record, so that it is not mistaken for a record later.
+         */
+        void clearTail() {
+            for (int i = end; i < buffer.limit(); i++) {
+                if (buffer.get(i) != 0) {
+                    buffer.put(i, (byte) 0);
+                }
+            }
+            buffer.force();
+        }
+
+        void delete() throws IOException {
+            channel.close();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static final class Record {
+
+        private final long id;
+        private final DataHash hash;
+        private final IdentityMetadata metadata;
+
+        private Record(long id, DataHash hash, IdentityMetadata metadata) {
+            this.id = id;
+            this.hash = hash;
+            this.metadata = metadata;
+        }
+    }
+
+    private static final class SignedRecord {
+
+        private final long id;
+        private final KSISignature signature;
+
+        private SignedRecord(long id, KSISignature signature) {
+            this.id = id;
+            this.signature = signature;
+        }
+    }
+}
@@ -15,24 +15,47 @@
 package com.guardtime.ksi.samples;
 
 import com.guardtime.ksi.Extender;
+import com.guardtime.ksi.ExtenderBuilder;
 import com.guardtime.ksi.PublicationsHandler;
 import com.guardtime.ksi.Reader;
 import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.pdu.ExtenderConfiguration;
+import com.guardtime.ksi.pdu.ExtensionResponse;
 import com.guardtime.ksi.publication.PublicationData;
 import com.guardtime.ksi.publication.PublicationRecord;
+import com.guardtime.ksi.service.ConfigurationListener;
+import com.guardtime.ksi.service.Future;
+import com.guardtime.ksi.service.KSIExtendingClientServiceAdapter;
+import com.guardtime.ksi.service.KSIExtendingService;
 import com.guardtime.ksi.unisignature.KSISignature;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Samples related to extending KSI signatures.
  */
 public class ExtendingSamples extends KsiSamples {
 
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     /**
      * Check if signature has been extended to a publication or not.
      */
@@ -66,6 +89,25 @@ public class ExtendingSamples extends KsiSamples {
         }
     }
 
+    /**
+     * Finds the first publication after each of the given dates at once. When many signatures are
+     * extended, look up their publications this way: the publication records are indexed by time and
+     * each lookup is a binary search instead of a scan over the whole publications file.
+     */
+    @Test
+    public void findPublicationsForManyDates() throws KSIException, ParseException {
+        IndexedPublicationsFile publicationsFile = new IndexingPublicationsHandler(getPublicationsHandler()).getPublicationsFile();
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+        Date[] dates = new Date[]{dateFormat.parse("2016-02-01"), dateFormat.parse("2017-06-30"), dateFormat.parse("2018-03-15")};
+        PublicationRecord[] publicationRecords = publicationsFile.getPublicationRecords(dates);
+
+        for (int i = 0; i < dates.length; i++) {
+            System.out.println("findPublicationsForManyDates > " + dateFormat.format(dates[i]) + " > publication time > "
+                    + (publicationRecords[i] != null ? publicationRecords[i].getPublicationTime() : "none yet"));
+        }
+    }
+
     /**
      * Extends the given signature to the latest publication found in the publications file in case
      * the signature was not extended or was extended to an earlier publication.
@@ -123,6 +165,81 @@ public class ExtendingSamples extends KsiSamples {
         // ...
     }
 
+    /**
+     * Extends several signatures of the same aggregation round to the same publication. The calendar
+     * hash chain is the same for all of them, with the {@link CachingExtendingService} only the first
+     * signature needs a request to the Extender and the rest are extended locally.
+     */
+    @Test
+    public void extendSignaturesOfSameRound() throws IOException, KSIException {
+        Reader reader = getReader();
+        CachingExtendingService extendingService = new CachingExtendingService(
+                new KSIExtendingClientServiceAdapter(getKsiExtenderClient()), 10000, TimeUnit.HOURS.toMillis(1));
+        Extender extender = new ExtenderBuilder().setExtendingService(extendingService)
+                .setPublicationsHandler(getPublicationsHandler()).build();
+
+        for (int i = 0; i < 5; i++) {
+            KSISignature signature = reader.read(getFile("signme.txt.unextended-ksig"));
+            KSISignature extendedSignature = extender.extend(signature);
+            System.out.println("extendSignaturesOfSameRound > signature extended to publication > "
+                    + extendedSignature.getPublicationRecord().getPublicationTime());
+        }
+
+        System.out.println("extendSignaturesOfSameRound > requests to Extender > " + extendingService.getMissCount()
+                + ", extended locally > " + extendingService.getHitCount());
+    }
+
+    /**
+     * Extends all the signatures in an archive directory to the latest publication. The signatures
+     * already extended to it are skipped, the rest are extended with one request to the Extender per
+     * aggregation round. The progress is saved to a checkpoint file, if the job is interrupted, running
+     * it again continues where it stopped.
+     */
+    @Test
+    public void reExtendArchive() throws IOException, KSIException {
+        // Set up a sample archive, with signatures in nested directories
+        Path archive = temporaryFolder.newFolder("ksi-archive").toPath();
+        for (int i = 0; i < 10; i++) {
+            Path directory = Files.createDirectories(archive.resolve("2018").resolve("01").resolve(Integer.toString(i % 3)));
+            Files.copy(getFile("signme.txt.unextended-ksig").toPath(), directory.resolve("document-" + i + ".ksig"));
+        }
+        Files.copy(getFile("signme.txt.extended-ksig").toPath(), archive.resolve("extended.ksig"));
+        Path checkpointFile = archive.resolveSibling(archive.getFileName() + ".checkpoint");
+        KSIExtendingService extendingService = new KSIExtendingClientServiceAdapter(getKsiExtenderClient());
+
+        // The first run is interrupted by a crash at the second request, after the first batch of 4 files
+        try {
+            new BulkReExtender(new CrashingExtendingService(extendingService, 1), getPublicationsHandler(), 4, 10.0, 4)
+                    .run(archive, ".ksig", checkpointFile);
+            fail("Re-extending should have been interrupted");
+        } catch (KSIException expected) {
+            System.out.println("reExtendArchive > interrupted > " + expected.getMessage());
+        }
+        assertTrue(Files.isRegularFile(checkpointFile));
+
+        // The second run continues after the checkpoint, the files of the first batch are not read again
+        BulkReExtender reExtender = new BulkReExtender(extendingService, getPublicationsHandler(), 4, 10.0, 4);
+        BulkReExtender.Summary summary = reExtender.run(archive, ".ksig", checkpointFile);
+
+        System.out.println("reExtendArchive > " + summary);
+        assertEquals(11, summary.getScanned());
+        assertEquals(0, summary.getUpToDate());
+        assertEquals(11, summary.getExtended());
+        assertEquals(0, summary.getFailed());
+
+        Date latestPublicationTime = getPublicationsHandler().getPublicationsFile().getLatestPublication().getPublicationTime();
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(archive)) {
+            files = stream.filter(file -> file.toString().endsWith(".ksig")).collect(Collectors.toList());
+        }
+        assertEquals(11, files.size());
+        for (Path file : files) {
+            KSISignature signature = getReader().read(file.toFile());
+            assertTrue(signature.isExtended());
+            assertEquals(latestPublicationTime, signature.getPublicationRecord().getPublicationTime());
+        }
+    }
+
     /**
      * Extends signature to a given date.
      */
@@ -181,4 +298,42 @@ public class ExtendingSamples extends KsiSamples {
             System.out.println("extendToGivenPublicationCode > signature not extended");
         }
     }
+
+    /**
+     * Extending service that fails with an unchecked exception after the given number of requests, as a
+     * stand-in for a crashed job.
+     */
+    private static final class CrashingExtendingService implements KSIExtendingService {
+
+        private final KSIExtendingService extendingService;
+        private final AtomicInteger remainingRequests;
+
+        private CrashingExtendingService(KSIExtendingService extendingService, int requests) {
+            this.extendingService = extendingService;
+            this.remainingRequests = new AtomicInteger(requests);
+        }
+
+        public Future<ExtensionResponse> extend(Date aggregationTime, Date publicationTime) throws KSIException {
+            if (remainingRequests.getAndDecrement() <= 0) {
+                throw new IllegalStateException("Simulated crash");
+            }
+            return extendingService.extend(aggregationTime, publicationTime);
+        }
+
+        public List<KSIExtendingService> getSubExtendingServices() {
+            return extendingService.getSubExtendingServices();
+        }
+
+        public void registerExtenderConfigurationListener(ConfigurationListener<ExtenderConfiguration> listener) {
+            extendingService.registerExtenderConfigurationListener(listener);
+        }
+
+        public Future<ExtenderConfiguration> getExtendingConfiguration() {
+            return extendingService.getExtendingConfiguration();
+        }
+
+        public void close() throws IOException {
+            // The wrapped service is shared with the resumed run
+        }
+    }
 }
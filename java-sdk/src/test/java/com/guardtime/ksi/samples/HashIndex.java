@@ -0,0 +1,355 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Persistent index from document hashes to signature locations, e.g. the locations returned by
+ * {@link SignatureStore#append(com.guardtime.ksi.unisignature.KSISignature)} or offsets in a file of
+ * signatures.
+ * <p>
+ * The index is a memory-mapped file holding an open-addressing hash table with linear probing. Each
+ * slot holds the location and the digest of the hash, so there are no objects per entry and the entries
+ * are not on the Java heap; a lookup reads a few bytes of the mapped file. The digests are already
+ * evenly distributed, so the first bytes of the digest select the slot. All the hashes in an index must
+ * be of the same algorithm. When the table gets three quarters full, it is rewritten into a file twice
+ * the size.
+ * <p>
+ * The lookups do not block each other and may run concurrently with the updates.
+ */
+public class HashIndex implements Closeable {
+
+    /**
+     * Returned by {@link #get(DataHash)} if the hash is not in the index.
+     */
+    public static final long NOT_FOUND = -1;
+
+    private static final int MAGIC = 0x4b534958;
+    private static final int HEADER_LENGTH = 32;
+    private static final int COUNT_OFFSET = 16;
+    private static final int MAX_CHUNK_SIZE = 1 << 30;
+    private static final long MIN_CAPACITY = 16;
+
+    private final Path file;
+    private final HashAlgorithm algorithm;
+    private final int slotSize;
+    private final StampedLock lock = new StampedLock();
+    private volatile Table table;
+
+    /**
+     * Opens the index in the given file or creates a new one.
+     *
+     * @param file            index file.
+     * @param algorithm       algorithm of the hashes in the index.
+     * @param initialCapacity number of entries expected, used when the index is created.
+     */
+    public HashIndex(Path file, HashAlgorithm algorithm, long initialCapacity) throws IOException {
+        if (file == null || algorithm == null) {
+            throw new IllegalArgumentException("File and hash algorithm must be present");
+        }
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Initial capacity can not be negative");
+        }
+        this.file = file;
+        this.algorithm = algorithm;
+        this.slotSize = 8 + algorithm.getLength();
+        if (Files.exists(file)) {
+            this.table = Table.open(file, algorithm, slotSize);
+        } else {
+            Path temporaryFile = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            Table created = Table.create(temporaryFile, algorithm, slotSize, capacityFor(initialCapacity));
+            created.close();
+            Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE);
+            this.table = Table.open(file, algorithm, slotSize);
+        }
+    }
+
+    /**
+     * Returns the location of the given hash, or {@link #NOT_FOUND} if it is not in the index.
+     */
+    public long get(DataHash hash) {
+        if (hash.getAlgorithm() != algorithm) {
+            return NOT_FOUND;
+        }
+        byte[] digest = hash.getValue();
+        long stamp = lock.tryOptimisticRead();
+        long value = table.find(digest);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                value = table.find(digest);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Sets the location of the given hash, replacing the previous location if there is one.
+     *
+     * @param location non-negative location.
+     */
+    public void put(DataHash hash, long location) throws IOException {
+        if (hash.getAlgorithm() != algorithm) {
+            throw new IllegalArgumentException("Hash algorithm " + hash.getAlgorithm().getName()
+                    + " does not match the index algorithm " + algorithm.getName());
+        }
+        if (location < 0 || location == Long.MAX_VALUE) {
+            throw new IllegalArgumentException("Location must be non-negative");
+        }
+        byte[] digest = hash.getValue();
+        long stamp = lock.writeLock();
+        try {
+            if (table.count() >= table.capacity / 4 * 3) {
+                grow();
+            }
+            table.put(digest, location);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Number of hashes in the index.
+     */
+    public long size() {
+        return table.count();
+    }
+
+    /**
+     * Forces the changes of the index to the disk.
+     */
+    public void sync() {
+        table.force();
+    }
+
+    public void close() throws IOException {
+        long stamp = lock.writeLock();
+        try {
+            table.force();
+            table.close();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void grow() throws IOException {
+        Table current = table;
+        Path temporaryFile = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            Table grown = Table.create(temporaryFile, algorithm, slotSize, current.capacity * 2);
+            byte[] digest = new byte[algorithm.getLength()];
+            for (long slot = 0; slot < current.capacity; slot++) {
+                long value = current.value(slot);
+                if (value != 0) {
+                    current.digest(slot, digest);
+                    grown.put(digest, value - 1);
+                }
+            }
+            grown.force();
+            grown.close();
+            current.close();
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+        table = Table.open(file, algorithm, slotSize);
+    }
+
+    private static long capacityFor(long entries) {
+        long capacity = MIN_CAPACITY;
+        while (capacity / 4 * 3 <= entries) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Mapped hash table. The file begins with a header, followed by the slots. A slot holds the location
+     * plus one, zero meaning an empty slot, and the digest. The file is mapped in chunks of a whole number
+     * of slots, as a single mapping can not exceed 2 GB.
+     */
+    private static final class Table {
+
+        private final FileChannel channel;
+        private final MappedByteBuffer header;
+        private final MappedByteBuffer[] chunks;
+        private final int slotSize;
+        private final int digestLength;
+        private final long capacity;
+        private final long mask;
+        private final int chunkShift;
+        private final long chunkMask;
+
+        private Table(FileChannel channel, int slotSize, long capacity) throws IOException {
+            this.channel = channel;
+            this.slotSize = slotSize;
+            this.digestLength = slotSize - 8;
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            long slotsPerChunk = Math.min(Long.highestOneBit(MAX_CHUNK_SIZE / slotSize), capacity);
+            this.chunkShift = Long.numberOfTrailingZeros(slotsPerChunk);
+            this.chunkMask = slotsPerChunk - 1;
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH);
+            this.chunks = new MappedByteBuffer[(int) (capacity / slotsPerChunk)];
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_LENGTH + i * slotsPerChunk * slotSize, slotsPerChunk * slotSize);
+            }
+        }
+
+        static Table create(Path file, HashAlgorithm algorithm, int slotSize, long capacity) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            try {
+                channel.truncate(0);
+                Table table = new Table(channel, slotSize, capacity);
+                table.header.putInt(0, MAGIC);
+                table.header.putInt(4, algorithm.getId());
+                table.header.putLong(8, capacity);
+                table.header.putLong(COUNT_OFFSET, 0);
+                return table;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        static Table open(Path file, HashAlgorithm algorithm, int slotSize) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+                if (header.getInt(0) != MAGIC) {
+                    throw new IOException(file + " is not a hash index");
+                }
+                if (header.getInt(4) != algorithm.getId()) {
+                    throw new IOException(file + " is an index of hash algorithm " + HashAlgorithm.getById(header.getInt(4)).getName());
+                }
+                long capacity = header.getLong(8);
+                if (capacity < MIN_CAPACITY || Long.bitCount(capacity) != 1
+                        || channel.size() != HEADER_LENGTH + capacity * slotSize) {
+                    throw new IOException(file + " is corrupted");
+                }
+                return new Table(channel, slotSize, capacity);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        long find(byte[] digest) {
+            long slot = start(digest);
+            for (long probes = 0; probes < capacity; probes++, slot = (slot + 1) & mask) {
+                long value = value(slot);
+                if (value == 0) {
+                    return NOT_FOUND;
+                }
+                if (matches(slot, digest)) {
+                    return value - 1;
+                }
+            }
+            return NOT_FOUND;
+        }
+
+        void put(byte[] digest, long location) {
+            long slot = start(digest);
+            while (true) {
+                long value = value(slot);
+                if (value == 0) {
+                    // The digest is written before the value that makes the slot visible
+                    MappedByteBuffer chunk = chunk(slot);
+                    int position = position(slot);
+                    for (int i = 0; i < digestLength; i++) {
+                        chunk.put(position + 8 + i, digest[i]);
+                    }
+                    chunk.putLong(position, location + 1);
+                    header.putLong(COUNT_OFFSET, count() + 1);
+                    return;
+                }
+                if (matches(slot, digest)) {
+                    chunk(slot).putLong(position(slot), location + 1);
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        long value(long slot) {
+            return chunk(slot).getLong(position(slot));
+        }
+
+        void digest(long slot, byte[] digest) {
+            MappedByteBuffer chunk = chunk(slot);
+            int position = position(slot) + 8;
+            for (int i = 0; i < digestLength; i++) {
+                digest[i] = chunk.get(position + i);
+            }
+        }
+
+        long count() {
+            return header.getLong(COUNT_OFFSET);
+        }
+
+        void force() {
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+            header.force();
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+
+        private boolean matches(long slot, byte[] digest) {
+            MappedByteBuffer chunk = chunk(slot);
+            int position = position(slot) + 8;
+            for (int i = 0; i < digestLength; i++) {
+                if (chunk.get(position + i) != digest[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private long start(byte[] digest) {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | (digest[i] & 0xFF);
+            }
+            return bits & mask;
+        }
+
+        private MappedByteBuffer chunk(long slot) {
+            return chunks[(int) (slot >>> chunkShift)];
+        }
+
+        private int position(long slot) {
+            return (int) ((slot & chunkMask) * slotSize);
+        }
+    }
+}
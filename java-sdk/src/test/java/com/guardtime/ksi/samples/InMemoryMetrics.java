@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics kept in memory: a latency {@link Histogram} of each operation, a histogram of the block sizes,
+ * the bytes sent and received, the failures by operation and error code, and the hit ratios of the
+ * registered caches. The histograms and counters of the operations are created up front, so recording
+ * is lock-free and does not allocate; only the first failure with a new error code adds a counter.
+ */
+public class InMemoryMetrics implements KsiMetrics {
+
+    private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> failedOperations = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> bytesSent = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> bytesReceived = new EnumMap<>(Operation.class);
+    private final Histogram blockSizes = new Histogram();
+    private final ConcurrentMap<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CacheStatistics> caches = new ConcurrentHashMap<>();
+
+    public InMemoryMetrics() {
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new Histogram());
+            failedOperations.put(operation, new LongAdder());
+            bytesSent.put(operation, new LongAdder());
+            bytesReceived.put(operation, new LongAdder());
+        }
+    }
+
+    public void recordLatency(Operation operation, long nanos, boolean succeeded) {
+        latencies.get(operation).record(nanos);
+        if (!succeeded) {
+            failedOperations.get(operation).increment();
+        }
+    }
+
+    public void recordBlockSize(int size) {
+        blockSizes.record(size);
+    }
+
+    public void recordBytes(Operation operation, long sent, long received) {
+        bytesSent.get(operation).add(sent);
+        bytesReceived.get(operation).add(received);
+    }
+
+    public void recordFailure(Operation operation, String errorCode) {
+        String key = operation + " " + errorCode;
+        LongAdder counter = failures.get(key);
+        if (counter == null) {
+            counter = failures.computeIfAbsent(key, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    public void registerCache(String name, CacheStatistics cache) {
+        caches.put(name, cache);
+    }
+
+    public Histogram getLatencies(Operation operation) {
+        return latencies.get(operation);
+    }
+
+    public Histogram getBlockSizes() {
+        return blockSizes;
+    }
+
+    public long getBytesSent(Operation operation) {
+        return bytesSent.get(operation).sum();
+    }
+
+    public long getBytesReceived(Operation operation) {
+        return bytesReceived.get(operation).sum();
+    }
+
+    /**
+     * Number of failures by operation and error code, e.g. "VERIFY INT-03".
+     */
+    public Map<String, Long> getFailures() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : failures.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    /**
+     * Share of the cache hits among the accesses of the registered cache, or NaN if it has not been
+     * accessed.
+     */
+    public double getHitRatio(String cache) {
+        CacheStatistics statistics = caches.get(cache);
+        if (statistics == null) {
+            throw new IllegalArgumentException("Cache " + cache + " is not registered");
+        }
+        long hits = statistics.getHitCount();
+        long total = hits + statistics.getMissCount();
+        return total == 0 ? Double.NaN : (double) hits / total;
+    }
+
+    /**
+     * Summary of the metrics, one line for each operation that has been recorded, block sizes, cache and
+     * failure.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Operation operation : Operation.values()) {
+            Histogram histogram = latencies.get(operation);
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            builder.append(String.format("%s: count %d, failed %d, mean %.2f ms, p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms",
+                    operation, histogram.getCount(), failedOperations.get(operation).sum(), histogram.getMean() / 1e6,
+                    millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(99)),
+                    millis(histogram.getValueAtPercentile(99.9)), millis(histogram.getMax())));
+            if (getBytesSent(operation) > 0 || getBytesReceived(operation) > 0) {
+                builder.append(", sent ").append(getBytesSent(operation)).append(" B, received ")
+                        .append(getBytesReceived(operation)).append(" B");
+            }
+            builder.append('\n');
+        }
+        if (blockSizes.getCount() > 0) {
+            builder.append(String.format("blocks: count %d, mean %.1f, p50 %d, max %d%n", blockSizes.getCount(),
+                    blockSizes.getMean(), blockSizes.getValueAtPercentile(50), blockSizes.getMax()));
+        }
+        for (String cache : new TreeMap<>(caches).keySet()) {
+            builder.append(String.format("cache %s: hit ratio %.3f%n", cache, getHitRatio(cache)));
+        }
+        for (Map.Entry<String, Long> failure : getFailures().entrySet()) {
+            builder.append("failure ").append(failure.getKey()).append(": ").append(failure.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.publication.PublicationRecord;
+import com.guardtime.ksi.publication.PublicationsFile;
+import com.guardtime.ksi.publication.inmemory.CertificateNotFoundException;
+
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Publications file with the publication records indexed by publication time. The
+ * {@link #getPublicationRecord(Date)} lookup is a binary search over a sorted array of times instead
+ * of a scan over all the records, and returns the same record as the wrapped publications file: the
+ * earliest publication made at or after the given time.
+ * <p>
+ * The index is immutable and built once in the constructor, a changed publications file gets a new
+ * instance.
+ */
+public class IndexedPublicationsFile implements PublicationsFile {
+
+    private final PublicationsFile publicationsFile;
+    private final long[] publicationTimes;
+    private final PublicationRecord[] publicationRecords;
+
+    public IndexedPublicationsFile(PublicationsFile publicationsFile) {
+        if (publicationsFile == null) {
+            throw new IllegalArgumentException("Publications file must be present");
+        }
+        this.publicationsFile = publicationsFile;
+
+        // Stable sort keeps the first one of the records with the same time in front, as the scan does
+        List<PublicationRecord> sorted = new ArrayList<>(publicationsFile.getPublicationRecords());
+        Collections.sort(sorted, new Comparator<PublicationRecord>() {
+            public int compare(PublicationRecord first, PublicationRecord second) {
+                return first.getPublicationTime().compareTo(second.getPublicationTime());
+            }
+        });
+        long[] times = new long[sorted.size()];
+        PublicationRecord[] records = new PublicationRecord[sorted.size()];
+        int count = 0;
+        for (PublicationRecord record : sorted) {
+            long time = record.getPublicationTime().getTime();
+            if (count == 0 || times[count - 1] != time) {
+                times[count] = time;
+                records[count] = record;
+                count++;
+            }
+        }
+        this.publicationTimes = count == times.length ? times : Arrays.copyOf(times, count);
+        this.publicationRecords = count == records.length ? records : Arrays.copyOf(records, count);
+    }
+
+    /**
+     * Returns the earliest publication record with the publication time at or after the given time, or
+     * null if there is no such record.
+     */
+    public PublicationRecord getPublicationRecord(Date time) {
+        int index = ceilingIndex(time.getTime());
+        return index < publicationRecords.length ? publicationRecords[index] : null;
+    }
+
+    /**
+     * Looks up the publication records for many times at once, see {@link #getPublicationRecord(Date)}.
+     *
+     * @return the records in the order of the times, null for the times with no publication after them.
+     */
+    public PublicationRecord[] getPublicationRecords(Date[] times) {
+        PublicationRecord[] result = new PublicationRecord[times.length];
+        for (int i = 0; i < times.length; i++) {
+            result[i] = getPublicationRecord(times[i]);
+        }
+        return result;
+    }
+
+    public PublicationRecord getLatestPublication() throws KSIException {
+        return publicationsFile.getLatestPublication();
+    }
+
+    public List<PublicationRecord> getPublicationRecords() {
+        return publicationsFile.getPublicationRecords();
+    }
+
+    public Certificate findCertificateById(byte[] certificateId) throws CertificateNotFoundException {
+        return publicationsFile.findCertificateById(certificateId);
+    }
+
+    public String getName() {
+        return publicationsFile.getName();
+    }
+
+    /**
+     * Returns the publications file the index was built for.
+     */
+    public PublicationsFile getPublicationsFile() {
+        return publicationsFile;
+    }
+
+    private int ceilingIndex(long time) {
+        int low = 0;
+        int high = publicationTimes.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (publicationTimes[middle] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
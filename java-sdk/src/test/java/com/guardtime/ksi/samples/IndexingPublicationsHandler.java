@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.PublicationsHandler;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.publication.PublicationsFile;
+
+/**
+ * Publications handler returning the publications file of another handler as an
+ * {@link IndexedPublicationsFile}. The index is built again only when the other handler returns a new
+ * publications file, e.g. after its cache has expired, and is replaced as a whole, so a lookup never
+ * sees a half-built index.
+ */
+public class IndexingPublicationsHandler implements PublicationsHandler {
+
+    private final PublicationsHandler publicationsHandler;
+    private volatile IndexedPublicationsFile indexedPublicationsFile;
+
+    public IndexingPublicationsHandler(PublicationsHandler publicationsHandler) {
+        if (publicationsHandler == null) {
+            throw new IllegalArgumentException("Publications handler must be present");
+        }
+        this.publicationsHandler = publicationsHandler;
+    }
+
+    public IndexedPublicationsFile getPublicationsFile() throws KSIException {
+        PublicationsFile publicationsFile = publicationsHandler.getPublicationsFile();
+        if (publicationsFile instanceof IndexedPublicationsFile) {
+            return (IndexedPublicationsFile) publicationsFile;
+        }
+        IndexedPublicationsFile current = indexedPublicationsFile;
+        if (current == null || current.getPublicationsFile() != publicationsFile) {
+            current = new IndexedPublicationsFile(publicationsFile);
+            indexedPublicationsFile = current;
+        }
+        return current;
+    }
+}
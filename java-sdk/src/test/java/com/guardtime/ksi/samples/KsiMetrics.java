@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+/**
+ * Receiver of the measurements of the {@link Metered} signers, extenders, verifiers and clients. An
+ * implementation passes them on to the metrics library of the application, or keeps them itself like
+ * {@link InMemoryMetrics}. The methods are called on the threads doing the work, so they must be
+ * thread-safe and should not block.
+ */
+public interface KsiMetrics {
+
+    /**
+     * Does nothing.
+     */
+    KsiMetrics NONE = new KsiMetrics() {
+        public void recordLatency(Operation operation, long nanos, boolean succeeded) {
+        }
+
+        public void recordBlockSize(int size) {
+        }
+
+        public void recordBytes(Operation operation, long sent, long received) {
+        }
+
+        public void recordFailure(Operation operation, String errorCode) {
+        }
+
+        public void registerCache(String name, CacheStatistics cache) {
+        }
+    };
+
+    enum Operation {
+        SIGN,
+        EXTEND,
+        VERIFY,
+        BLOCK_SIGN,
+        AGGREGATION_REQUEST,
+        EXTENSION_REQUEST
+    }
+
+    /**
+     * Counters of a cache, read when the metrics are reported.
+     */
+    interface CacheStatistics {
+
+        long getHitCount();
+
+        long getMissCount();
+    }
+
+    /**
+     * Duration of an operation, failed or not.
+     */
+    void recordLatency(Operation operation, long nanos, boolean succeeded);
+
+    /**
+     * Number of hashes in a block signed by a block signer.
+     */
+    void recordBlockSize(int size);
+
+    /**
+     * Sizes of a request and its response.
+     */
+    void recordBytes(Operation operation, long sent, long received);
+
+    /**
+     * Failed operation: the verification error code, e.g. INT-03, for verifications; 0x followed by the
+     * hexadecimal status for errors returned by the KSI service; HTTP followed by the status for HTTP
+     * errors; otherwise the name of the exception class.
+     */
+    void recordFailure(Operation operation, String errorCode);
+
+    /**
+     * Adds a cache, e.g. {@link CachingExtendingService} or {@link MemoizingVerifier}, to the reported
+     * metrics.
+     */
+    void registerCache(String name, CacheStatistics cache);
+}
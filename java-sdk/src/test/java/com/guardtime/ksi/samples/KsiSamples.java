@@ -16,7 +16,10 @@ package com.guardtime.ksi.samples;
 
 import com.guardtime.ksi.*;
 import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.publication.PublicationsFileFactory;
+import com.guardtime.ksi.publication.inmemory.InMemoryPublicationsFileFactory;
 import com.guardtime.ksi.service.KSIExtendingClientServiceAdapter;
+import com.guardtime.ksi.service.KSIExtendingService;
 import com.guardtime.ksi.service.KSISigningClientServiceAdapter;
 import com.guardtime.ksi.service.client.*;
 import com.guardtime.ksi.service.client.http.CredentialsAwareHttpSettings;
@@ -24,6 +27,7 @@ import com.guardtime.ksi.service.client.http.HttpSettings;
 import com.guardtime.ksi.service.http.simple.SimpleHttpExtenderClient;
 import com.guardtime.ksi.service.http.simple.SimpleHttpPublicationsFileClient;
 import com.guardtime.ksi.service.http.simple.SimpleHttpSigningClient;
+import com.guardtime.ksi.trust.JKSTrustStore;
 import com.guardtime.ksi.trust.X509CertificateSubjectRdnSelector;
 import com.guardtime.ksi.unisignature.Identity;
 import org.junit.After;
@@ -31,7 +35,11 @@ import org.junit.Before;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Paths;
 import java.security.cert.CertSelector;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The samples are implemented as JUnit tests. This is the base class that contains the common parts
@@ -77,7 +85,8 @@ public abstract class KsiSamples {
     /**
      * The modularity of KSI Java SDK enables multiple implementations of the "clients" for signing,
      * extending in communication with the KSI Gateway. In these examples we use the
-     * SimpleHttpClient implementation (see details in {@link #setUpKsi()}.
+     * SimpleHttpClient implementation by default or the {@link PooledHttpClient}, optionally spread over several
+     * end points by the {@link LoadBalancingClient} (see details in {@link #setUpKsi()}.
      */
     private KSISigningClient ksiSigningClient;
     private KSIExtenderClient ksiExtenderClient;
@@ -130,23 +139,90 @@ public abstract class KsiSamples {
         // httpConnectionParameters.setProxyUser("proxy-username");
         // httpConnectionParameters.setProxyPassword("proxy-password");
 
-        // Create the signer for signing data
-        ksiSigningClient = new SimpleHttpSigningClient(new CredentialsAwareHttpSettings(aggregatorUrl, credentials));
+        // The simple HTTP clients block a thread and set up a new connection for each request. Set the JVM
+        // property ksi.http.client to "pooled" to use persistent pooled connections instead (see PooledHttpClient).
+        boolean pooledHttp = "pooled".equals(System.getProperty("ksi.http.client"));
+
+        // Create the signer for signing data. If the JVM property aggregator.urls lists several comma separated
+        // end points, the requests are spread over them and failed requests are retried (see LoadBalancingClient).
+        String aggregatorUrls = System.getProperty("aggregator.urls");
+        if (aggregatorUrls != null) {
+            LoadBalancingClient.Builder builder = new LoadBalancingClient.Builder();
+            for (String url : aggregatorUrls.split(",")) {
+                builder.addSigningEndpoint(url.trim(), createSigningClient(url.trim(), pooledHttp));
+            }
+            ksiSigningClient = builder.build();
+        } else {
+            ksiSigningClient = createSigningClient(aggregatorUrl, pooledHttp);
+        }
         signer = new SignerBuilder().setSigningService(new KSISigningClientServiceAdapter(ksiSigningClient)).build();
 
-        // Create publications handler to be used for signature extending and verification
-        ksiPublicationsFileClient = new SimpleHttpPublicationsFileClient(new HttpSettings(publicationsFileUrl));
-        publicationsHandler = new PublicationsHandlerBuilder().setKsiProtocolPublicationsFileClient(ksiPublicationsFileClient).setPublicationsFileCertificateConstraints(certSelector).build();
+        // Create publications handler to be used for signature extending and verification. If the JVM property
+        // publications.file.snapshot names a local file, the publications file is kept in memory and in that file and
+        // refreshed in the background instead (see CachingPublicationsHandler). In both cases the publication records
+        // are indexed by time for fast lookup (see IndexedPublicationsFile).
+        String publicationsFileSnapshot = System.getProperty("publications.file.snapshot");
+        if (publicationsFileSnapshot != null) {
+            publicationsHandler = createCachingPublicationsHandler(publicationsFileSnapshot);
+        } else {
+            ksiPublicationsFileClient = new SimpleHttpPublicationsFileClient(new HttpSettings(publicationsFileUrl));
+            publicationsHandler = new IndexingPublicationsHandler(new PublicationsHandlerBuilder().setKsiProtocolPublicationsFileClient(ksiPublicationsFileClient).setPublicationsFileCertificateConstraints(certSelector).build());
+        }
 
-        // Create extender for extending KSI signatures
-        ksiExtenderClient = new SimpleHttpExtenderClient(new CredentialsAwareHttpSettings(extenderUrl, credentials));
-        extender = new ExtenderBuilder().setExtendingService(new KSIExtendingClientServiceAdapter(ksiExtenderClient)).setPublicationsHandler(publicationsHandler).build();
+        // Create extender for extending KSI signatures, the JVM property extender.urls works as aggregator.urls
+        String extenderUrls = System.getProperty("extender.urls");
+        if (extenderUrls != null) {
+            LoadBalancingClient.Builder builder = new LoadBalancingClient.Builder();
+            for (String url : extenderUrls.split(",")) {
+                builder.addExtendingEndpoint(url.trim(), createExtenderClient(url.trim(), pooledHttp));
+            }
+            ksiExtenderClient = builder.build();
+        } else {
+            ksiExtenderClient = createExtenderClient(extenderUrl, pooledHttp);
+        }
+        // The calendar hash chains are cached, so the signatures of the same aggregation round are extended to the same
+        // publication with a single request. Set the JVM property extender.cache.dir to keep them also in local files.
+        KSIExtendingService extendingService = new CachingExtendingService(new KSIExtendingClientServiceAdapter(ksiExtenderClient),
+                10000, TimeUnit.HOURS.toMillis(1), createCalendarHashChainStore(System.getProperty("extender.cache.dir")));
+        extender = new ExtenderBuilder().setExtendingService(extendingService).setPublicationsHandler(publicationsHandler).build();
 
         // Create verifier for verifying signatures
         verifier = new SignatureVerifier();
     }
 
 
+    private PublicationsHandler createCachingPublicationsHandler(String snapshotFile) throws KSIException {
+        String trustStorePath = System.getProperty("java.home") + File.separatorChar + "lib" + File.separatorChar
+                + "security" + File.separatorChar + "cacerts";
+        PublicationsFileFactory factory = new InMemoryPublicationsFileFactory(new JKSTrustStore(trustStorePath, certSelector));
+        try {
+            return new CachingPublicationsHandler(new URL(publicationsFileUrl), factory, Paths.get(snapshotFile), TimeUnit.HOURS.toMillis(1));
+        } catch (MalformedURLException e) {
+            throw new KSIException("Invalid publications file URL " + publicationsFileUrl, e);
+        }
+    }
+
+    private CachingExtendingService.Store createCalendarHashChainStore(String directory) throws KSIException {
+        if (directory == null) {
+            return null;
+        }
+        try {
+            return new CachingExtendingService.DirectoryStore(Paths.get(directory));
+        } catch (IOException e) {
+            throw new KSIException("Creating calendar hash chain cache directory " + directory + " failed", e);
+        }
+    }
+
+    private KSISigningClient createSigningClient(String url, boolean pooledHttp) {
+        CredentialsAwareHttpSettings settings = new CredentialsAwareHttpSettings(url, credentials);
+        return pooledHttp ? new PooledHttpClient(settings, 20) : new SimpleHttpSigningClient(settings);
+    }
+
+    private KSIExtenderClient createExtenderClient(String url, boolean pooledHttp) {
+        CredentialsAwareHttpSettings settings = new CredentialsAwareHttpSettings(url, credentials);
+        return pooledHttp ? new PooledHttpClient(settings, 20) : new SimpleHttpExtenderClient(settings);
+    }
+
     /**
      * Close resources after the tests have been finished. Called from sub-classes.
      */
@@ -157,6 +233,8 @@ public abstract class KsiSamples {
                 signer.close();
             if (extender != null)
                 extender.close();
+            if (publicationsHandler instanceof CachingPublicationsHandler)
+                ((CachingPublicationsHandler) publicationsHandler).close();
         } catch (IOException e) {
             System.err.println(e.getMessage());
         }
@@ -187,6 +265,10 @@ public abstract class KsiSamples {
         return ksiSigningClient;
     }
 
+    protected KSIExtenderClient getKsiExtenderClient() {
+        return ksiExtenderClient;
+    }
+
 
     /**
      * Utility method to access the file in the test/resources folder.
@@ -0,0 +1,532 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.pdu.PduVersion;
+import com.guardtime.ksi.service.Future;
+import com.guardtime.ksi.service.client.KSIClientException;
+import com.guardtime.ksi.service.client.KSIExtenderClient;
+import com.guardtime.ksi.service.client.KSISigningClient;
+import com.guardtime.ksi.service.client.ServiceCredentials;
+import com.guardtime.ksi.tlv.TLVElement;
+import com.guardtime.ksi.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signing and extending client that spreads the requests over several KSI Gateways. Each request goes
+ * to the end point with the lowest expected latency, computed from the average response time of the
+ * end point and the number of requests it has outstanding.
+ * <p>
+ * If the request fails, it is retried on the next best end point. If the response does not arrive in
+ * the hedging delay, the request is also sent to the next best end point and the first response wins.
+ * An end point that fails repeatedly or whose average response time exceeds the slowness threshold is
+ * ejected for a while and then taken back with its statistics reset.
+ * <p>
+ * The end point clients return blocking futures, so each attempt waits for its response on a thread of
+ * a pool of limited size. When all the threads are waiting, further attempts wait in a queue.
+ * <p>
+ * The end point clients are owned by this client and closed together with it.
+ */
+public class LoadBalancingClient implements KSISigningClient, KSIExtenderClient {
+
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    private final List<Endpoint<KSISigningClient>> signingEndpoints;
+    private final List<Endpoint<KSIExtenderClient>> extendingEndpoints;
+    private final long hedgeDelayMillis;
+    private final long slowThresholdMillis;
+    private final int failureThreshold;
+    private final long ejectionMillis;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong hedges = new AtomicLong();
+
+    private LoadBalancingClient(Builder builder) {
+        this.signingEndpoints = createEndpoints(builder.signingClients);
+        this.extendingEndpoints = createEndpoints(builder.extenderClients);
+        this.hedgeDelayMillis = builder.hedgeDelayMillis;
+        this.slowThresholdMillis = builder.slowThresholdMillis;
+        this.failureThreshold = builder.failureThreshold;
+        this.ejectionMillis = builder.ejectionMillis;
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ksi-load-balancer-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        this.executor = new ThreadPoolExecutor(builder.maxConcurrentRequests, builder.maxConcurrentRequests,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+        this.executor.allowCoreThreadTimeOut(true);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    }
+
+    private <C> List<Endpoint<C>> createEndpoints(Map<String, C> clients) {
+        List<Endpoint<C>> endpoints = new ArrayList<>();
+        for (Map.Entry<String, C> client : clients.entrySet()) {
+            endpoints.add(new Endpoint<>(client.getKey(), client.getValue()));
+        }
+        return Collections.unmodifiableList(endpoints);
+    }
+
+    public Future<TLVElement> sign(InputStream request) throws KSIClientException {
+        return execute(signingEndpoints, request, new Call<KSISigningClient>() {
+            public Future<TLVElement> send(KSISigningClient client, InputStream request) throws KSIClientException {
+                return client.sign(request);
+            }
+        });
+    }
+
+    public Future<TLVElement> extend(InputStream request) throws KSIClientException {
+        return execute(extendingEndpoints, request, new Call<KSIExtenderClient>() {
+            public Future<TLVElement> send(KSIExtenderClient client, InputStream request) throws KSIClientException {
+                return client.extend(request);
+            }
+        });
+    }
+
+    public ServiceCredentials getServiceCredentials() {
+        return signingEndpoints.isEmpty() ? extendingEndpoints.get(0).client.getServiceCredentials()
+                : signingEndpoints.get(0).client.getServiceCredentials();
+    }
+
+    public PduVersion getPduVersion() {
+        return signingEndpoints.isEmpty() ? extendingEndpoints.get(0).client.getPduVersion()
+                : signingEndpoints.get(0).client.getPduVersion();
+    }
+
+    /**
+     * Returns a snapshot of the statistics of all the end points, signing end points first.
+     */
+    public List<EndpointStats> getStats() {
+        List<EndpointStats> stats = new ArrayList<>();
+        for (Endpoint<?> endpoint : signingEndpoints) {
+            stats.add(endpoint.stats());
+        }
+        for (Endpoint<?> endpoint : extendingEndpoints) {
+            stats.add(endpoint.stats());
+        }
+        return stats;
+    }
+
+    /**
+     * Number of requests sent to another end point because the response was late.
+     */
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+
+    public void close() throws IOException {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+        IOException failure = null;
+        List<Endpoint<? extends Closeable>> endpoints = new ArrayList<>();
+        endpoints.addAll(signingEndpoints);
+        endpoints.addAll(extendingEndpoints);
+        for (Endpoint<? extends Closeable> endpoint : endpoints) {
+            try {
+                endpoint.client.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private <C> Future<TLVElement> execute(List<Endpoint<C>> endpoints, InputStream request, Call<C> call)
+            throws KSIClientException {
+        if (endpoints.isEmpty()) {
+            throw new KSIClientException("No end points configured for the request");
+        }
+        byte[] body;
+        try {
+            body = Util.toByteArray(request);
+        } catch (IOException e) {
+            throw new KSIClientException("Reading the request failed", e);
+        }
+        BalancedRequest<C> balancedRequest = new BalancedRequest<>(endpoints, body, call);
+        balancedRequest.attempt();
+        return balancedRequest;
+    }
+
+    /**
+     * Chooses the end point with the lowest expected latency among the ones not tried yet. Ejected end
+     * points are only used if no other end point is left.
+     */
+    private <C> Endpoint<C> select(List<Endpoint<C>> endpoints, Set<Endpoint<C>> tried) {
+        long now = System.nanoTime();
+        Endpoint<C> best = null;
+        boolean bestEjected = true;
+        double bestScore = Double.MAX_VALUE;
+        for (Endpoint<C> endpoint : endpoints) {
+            if (tried.contains(endpoint)) {
+                continue;
+            }
+            boolean ejected = endpoint.isEjected(now);
+            double score = Math.max(endpoint.averageLatencyMillis, 1.0) * (endpoint.outstanding.get() + 1);
+            if (best == null || (bestEjected && !ejected) || (bestEjected == ejected && score < bestScore)) {
+                best = endpoint;
+                bestEjected = ejected;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private interface Call<C> {
+        Future<TLVElement> send(C client, InputStream request) throws KSIClientException;
+    }
+
+    /**
+     * A single request that may be sent to several end points.
+     */
+    private final class BalancedRequest<C> implements Future<TLVElement> {
+
+        private final List<Endpoint<C>> endpoints;
+        private final byte[] body;
+        private final Call<C> call;
+        private final Set<Endpoint<C>> tried = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger running = new AtomicInteger();
+        private final CompletableFuture<TLVElement> result = new CompletableFuture<>();
+        private volatile KSIException lastFailure;
+
+        private BalancedRequest(List<Endpoint<C>> endpoints, byte[] body, Call<C> call) {
+            this.endpoints = endpoints;
+            this.body = body;
+            this.call = call;
+        }
+
+        public boolean isFinished() {
+            return result.isDone();
+        }
+
+        public TLVElement getResult() throws KSIException {
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new KSIClientException("Waiting for the response was interrupted", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof KSIException) {
+                    throw (KSIException) e.getCause();
+                }
+                throw new KSIClientException("Request failed", e.getCause());
+            }
+        }
+
+        /**
+         * Sends the request to the next best end point.
+         *
+         * @return false if all the end points have been tried already.
+         */
+        private synchronized boolean attempt() {
+            if (result.isDone()) {
+                return true;
+            }
+            final Endpoint<C> endpoint = select(endpoints, tried);
+            if (endpoint == null) {
+                return false;
+            }
+            tried.add(endpoint);
+            running.incrementAndGet();
+            endpoint.outstanding.incrementAndGet();
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        send(endpoint);
+                    }
+                });
+                if (tried.size() < endpoints.size()) {
+                    scheduler.schedule(new Runnable() {
+                        public void run() {
+                            // The response is late, try the next end point in parallel
+                            if (!result.isDone() && attempt()) {
+                                hedges.incrementAndGet();
+                            }
+                        }
+                    }, hedgeDelayMillis, TimeUnit.MILLISECONDS);
+                }
+            } catch (RejectedExecutionException e) {
+                // The client is closed
+                lastFailure = new KSIClientException("Load balancing client is closed", e);
+                endpoint.outstanding.decrementAndGet();
+                if (running.decrementAndGet() == 0) {
+                    result.completeExceptionally(lastFailure);
+                }
+            }
+            return true;
+        }
+
+        private void send(Endpoint<C> endpoint) {
+            long start = System.nanoTime();
+            try {
+                TLVElement response = call.send(endpoint.client, new ByteArrayInputStream(body)).getResult();
+                endpoint.succeeded(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                result.complete(response);
+            } catch (KSIException | RuntimeException e) {
+                endpoint.failed();
+                lastFailure = e instanceof KSIException ? (KSIException) e
+                        : new KSIClientException("Request to " + endpoint.name + " failed", e);
+                // Fail over to the next end point
+                attempt();
+            } finally {
+                endpoint.outstanding.decrementAndGet();
+            }
+            if (running.decrementAndGet() == 0 && !result.isDone()) {
+                result.completeExceptionally(lastFailure);
+            }
+        }
+    }
+
+    private final class Endpoint<C> {
+
+        private final String name;
+        private final C client;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong ejections = new AtomicLong();
+        private volatile double averageLatencyMillis;
+        private volatile int consecutiveFailures;
+        private volatile long ejectedUntilNanos;
+        private volatile boolean ejected;
+
+        private Endpoint(String name, C client) {
+            this.name = name;
+            this.client = client;
+        }
+
+        private synchronized void succeeded(long latencyMillis) {
+            requests.incrementAndGet();
+            consecutiveFailures = 0;
+            averageLatencyMillis = averageLatencyMillis == 0 ? latencyMillis
+                    : averageLatencyMillis + LATENCY_SMOOTHING * (latencyMillis - averageLatencyMillis);
+            if (averageLatencyMillis > slowThresholdMillis) {
+                eject();
+            }
+        }
+
+        private synchronized void failed() {
+            requests.incrementAndGet();
+            failures.incrementAndGet();
+            if (++consecutiveFailures >= failureThreshold) {
+                eject();
+            }
+        }
+
+        private void eject() {
+            if (ejected) {
+                return;
+            }
+            ejected = true;
+            ejectedUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ejectionMillis);
+            ejections.incrementAndGet();
+        }
+
+        private synchronized boolean isEjected(long now) {
+            if (ejected && now - ejectedUntilNanos >= 0) {
+                // Take the end point back as if it was new
+                ejected = false;
+                consecutiveFailures = 0;
+                averageLatencyMillis = 0;
+            }
+            return ejected;
+        }
+
+        private EndpointStats stats() {
+            return new EndpointStats(name, requests.get(), failures.get(), outstanding.get(), ejections.get(),
+                    averageLatencyMillis, isEjected(System.nanoTime()));
+        }
+    }
+
+    /**
+     * Statistics of a single end point.
+     */
+    public static final class EndpointStats {
+
+        private final String name;
+        private final long requests;
+        private final long failures;
+        private final int outstanding;
+        private final long ejections;
+        private final double averageLatencyMillis;
+        private final boolean ejected;
+
+        private EndpointStats(String name, long requests, long failures, int outstanding, long ejections,
+                              double averageLatencyMillis, boolean ejected) {
+            this.name = name;
+            this.requests = requests;
+            this.failures = failures;
+            this.outstanding = outstanding;
+            this.ejections = ejections;
+            this.averageLatencyMillis = averageLatencyMillis;
+            this.ejected = ejected;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public int getOutstanding() {
+            return outstanding;
+        }
+
+        public long getEjections() {
+            return ejections;
+        }
+
+        public double getAverageLatencyMillis() {
+            return averageLatencyMillis;
+        }
+
+        public boolean isEjected() {
+            return ejected;
+        }
+
+        @Override
+        public String toString() {
+            return name + " requests=" + requests + " failures=" + failures + " outstanding=" + outstanding
+                    + " ejections=" + ejections + " averageLatencyMillis=" + Math.round(averageLatencyMillis)
+                    + (ejected ? " EJECTED" : "");
+        }
+    }
+
+    /**
+     * Builds the {@link LoadBalancingClient}.
+     */
+    public static final class Builder {
+
+        private final Map<String, KSISigningClient> signingClients = new LinkedHashMap<>();
+        private final Map<String, KSIExtenderClient> extenderClients = new LinkedHashMap<>();
+        private long hedgeDelayMillis = 1000;
+        private long slowThresholdMillis = 5000;
+        private int failureThreshold = 3;
+        private long ejectionMillis = 30000;
+        private int maxConcurrentRequests = 64;
+
+        /**
+         * Adds an Aggregator end point, the name identifies it in the statistics and must be unique.
+         */
+        public Builder addSigningEndpoint(String name, KSISigningClient client) {
+            checkEndpoint(name, client, signingClients);
+            signingClients.put(name, client);
+            return this;
+        }
+
+        /**
+         * Adds an Extender end point, the name identifies it in the statistics and must be unique.
+         */
+        public Builder addExtendingEndpoint(String name, KSIExtenderClient client) {
+            checkEndpoint(name, client, extenderClients);
+            extenderClients.put(name, client);
+            return this;
+        }
+
+        /**
+         * Time to wait for the response before sending the request also to the next end point.
+         */
+        public Builder setHedgeDelay(long hedgeDelayMillis) {
+            this.hedgeDelayMillis = hedgeDelayMillis;
+            return this;
+        }
+
+        /**
+         * Average response time above which the end point is ejected.
+         */
+        public Builder setSlowThreshold(long slowThresholdMillis) {
+            this.slowThresholdMillis = slowThresholdMillis;
+            return this;
+        }
+
+        /**
+         * Number of consecutive failures after which the end point is ejected.
+         */
+        public Builder setFailureThreshold(int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+            return this;
+        }
+
+        /**
+         * Time an ejected end point is not used if there are other end points available.
+         */
+        public Builder setEjectionTime(long ejectionMillis) {
+            this.ejectionMillis = ejectionMillis;
+            return this;
+        }
+
+        /**
+         * Maximum number of requests waiting for their responses at the same time, 64 by default.
+         */
+        public Builder setMaxConcurrentRequests(int maxConcurrentRequests) {
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            return this;
+        }
+
+        public LoadBalancingClient build() {
+            if (signingClients.isEmpty() && extenderClients.isEmpty()) {
+                throw new IllegalStateException("At least one end point must be added");
+            }
+            if (hedgeDelayMillis < 0 || slowThresholdMillis < 1 || failureThreshold < 1 || ejectionMillis < 0
+                    || maxConcurrentRequests < 1) {
+                throw new IllegalStateException("Invalid load balancing settings");
+            }
+            return new LoadBalancingClient(this);
+        }
+
+        private static void checkEndpoint(String name, Object client, Map<String, ?> clients) {
+            if (name == null || client == null) {
+                throw new IllegalArgumentException("End point name and client must be present");
+            }
+            if (clients.containsKey(name)) {
+                throw new IllegalArgumentException("End point " + name + " is already added");
+            }
+        }
+    }
+}
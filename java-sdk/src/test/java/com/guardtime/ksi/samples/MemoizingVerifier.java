@@ -0,0 +1,432 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.Verifier;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.pdu.PduFactory;
+import com.guardtime.ksi.publication.PublicationData;
+import com.guardtime.ksi.publication.PublicationRecord;
+import com.guardtime.ksi.publication.PublicationsFile;
+import com.guardtime.ksi.unisignature.AggregationHashChain;
+import com.guardtime.ksi.unisignature.CalendarAuthenticationRecord;
+import com.guardtime.ksi.unisignature.CalendarHashChain;
+import com.guardtime.ksi.unisignature.KSISignature;
+import com.guardtime.ksi.unisignature.KSISignatureComponentFactory;
+import com.guardtime.ksi.unisignature.RFC3161Record;
+import com.guardtime.ksi.unisignature.SignatureData;
+import com.guardtime.ksi.unisignature.verifier.PolicyVerificationResult;
+import com.guardtime.ksi.unisignature.verifier.VerificationContext;
+import com.guardtime.ksi.unisignature.verifier.VerificationContextBuilder;
+import com.guardtime.ksi.unisignature.verifier.VerificationErrorCode;
+import com.guardtime.ksi.unisignature.verifier.VerificationResult;
+import com.guardtime.ksi.unisignature.verifier.VerificationResultCode;
+import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicy;
+import com.guardtime.ksi.unisignature.verifier.rules.AggregationHashChainAlgorithmDeprecatedRule;
+import com.guardtime.ksi.unisignature.verifier.rules.AggregationHashChainConsistencyRule;
+import com.guardtime.ksi.unisignature.verifier.rules.AggregationHashChainIndexConsistencyRule;
+import com.guardtime.ksi.unisignature.verifier.rules.AggregationHashChainIndexSuccessorRule;
+import com.guardtime.ksi.unisignature.verifier.rules.AggregationHashChainLinkMetadataRule;
+import com.guardtime.ksi.unisignature.verifier.rules.AggregationHashChainTimeConsistencyRule;
+import com.guardtime.ksi.unisignature.verifier.rules.CalendarHashChainAggregationTimeRule;
+import com.guardtime.ksi.unisignature.verifier.rules.CalendarHashChainInputHashVerificationRule;
+import com.guardtime.ksi.unisignature.verifier.rules.DocumentHashAlgorithmVerificationRule;
+import com.guardtime.ksi.unisignature.verifier.rules.DocumentHashVerificationRule;
+import com.guardtime.ksi.unisignature.verifier.rules.InputHashLevelVerificationRule;
+import com.guardtime.ksi.unisignature.verifier.rules.Rule;
+import com.guardtime.ksi.unisignature.verifier.rules.SignatureInputHashAlgorithmDeprecatedRule;
+
+import java.nio.ByteBuffer;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifier remembering the parts of the signatures it has already verified successfully. The signatures
+ * created in the same block or round share the calendar hash chain with its authentication or
+ * publication record, and the upper aggregation hash chains. Once a signature has passed the full
+ * verification with a policy, the next signature with the same upper part is verified with the same
+ * policy only by checking its own lower aggregation hash chains and their link to the remembered part.
+ * <p>
+ * The lower chains are checked with the same rules the internal verification policy uses for them. The
+ * remembered parts are compared by the hashes and times in them, and the policy by identity, so the same
+ * policy instance has to be used for all the signatures. If the lower chains do not pass the rules, or
+ * the signature has no calendar hash chain or has an RFC 3161 record, the signature is verified in
+ * full by the wrapped verifier, so the failures are reported exactly as without this verifier.
+ * <p>
+ * The remembered parts are kept up to the given number, the least recently used one is evicted first.
+ */
+public class MemoizingVerifier implements Verifier, KsiMetrics.CacheStatistics {
+
+    private static final Rule[] LOWER_CHAIN_RULES = {
+            new DocumentHashAlgorithmVerificationRule(),
+            new DocumentHashVerificationRule(),
+            new InputHashLevelVerificationRule(),
+            new SignatureInputHashAlgorithmDeprecatedRule(),
+            new AggregationHashChainIndexSuccessorRule(),
+            new AggregationHashChainLinkMetadataRule(),
+            new AggregationHashChainAlgorithmDeprecatedRule(),
+            new AggregationHashChainConsistencyRule(),
+            new AggregationHashChainTimeConsistencyRule(),
+            new AggregationHashChainIndexConsistencyRule()
+    };
+    private static final Rule[] CALENDAR_LINK_RULES = {
+            new CalendarHashChainInputHashVerificationRule(),
+            new CalendarHashChainAggregationTimeRule()
+    };
+
+    private final Verifier verifier;
+    private final int maxSize;
+    private final Map<Key, Node> nodes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param verifier the verifier used for the full verification.
+     * @param maxSize  maximum number of verified calendar hash chains and aggregation hash chains kept.
+     */
+    public MemoizingVerifier(Verifier verifier, final int maxSize) {
+        if (verifier == null) {
+            throw new IllegalArgumentException("Verifier must be present");
+        }
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        this.verifier = verifier;
+        this.maxSize = maxSize;
+        this.nodes = new LinkedHashMap<Key, Node>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Node> eldest) {
+                return size() > MemoizingVerifier.this.maxSize;
+            }
+        };
+    }
+
+    public VerificationResult verify(KSISignature signature, ContextAwarePolicy policy) throws KSIException {
+        return verify(signature, null, null, policy);
+    }
+
+    public VerificationResult verify(KSISignature signature, DataHash documentHash, ContextAwarePolicy policy) throws KSIException {
+        return verify(signature, documentHash, null, policy);
+    }
+
+    public VerificationResult verify(KSISignature signature, DataHash documentHash, Long level, ContextAwarePolicy policy) throws KSIException {
+        List<?>[] fingerprints = fingerprint(signature);
+        if (fingerprints == null) {
+            misses.incrementAndGet();
+            return verifier.verify(signature, documentHash, level, policy);
+        }
+        AggregationHashChain[] chains = signature.getAggregationHashChains();
+        Node[] path = new Node[chains.length + 1];
+        int verified = find(policy, fingerprints, path);
+        if (verified <= chains.length && verifyLowerChains(signature, documentHash, level, verified)) {
+            hits.incrementAndGet();
+            remember(policy, fingerprints, path, verified, path[verified].result);
+            return new MemoizedResult(path[verified].result);
+        }
+        misses.incrementAndGet();
+        VerificationResult result = verifier.verify(signature, documentHash, level, policy);
+        if (result.isOk()) {
+            remember(policy, fingerprints, path, chains.length + 1, result);
+        }
+        return result;
+    }
+
+    /**
+     * Number of signatures of which only the lower aggregation hash chains were verified.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Number of signatures verified in full.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public synchronized void clear() {
+        nodes.clear();
+    }
+
+    /**
+     * Looks up the longest remembered upper part of the signature.
+     *
+     * @return index of the lowest remembered aggregation hash chain, the number of the aggregation
+     * hash chains if only the calendar part is remembered, or more than that if nothing is.
+     */
+    private synchronized int find(ContextAwarePolicy policy, List<?>[] fingerprints, Node[] path) {
+        int chainCount = fingerprints.length - 1;
+        Node node = nodes.get(new Key(policy, fingerprints[chainCount]));
+        if (node == null) {
+            return chainCount + 1;
+        }
+        path[chainCount] = node;
+        int verified = chainCount;
+        while (verified > 0) {
+            Node child = nodes.get(new Key(node, fingerprints[verified - 1]));
+            if (child == null) {
+                break;
+            }
+            node = child;
+            verified--;
+            path[verified] = node;
+        }
+        return verified;
+    }
+
+    /**
+     * Remembers the parts of the signature below the given index as verified.
+     */
+    private synchronized void remember(ContextAwarePolicy policy, List<?>[] fingerprints, Node[] path, int from, VerificationResult result) {
+        int chainCount = fingerprints.length - 1;
+        for (int i = from - 1; i >= 0; i--) {
+            Object parent = i == chainCount ? policy : path[i + 1];
+            Key key = new Key(parent, fingerprints[i]);
+            Node node = nodes.get(key);
+            if (node == null) {
+                node = new Node(result);
+                nodes.put(key, node);
+            }
+            path[i] = node;
+        }
+    }
+
+    /**
+     * Checks the aggregation hash chains below the remembered part, and their link to the lowest
+     * remembered aggregation hash chain or to the calendar hash chain.
+     */
+    private boolean verifyLowerChains(KSISignature signature, DataHash documentHash, Long level, int verified) {
+        AggregationHashChain[] chains = signature.getAggregationHashChains();
+        int count = Math.min(verified + 1, chains.length);
+        VerificationContext context = new LowerChainsContext(
+                new VerificationContextBuilder().setSignature(signature).setDocumentHash(documentHash, level).build(),
+                Arrays.copyOf(chains, count));
+        try {
+            if (!passes(LOWER_CHAIN_RULES, context)) {
+                return false;
+            }
+            return verified < chains.length || passes(CALENDAR_LINK_RULES, context);
+        } catch (KSIException e) {
+            // Let the full verification report it
+            return false;
+        }
+    }
+
+    private static boolean passes(Rule[] rules, VerificationContext context) throws KSIException {
+        for (Rule rule : rules) {
+            if (rule.verify(context).getResultCode() != VerificationResultCode.OK) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the fingerprints of the aggregation hash chains of the signature, from the lowest, and as
+     * the last element the fingerprint of the calendar hash chain together with its authentication and
+     * publication record. The fingerprint of a hash chain consists of its input hash and calculated output
+     * hash and the fields that are not hashed, so the chains with equal fingerprints can differ only by
+     * a hash collision or in content the verification does not look at.
+     *
+     * @return the fingerprints, or null if the signature can not be verified partially.
+     */
+    private static List<?>[] fingerprint(KSISignature signature) {
+        CalendarHashChain calendarHashChain = signature.getCalendarHashChain();
+        if (calendarHashChain == null || signature.getRfc3161Record() != null) {
+            return null;
+        }
+        AggregationHashChain[] chains = signature.getAggregationHashChains();
+        List<?>[] fingerprints = new List<?>[chains.length + 1];
+        for (int i = 0; i < chains.length; i++) {
+            AggregationHashChain chain = chains[i];
+            fingerprints[i] = Arrays.asList(chain.getInputHash(), chain.getOutputHash(), chain.getAggregationTime(),
+                    chain.getChainIndex(), chain.getAggregationAlgorithm());
+        }
+        List<Object> calendarPart = new ArrayList<>(Arrays.<Object>asList(calendarHashChain.getInputHash(),
+                calendarHashChain.getOutputHash(), calendarHashChain.getAggregationTime(), calendarHashChain.getPublicationTime()));
+        CalendarAuthenticationRecord calendarAuthenticationRecord = signature.getCalendarAuthenticationRecord();
+        if (calendarAuthenticationRecord != null) {
+            SignatureData signatureData = calendarAuthenticationRecord.getSignatureData();
+            calendarPart.addAll(Arrays.asList(calendarAuthenticationRecord.getPublicationData(), signatureData.getSignatureType(),
+                    ByteBuffer.wrap(signatureData.getSignatureValue()), ByteBuffer.wrap(signatureData.getCertificateId()),
+                    signatureData.getCertificateRepositoryUri()));
+        }
+        PublicationRecord publicationRecord = signature.getPublicationRecord();
+        if (publicationRecord != null) {
+            calendarPart.addAll(Arrays.asList(publicationRecord.getPublicationData(), publicationRecord.getPublicationReferences(),
+                    publicationRecord.getPublicationRepositoryURIs()));
+        }
+        fingerprints[chains.length] = calendarPart;
+        return fingerprints;
+    }
+
+    /**
+     * Remembered part of a signature: the calendar part keyed by the policy, or an aggregation hash
+     * chain keyed by the remembered part above it.
+     */
+    private static final class Key {
+
+        private final Object parent;
+        private final List<?> fingerprint;
+        private final int hash;
+
+        private Key(Object parent, List<?> fingerprint) {
+            this.parent = parent;
+            this.fingerprint = fingerprint;
+            this.hash = 31 * System.identityHashCode(parent) + fingerprint.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return parent == key.parent && fingerprint.equals(key.fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Node {
+
+        private final VerificationResult result;
+
+        private Node(VerificationResult result) {
+            this.result = result;
+        }
+    }
+
+    /**
+     * Result of a signature of which only the lower chains were verified. The policy results are the
+     * ones of the full verification of the signature the upper part was first verified with.
+     */
+    private static final class MemoizedResult implements VerificationResult {
+
+        private final VerificationResult result;
+
+        private MemoizedResult(VerificationResult result) {
+            this.result = result;
+        }
+
+        public boolean isOk() {
+            return true;
+        }
+
+        public VerificationErrorCode getErrorCode() {
+            return null;
+        }
+
+        public List<PolicyVerificationResult> getPolicyVerificationResults() {
+            return result.getPolicyVerificationResults();
+        }
+    }
+
+    /**
+     * Verification context showing the rules only the given lower aggregation hash chains.
+     */
+    private static final class LowerChainsContext implements VerificationContext {
+
+        private final VerificationContext context;
+        private final AggregationHashChain[] chains;
+
+        private LowerChainsContext(VerificationContext context, AggregationHashChain[] chains) {
+            this.context = context;
+            this.chains = chains;
+        }
+
+        public AggregationHashChain[] getAggregationHashChains() {
+            return chains;
+        }
+
+        public AggregationHashChain getLastAggregationHashChain() {
+            return chains[chains.length - 1];
+        }
+
+        public KSISignature getSignature() {
+            return context.getSignature();
+        }
+
+        public CalendarHashChain getExtendedCalendarHashChain(Date publicationTime) throws KSIException {
+            return context.getExtendedCalendarHashChain(publicationTime);
+        }
+
+        public CalendarHashChain getExtendedCalendarHashChain() throws KSIException {
+            return context.getExtendedCalendarHashChain();
+        }
+
+        public PublicationData getUserProvidedPublication() {
+            return context.getUserProvidedPublication();
+        }
+
+        public DataHash getDocumentHash() {
+            return context.getDocumentHash();
+        }
+
+        public Long getInputHashLevel() {
+            return context.getInputHashLevel();
+        }
+
+        public boolean isExtendingAllowed() {
+            return context.isExtendingAllowed();
+        }
+
+        public PublicationsFile getPublicationsFile() {
+            return context.getPublicationsFile();
+        }
+
+        public Certificate getCertificate(byte[] certificateId) {
+            return context.getCertificate(certificateId);
+        }
+
+        public CalendarHashChain getCalendarHashChain() {
+            return context.getCalendarHashChain();
+        }
+
+        public CalendarAuthenticationRecord getCalendarAuthenticationRecord() {
+            return context.getCalendarAuthenticationRecord();
+        }
+
+        public RFC3161Record getRfc3161Record() {
+            return context.getRfc3161Record();
+        }
+
+        public PublicationRecord getPublicationRecord() {
+            return context.getPublicationRecord();
+        }
+
+        public void setPduFactory(PduFactory pduFactory) {
+            context.setPduFactory(pduFactory);
+        }
+
+        public void setKsiSignatureComponentFactory(KSISignatureComponentFactory signatureComponentFactory) {
+            context.setKsiSignatureComponentFactory(signatureComponentFactory);
+        }
+    }
+}
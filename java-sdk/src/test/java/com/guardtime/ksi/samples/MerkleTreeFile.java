@@ -0,0 +1,437 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.SignatureReader;
+import com.guardtime.ksi.Signer;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.unisignature.AggregationChainLink;
+import com.guardtime.ksi.unisignature.AggregationHashChain;
+import com.guardtime.ksi.unisignature.AggregationHashChainUtil;
+import com.guardtime.ksi.unisignature.KSISignature;
+import com.guardtime.ksi.unisignature.KSISignatureComponentFactory;
+import com.guardtime.ksi.unisignature.KSISignatureFactory;
+import com.guardtime.ksi.unisignature.inmemory.InMemoryKsiSignatureComponentFactory;
+import com.guardtime.ksi.unisignature.inmemory.InMemoryKsiSignatureFactory;
+import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicyAdapter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
+
+/**
+ * Merkle tree built by the user over any number of hashes and kept in a file, of which only the root is
+ * signed. The signature of a leaf is created from the signature of the root and the aggregation hash
+ * chain from the leaf to the root, when it is needed, so e.g. a log can be signed once a minute and still
+ * have a standalone signature for every record.
+ * <p>
+ * The tree is written by a {@link Writer}: the leaves are appended to the file as they are added, and
+ * the upper levels are computed from the file when the tree is finished, so the memory used does not
+ * depend on the number of leaves. The nodes are paired from the left and the last node of a level with
+ * an odd number of nodes moves up unchanged, as in {@link ParallelBlockSigner}. All the leaves are at
+ * level 0, a parent is one level above its higher child. The root is signed at its level with
+ * {@link #sign(Signer)}, so that the aggregation hash chains of the leaves fit below the signature, and
+ * the signature is stored at the end of the file.
+ * <p>
+ * The file holds a header of the magic number, the algorithm of the tree and the number of leaves,
+ * followed by the levels of the tree from the leaves up, each a row of hash values without the algorithm
+ * identifiers, and the signature of the root. A tree of a million SHA-256 leaves takes 64 MB.
+ * <p>
+ * An opened tree may be used from several threads.
+ */
+public final class MerkleTreeFile implements Closeable {
+
+    private static final int MAGIC = 0x4b534d54;
+    private static final int HEADER_SIZE = 12;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final HashAlgorithm algorithm;
+    private final int length;
+    private final long[] rowOffsets;
+    private final int[] rowCounts;
+    // Only the last node of a level may be below the level, if it moved up from below
+    private final int[] lastLevels;
+    private final long signatureOffset;
+    private final KSISignatureComponentFactory componentFactory = new InMemoryKsiSignatureComponentFactory();
+    private final KSISignatureFactory signatureFactory =
+            new InMemoryKsiSignatureFactory(ContextAwarePolicyAdapter.createInternalPolicy(), componentFactory);
+    private volatile KSISignature rootSignature;
+
+    private MerkleTreeFile(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            int id = header.get(4) & 0xFF;
+            int size = header.getInt(8);
+            if (header.getInt(0) != MAGIC || !HashAlgorithm.isHashAlgorithmId(id) || size < 1) {
+                throw new IOException(file + " is not a Merkle tree file");
+            }
+            this.algorithm = HashAlgorithm.getById(id);
+            this.length = algorithm.getLength();
+            int rows = rows(size);
+            this.rowOffsets = new long[rows];
+            this.rowCounts = new int[rows];
+            this.lastLevels = new int[rows];
+            rowOffsets[0] = HEADER_SIZE;
+            rowCounts[0] = size;
+            for (int row = 1; row < rows; row++) {
+                int children = rowCounts[row - 1];
+                rowOffsets[row] = rowOffsets[row - 1] + (long) children * length;
+                rowCounts[row] = (children + 1) / 2;
+                lastLevels[row] = children % 2 == 1 ? lastLevels[row - 1] : row;
+            }
+            this.signatureOffset = rowOffsets[rows - 1] + length;
+            if (channel.size() < signatureOffset) {
+                throw new IOException(file + " is truncated");
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts writing a new tree to the given file, which must not exist.
+     *
+     * @param algorithm algorithm of the tree, also of all the leaves.
+     */
+    public static Writer create(Path file, HashAlgorithm algorithm) throws IOException {
+        return new Writer(file, algorithm);
+    }
+
+    /**
+     * Opens a tree written earlier.
+     */
+    public static MerkleTreeFile open(Path file) throws IOException {
+        return new MerkleTreeFile(file);
+    }
+
+    public HashAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Number of leaves of the tree.
+     */
+    public int size() {
+        return rowCounts[0];
+    }
+
+    /**
+     * Returns the leaf at the given position, in the order of adding.
+     */
+    public DataHash getLeaf(int index) throws IOException {
+        checkIndex(index);
+        return node(0, index);
+    }
+
+    public DataHash getRoot() throws IOException {
+        return node(rowCounts.length - 1, 0);
+    }
+
+    /**
+     * Level of the root, with which the root has to be signed.
+     */
+    public long getRootLevel() {
+        return lastLevels[lastLevels.length - 1];
+    }
+
+    /**
+     * Signs the root at its level and stores the signature in the file, replacing the one stored earlier.
+     */
+    public KSISignature sign(Signer signer) throws IOException, KSIException {
+        DataHash root = getRoot();
+        KSISignature signature = signer.sign(root, getRootLevel());
+        if (!root.equals(signature.getInputHash())) {
+            throw new KSIException("Signature is not for the root of the tree");
+        }
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        signature.writeTo(encoded);
+        synchronized (this) {
+            channel.truncate(signatureOffset);
+            ByteBuffer buffer = ByteBuffer.wrap(encoded.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, signatureOffset + buffer.position());
+            }
+            channel.force(false);
+            rootSignature = signature;
+        }
+        return signature;
+    }
+
+    /**
+     * Returns the signature of the root, or null if the root is not signed.
+     */
+    public KSISignature getRootSignature() throws IOException, KSIException {
+        KSISignature signature = rootSignature;
+        if (signature == null) {
+            synchronized (this) {
+                long size = channel.size() - signatureOffset;
+                if (rootSignature == null && size > 0) {
+                    byte[] encoded = new byte[(int) size];
+                    readFully(channel, ByteBuffer.wrap(encoded), signatureOffset);
+                    rootSignature = new SignatureReader().read(encoded);
+                }
+                signature = rootSignature;
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Creates the signature of the leaf at the given position, in the order of adding, from the signature
+     * of the root.
+     */
+    public KSISignature getSignature(int index) throws IOException, KSIException {
+        checkIndex(index);
+        KSISignature signature = getRootSignature();
+        if (signature == null) {
+            throw new IllegalStateException("Root of the tree is not signed");
+        }
+        if (size() == 1) {
+            // The only leaf is the root itself
+            return signature;
+        }
+        DataHash leaf = getLeaf(index);
+        return signatureFactory.createSignature(signature, chain(index, leaf), leaf);
+    }
+
+    /**
+     * Aggregation hash chain from the leaf to the root of the tree.
+     */
+    AggregationHashChain chain(int index, DataHash leaf) throws IOException, KSIException {
+        LinkedList<AggregationChainLink> links = new LinkedList<>();
+        long chainLevel = 0;
+        int position = index;
+        for (int row = 0; row < rowCounts.length - 1; row++) {
+            int sibling = position ^ 1;
+            if (sibling < rowCounts[row]) {
+                // A pair of nodes is hashed to the level above the row
+                long parentLevel = row + 1;
+                long correction = parentLevel - chainLevel - 1;
+                DataHash siblingHash = node(row, sibling);
+                links.add((position & 1) == 0
+                        ? componentFactory.createLeftAggregationChainLink(siblingHash, correction)
+                        : componentFactory.createRightAggregationChainLink(siblingHash, correction));
+                chainLevel = parentLevel;
+            }
+            position /= 2;
+        }
+        LinkedList<Long> chainIndex = new LinkedList<>(Collections.singletonList(AggregationHashChainUtil.calculateIndex(links)));
+        return componentFactory.createAggregationHashChain(leaf, new Date(), chainIndex, links, algorithm);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "MerkleTreeFile{file=" + file + ", size=" + size() + "}";
+    }
+
+    private DataHash node(int row, int index) throws IOException {
+        byte[] value = new byte[length];
+        readFully(channel, ByteBuffer.wrap(value), rowOffsets[row] + (long) index * length);
+        return new DataHash(algorithm, value);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Leaf " + index + " is not in a tree of " + size() + " leaves");
+        }
+    }
+
+    private static int rows(long leaves) {
+        int rows = 1;
+        for (long nodes = leaves; nodes > 1; nodes = (nodes + 1) / 2) {
+            rows++;
+        }
+        return rows;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Merkle tree file is truncated at " + offset);
+            }
+        }
+    }
+
+    /**
+     * Writes the leaves of a new tree to the file. The file becomes a tree only when {@link #finish()}
+     * succeeds; an unfinished file is deleted on {@link #close()}.
+     * <p>
+     * The writer is not thread-safe.
+     */
+    public static final class Writer implements Closeable {
+
+        private final Path file;
+        private final FileChannel channel;
+        private final HashAlgorithm algorithm;
+        private final int length;
+        private final MessageDigest digest;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private int size;
+        private boolean finished;
+
+        private Writer(Path file, HashAlgorithm algorithm) throws IOException {
+            if (file == null || algorithm == null) {
+                throw new IllegalArgumentException("File and hash algorithm must be present");
+            }
+            algorithm.checkExpiration();
+            this.file = file;
+            this.algorithm = algorithm;
+            this.length = algorithm.getLength();
+            this.digest = ParallelBlockSigner.createDigest(algorithm);
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // The header is written when the tree is finished
+            channel.position(HEADER_SIZE);
+        }
+
+        /**
+         * Adds the leaf to the tree.
+         *
+         * @return position of the leaf in the tree.
+         */
+        public int add(DataHash hash) throws IOException {
+            if (hash == null) {
+                throw new IllegalArgumentException("Hash must be present");
+            }
+            if (!algorithm.equals(hash.getAlgorithm())) {
+                throw new IllegalArgumentException("Leaves of the tree must be " + algorithm.getName() + " hashes");
+            }
+            if (finished || !channel.isOpen()) {
+                throw new IllegalStateException("Tree is already finished");
+            }
+            if (size == Integer.MAX_VALUE) {
+                throw new IllegalStateException("Tree is full");
+            }
+            if (buffer.remaining() < length) {
+                flush();
+            }
+            buffer.put(hash.getValue());
+            return size++;
+        }
+
+        /**
+         * Number of leaves added.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Computes the upper levels of the tree, writes the header and forces the file to the disk.
+         *
+         * @return the tree, opened for signing.
+         */
+        public MerkleTreeFile finish() throws IOException {
+            if (size == 0) {
+                throw new IllegalStateException("There are no leaves in the tree");
+            }
+            if (finished || !channel.isOpen()) {
+                throw new IllegalStateException("Tree is already finished");
+            }
+            flush();
+            // Whole pairs of nodes are read at a time
+            byte[] nodes = new byte[BUFFER_SIZE - BUFFER_SIZE % (2 * length)];
+            long rowOffset = HEADER_SIZE;
+            int count = size;
+            for (int row = 0; count > 1; row++) {
+                for (int read = 0; read < count; ) {
+                    int chunk = Math.min(count - read, nodes.length / length);
+                    ByteBuffer input = ByteBuffer.wrap(nodes, 0, chunk * length);
+                    readFully(channel, input, rowOffset + (long) read * length);
+                    for (int offset = 0; offset < chunk * length; offset += 2 * length) {
+                        if (buffer.remaining() < length) {
+                            flush();
+                        }
+                        if (offset + length == chunk * length) {
+                            // The last node of an odd level moves up unchanged
+                            buffer.put(nodes, offset, length);
+                        } else {
+                            parent(nodes, offset, row + 1);
+                        }
+                    }
+                    read += chunk;
+                }
+                flush();
+                rowOffset += (long) count * length;
+                count = (count + 1) / 2;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).put((byte) algorithm.getId()).put(new byte[3]).putInt(size).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+            channel.close();
+            finished = true;
+            return new MerkleTreeFile(file);
+        }
+
+        /**
+         * Closes the writer, deleting the file if the tree was not finished.
+         */
+        public void close() throws IOException {
+            if (channel.isOpen()) {
+                channel.close();
+            }
+            if (!finished) {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        private void parent(byte[] nodes, int offset, int level) {
+            digest.update((byte) algorithm.getId());
+            digest.update(nodes, offset, length);
+            digest.update((byte) algorithm.getId());
+            digest.update(nodes, offset + length, length);
+            digest.update((byte) level);
+            try {
+                digest.digest(buffer.array(), buffer.position(), length);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            buffer.position(buffer.position() + length);
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.Extender;
+import com.guardtime.ksi.Signer;
+import com.guardtime.ksi.Verifier;
+import com.guardtime.ksi.blocksigner.BlockSigner;
+import com.guardtime.ksi.blocksigner.IdentityMetadata;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.pdu.AggregatorConfiguration;
+import com.guardtime.ksi.pdu.ExtenderConfiguration;
+import com.guardtime.ksi.pdu.PduVersion;
+import com.guardtime.ksi.publication.PublicationRecord;
+import com.guardtime.ksi.samples.KsiMetrics.Operation;
+import com.guardtime.ksi.service.Future;
+import com.guardtime.ksi.service.KSIExtendingService;
+import com.guardtime.ksi.service.KSIProtocolException;
+import com.guardtime.ksi.service.KSISigningService;
+import com.guardtime.ksi.service.client.KSIClientException;
+import com.guardtime.ksi.service.client.KSIExtenderClient;
+import com.guardtime.ksi.service.client.KSISigningClient;
+import com.guardtime.ksi.service.client.ServiceCredentials;
+import com.guardtime.ksi.service.client.http.HttpProtocolException;
+import com.guardtime.ksi.tlv.TLVElement;
+import com.guardtime.ksi.unisignature.KSISignature;
+import com.guardtime.ksi.unisignature.verifier.VerificationResult;
+import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicy;
+import com.guardtime.ksi.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Wrappers that report the latency, sizes and failures of the KSI operations to {@link KsiMetrics}. The
+ * latency of an asynchronous operation is measured from the call until its result is first taken from
+ * the future.
+ */
+public final class Metered {
+
+    // "(status): message" from the exception constructors, "Error status is 0x..." from the service
+    private static final Pattern PROTOCOL_STATUS = Pattern.compile("^\\((\\d+)\\):|Error status is 0x(\\p{XDigit}+)");
+
+    private Metered() {
+    }
+
+    public static Signer signer(Signer signer, KsiMetrics metrics) {
+        return new MeteredSigner(signer, metrics);
+    }
+
+    public static Extender extender(Extender extender, KsiMetrics metrics) {
+        return new MeteredExtender(extender, metrics);
+    }
+
+    /**
+     * Also counts the failed verifications by the error code of the result.
+     */
+    public static Verifier verifier(Verifier verifier, KsiMetrics metrics) {
+        return new MeteredVerifier(verifier, metrics);
+    }
+
+    /**
+     * Also records the number of hashes in each block.
+     */
+    public static BlockSigner<List<KSISignature>> blockSigner(BlockSigner<List<KSISignature>> blockSigner, KsiMetrics metrics) {
+        return new MeteredBlockSigner(blockSigner, metrics);
+    }
+
+    /**
+     * Also records the sizes of the requests and responses. The wrapper has the credentials and PDU version
+     * of the given client, so it can be used in place of it with {@link com.guardtime.ksi.KSIBuilder} and
+     * {@link com.guardtime.ksi.blocksigner.KsiBlockSigner}.
+     */
+    public static KSISigningClient signingClient(KSISigningClient client, KsiMetrics metrics) {
+        return new MeteredSigningClient(client, metrics);
+    }
+
+    public static KSIExtenderClient extenderClient(KSIExtenderClient client, KsiMetrics metrics) {
+        return new MeteredExtenderClient(client, metrics);
+    }
+
+    static String errorCode(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof KSIProtocolException) {
+                Long status = protocolStatus((KSIProtocolException) cause);
+                return status != null ? "0x" + Long.toHexString(status) : cause.getClass().getSimpleName();
+            }
+            if (cause instanceof HttpProtocolException) {
+                return "HTTP " + ((HttpProtocolException) cause).getErrorCode();
+            }
+        }
+        return e.getClass().getSimpleName();
+    }
+
+    /**
+     * Status of the protocol error, or null if there is none. The exception keeps the status only behind
+     * a getter that fails without it, and the errors returned by the service carry the status in the
+     * message instead, so the status is read from the message in either of its forms.
+     */
+    private static Long protocolStatus(KSIProtocolException e) {
+        String message = e.getMessage();
+        if (message == null) {
+            return null;
+        }
+        Matcher matcher = PROTOCOL_STATUS.matcher(message);
+        if (!matcher.find()) {
+            return null;
+        }
+        return matcher.group(1) != null ? Long.valueOf(matcher.group(1)) : Long.valueOf(matcher.group(2), 16);
+    }
+
+    private interface Call<T> {
+        T call() throws KSIException;
+    }
+
+    private interface Request {
+        Future<TLVElement> send(InputStream request) throws KSIClientException;
+    }
+
+    private static <T> T measure(KsiMetrics metrics, Operation operation, Call<T> call) throws KSIException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            T result = call.call();
+            succeeded = true;
+            return result;
+        } catch (KSIException | RuntimeException e) {
+            metrics.recordFailure(operation, errorCode(e));
+            throw e;
+        } finally {
+            metrics.recordLatency(operation, System.nanoTime() - start, succeeded);
+        }
+    }
+
+    private static <T> Future<T> measureAsync(KsiMetrics metrics, Operation operation, Call<Future<T>> call) throws KSIException {
+        long start = System.nanoTime();
+        try {
+            return new MeteredFuture<>(call.call(), metrics, operation, start);
+        } catch (KSIException | RuntimeException e) {
+            metrics.recordFailure(operation, errorCode(e));
+            metrics.recordLatency(operation, System.nanoTime() - start, false);
+            throw e;
+        }
+    }
+
+    /**
+     * Future that records the latency when the result is taken the first time.
+     */
+    private static class MeteredFuture<T> implements Future<T> {
+
+        private final Future<T> future;
+        private final KsiMetrics metrics;
+        private final Operation operation;
+        private final long start;
+        private volatile boolean recorded;
+
+        MeteredFuture(Future<T> future, KsiMetrics metrics, Operation operation, long start) {
+            this.future = future;
+            this.metrics = metrics;
+            this.operation = operation;
+            this.start = start;
+        }
+
+        public T getResult() throws KSIException {
+            if (recorded) {
+                return future.getResult();
+            }
+            boolean succeeded = false;
+            try {
+                T result = future.getResult();
+                succeeded = true;
+                onResult(result);
+                return result;
+            } catch (KSIException | RuntimeException e) {
+                if (!recorded) {
+                    metrics.recordFailure(operation, errorCode(e));
+                }
+                throw e;
+            } finally {
+                if (!recorded) {
+                    recorded = true;
+                    metrics.recordLatency(operation, System.nanoTime() - start, succeeded);
+                }
+            }
+        }
+
+        public boolean isFinished() {
+            return future.isFinished();
+        }
+
+        void onResult(T result) {
+        }
+    }
+
+    private static final class MeteredSigner implements Signer {
+
+        private final Signer signer;
+        private final KsiMetrics metrics;
+
+        MeteredSigner(Signer signer, KsiMetrics metrics) {
+            this.signer = signer;
+            this.metrics = metrics;
+        }
+
+        public KSISignature sign(DataHash dataHash) throws KSIException {
+            return measure(metrics, Operation.SIGN, () -> signer.sign(dataHash));
+        }
+
+        public KSISignature sign(DataHash dataHash, long level) throws KSIException {
+            return measure(metrics, Operation.SIGN, () -> signer.sign(dataHash, level));
+        }
+
+        public KSISignature sign(File file) throws KSIException {
+            return measure(metrics, Operation.SIGN, () -> signer.sign(file));
+        }
+
+        public KSISignature sign(byte[] bytes) throws KSIException {
+            return measure(metrics, Operation.SIGN, () -> signer.sign(bytes));
+        }
+
+        public Future<KSISignature> asyncSign(DataHash dataHash) throws KSIException {
+            return measureAsync(metrics, Operation.SIGN, () -> signer.asyncSign(dataHash));
+        }
+
+        public Future<KSISignature> asyncSign(DataHash dataHash, long level) throws KSIException {
+            return measureAsync(metrics, Operation.SIGN, () -> signer.asyncSign(dataHash, level));
+        }
+
+        public Future<KSISignature> asyncSign(File file) throws KSIException {
+            return measureAsync(metrics, Operation.SIGN, () -> signer.asyncSign(file));
+        }
+
+        public Future<KSISignature> asyncSign(byte[] bytes) throws KSIException {
+            return measureAsync(metrics, Operation.SIGN, () -> signer.asyncSign(bytes));
+        }
+
+        public KSISigningService getSigningService() {
+            return signer.getSigningService();
+        }
+
+        public AggregatorConfiguration getAggregatorConfiguration() throws KSIException {
+            return signer.getAggregatorConfiguration();
+        }
+
+        public void close() throws IOException {
+            signer.close();
+        }
+    }
+
+    private static final class MeteredExtender implements Extender {
+
+        private final Extender extender;
+        private final KsiMetrics metrics;
+
+        MeteredExtender(Extender extender, KsiMetrics metrics) {
+            this.extender = extender;
+            this.metrics = metrics;
+        }
+
+        public KSISignature extend(KSISignature signature) throws KSIException {
+            return measure(metrics, Operation.EXTEND, () -> extender.extend(signature));
+        }
+
+        public KSISignature extend(KSISignature signature, PublicationRecord publicationRecord) throws KSIException {
+            return measure(metrics, Operation.EXTEND, () -> extender.extend(signature, publicationRecord));
+        }
+
+        public Future<KSISignature> asyncExtend(KSISignature signature) throws KSIException {
+            return measureAsync(metrics, Operation.EXTEND, () -> extender.asyncExtend(signature));
+        }
+
+        public Future<KSISignature> asyncExtend(KSISignature signature, PublicationRecord publicationRecord) throws KSIException {
+            return measureAsync(metrics, Operation.EXTEND, () -> extender.asyncExtend(signature, publicationRecord));
+        }
+
+        public KSIExtendingService getExtendingService() {
+            return extender.getExtendingService();
+        }
+
+        public ExtenderConfiguration getExtenderConfiguration() throws KSIException {
+            return extender.getExtenderConfiguration();
+        }
+
+        public void close() throws IOException {
+            extender.close();
+        }
+    }
+
+    private static final class MeteredVerifier implements Verifier {
+
+        private final Verifier verifier;
+        private final KsiMetrics metrics;
+
+        MeteredVerifier(Verifier verifier, KsiMetrics metrics) {
+            this.verifier = verifier;
+            this.metrics = metrics;
+        }
+
+        public VerificationResult verify(KSISignature signature, ContextAwarePolicy policy) throws KSIException {
+            return verify(signature, null, null, policy);
+        }
+
+        public VerificationResult verify(KSISignature signature, DataHash documentHash, ContextAwarePolicy policy) throws KSIException {
+            return verify(signature, documentHash, null, policy);
+        }
+
+        public VerificationResult verify(KSISignature signature, DataHash documentHash, Long level, ContextAwarePolicy policy) throws KSIException {
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                VerificationResult result = verifier.verify(signature, documentHash, level, policy);
+                succeeded = result.isOk();
+                if (!succeeded) {
+                    metrics.recordFailure(Operation.VERIFY, result.getErrorCode() != null ? result.getErrorCode().getCode() : "NA");
+                }
+                return result;
+            } catch (KSIException | RuntimeException e) {
+                metrics.recordFailure(Operation.VERIFY, errorCode(e));
+                throw e;
+            } finally {
+                metrics.recordLatency(Operation.VERIFY, System.nanoTime() - start, succeeded);
+            }
+        }
+    }
+
+    private static final class MeteredBlockSigner implements BlockSigner<List<KSISignature>> {
+
+        private final BlockSigner<List<KSISignature>> blockSigner;
+        private final KsiMetrics metrics;
+        private int size;
+
+        MeteredBlockSigner(BlockSigner<List<KSISignature>> blockSigner, KsiMetrics metrics) {
+            this.blockSigner = blockSigner;
+            this.metrics = metrics;
+        }
+
+        public boolean add(DataHash dataHash) throws KSIException {
+            return count(blockSigner.add(dataHash));
+        }
+
+        public boolean add(DataHash dataHash, IdentityMetadata metadata) throws KSIException {
+            return count(blockSigner.add(dataHash, metadata));
+        }
+
+        public boolean add(DataHash dataHash, long level, IdentityMetadata metadata) throws KSIException {
+            return count(blockSigner.add(dataHash, level, metadata));
+        }
+
+        public List<KSISignature> sign() throws KSIException {
+            metrics.recordBlockSize(size);
+            size = 0;
+            return measure(metrics, Operation.BLOCK_SIGN, blockSigner::sign);
+        }
+
+        private boolean count(boolean added) {
+            if (added) {
+                size++;
+            }
+            return added;
+        }
+    }
+
+    private static final class MeteredSigningClient implements KSISigningClient {
+
+        private final KSISigningClient client;
+        private final KsiMetrics metrics;
+
+        MeteredSigningClient(KSISigningClient client, KsiMetrics metrics) {
+            this.client = client;
+            this.metrics = metrics;
+        }
+
+        public Future<TLVElement> sign(InputStream request) throws KSIClientException {
+            return send(metrics, Operation.AGGREGATION_REQUEST, request, client::sign);
+        }
+
+        public ServiceCredentials getServiceCredentials() {
+            return client.getServiceCredentials();
+        }
+
+        public PduVersion getPduVersion() {
+            return client.getPduVersion();
+        }
+
+        public void close() throws IOException {
+            client.close();
+        }
+    }
+
+    private static final class MeteredExtenderClient implements KSIExtenderClient {
+
+        private final KSIExtenderClient client;
+        private final KsiMetrics metrics;
+
+        MeteredExtenderClient(KSIExtenderClient client, KsiMetrics metrics) {
+            this.client = client;
+            this.metrics = metrics;
+        }
+
+        public Future<TLVElement> extend(InputStream request) throws KSIClientException {
+            return send(metrics, Operation.EXTENSION_REQUEST, request, client::extend);
+        }
+
+        public ServiceCredentials getServiceCredentials() {
+            return client.getServiceCredentials();
+        }
+
+        public PduVersion getPduVersion() {
+            return client.getPduVersion();
+        }
+
+        public void close() throws IOException {
+            client.close();
+        }
+    }
+
+    private static Future<TLVElement> send(final KsiMetrics metrics, final Operation operation, InputStream request,
+                                           Request client) throws KSIClientException {
+        long start = System.nanoTime();
+        final byte[] bytes;
+        try {
+            bytes = Util.toByteArray(request);
+        } catch (IOException e) {
+            throw new KSIClientException("Reading the request failed", e);
+        }
+        Future<TLVElement> future;
+        try {
+            future = client.send(new ByteArrayInputStream(bytes));
+        } catch (KSIClientException | RuntimeException e) {
+            metrics.recordFailure(operation, errorCode(e));
+            metrics.recordLatency(operation, System.nanoTime() - start, false);
+            throw e;
+        }
+        return new MeteredFuture<TLVElement>(future, metrics, operation, start) {
+            @Override
+            void onResult(TLVElement response) {
+                metrics.recordBytes(operation, bytes.length, response.getHeaderLength() + response.getContentLength());
+            }
+        };
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.blocksigner.IdentityMetadata;
+import com.guardtime.ksi.blocksigner.KsiBlockSigner;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.service.client.KSISigningClient;
+import com.guardtime.ksi.unisignature.KSISignature;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-running signing pipeline built on top of {@link KsiBlockSigner}. Hashes can be submitted from
+ * any number of threads, a single background thread collects them into blocks and cuts a block every
+ * {@code maxBlockSize} items or {@code maxBlockDelayMillis} milliseconds after the first item of the
+ * block arrived, whichever comes first. Each block is signed with a single request to the KSI Gateway
+ * and the future returned by {@link #submit(DataHash)} is completed with the signature of the item.
+ * <p>
+ * The signing client is not owned by this class and is not closed by {@link #close()}.
+ */
+public class MicroBatchingSigner implements Closeable {
+
+    private final KSISigningClient signingClient;
+    private final int maxBlockSize;
+    private final long maxBlockDelayMillis;
+    private final BlockingQueue<PendingItem> queue = new LinkedBlockingQueue<>();
+    private final Thread dispatcher;
+    private volatile boolean closed;
+
+    /**
+     * @param signingClient       client used for signing the root hashes of the blocks, e.g. the one
+     *                            created in {@link KsiSamples#setUpKsi()}.
+     * @param maxBlockSize        maximum number of items in a single block.
+     * @param maxBlockDelayMillis maximum time an item waits for the block to fill up.
+     */
+    public MicroBatchingSigner(KSISigningClient signingClient, int maxBlockSize, long maxBlockDelayMillis) {
+        if (signingClient == null) {
+            throw new IllegalArgumentException("Signing client must be present");
+        }
+        if (maxBlockSize < 1) {
+            throw new IllegalArgumentException("Maximum block size must be positive");
+        }
+        if (maxBlockDelayMillis < 0) {
+            throw new IllegalArgumentException("Maximum block delay can not be negative");
+        }
+        this.signingClient = signingClient;
+        this.maxBlockSize = maxBlockSize;
+        this.maxBlockDelayMillis = maxBlockDelayMillis;
+        this.dispatcher = new Thread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, "ksi-micro-batching-signer");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Submits a hash to be signed in one of the next blocks.
+     *
+     * @return future that is completed with the signature once the block containing the hash is signed.
+     */
+    public CompletableFuture<KSISignature> submit(DataHash hash) {
+        return submit(hash, null);
+    }
+
+    /**
+     * Submits a hash together with the identity metadata to be embedded into the signature.
+     */
+    public CompletableFuture<KSISignature> submit(DataHash hash, IdentityMetadata metadata) {
+        if (hash == null) {
+            throw new IllegalArgumentException("Hash must be present");
+        }
+        if (closed) {
+            throw new IllegalStateException("Signer is closed");
+        }
+        PendingItem item = new PendingItem(hash, metadata);
+        queue.add(item);
+        // Items that raced with closing are never signed
+        if (closed && queue.remove(item)) {
+            item.future.completeExceptionally(new IllegalStateException("Signer is closed"));
+        }
+        return item.future;
+    }
+
+    /**
+     * Stops accepting new items, signs the items already submitted and waits for the background thread
+     * to finish.
+     */
+    public void close() {
+        closed = true;
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        PendingItem item;
+        while ((item = queue.poll()) != null) {
+            item.future.completeExceptionally(new IllegalStateException("Signer is closed"));
+        }
+    }
+
+    private void dispatch() {
+        List<PendingItem> block = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                PendingItem first = queue.poll(Math.max(maxBlockDelayMillis, 1), TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                block.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBlockDelayMillis);
+                while (block.size() < maxBlockSize) {
+                    // Take whatever is already queued without waiting
+                    if (queue.drainTo(block, maxBlockSize - block.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    PendingItem next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    block.add(next);
+                }
+                signBlock(block);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failAll(block, e);
+                return;
+            } finally {
+                block.clear();
+            }
+        }
+    }
+
+    private void signBlock(List<PendingItem> block) {
+        try {
+            CorrelatingBlockSigner<PendingItem> blockSigner =
+                    new CorrelatingBlockSigner<>(new KsiBlockSigner(signingClient));
+            int added = 0;
+            while (added < block.size()) {
+                PendingItem item = block.get(added);
+                if (!blockSigner.add(item.hash, item.metadata, item)) {
+                    break;
+                }
+                added++;
+            }
+            if (added == 0) {
+                throw new KSIException("Item does not fit into an empty block");
+            }
+            for (Map.Entry<PendingItem, KSISignature> entry : blockSigner.sign().entrySet()) {
+                entry.getKey().future.complete(entry.getValue());
+            }
+
+            // The tree reached its maximum height, the rest goes to a new block
+            if (added < block.size()) {
+                signBlock(new ArrayList<>(block.subList(added, block.size())));
+            }
+        } catch (KSIException | RuntimeException e) {
+            failAll(block, e);
+        }
+    }
+
+    private static void failAll(List<PendingItem> items, Throwable cause) {
+        for (PendingItem item : items) {
+            // No-op for the futures that are already completed
+            item.future.completeExceptionally(cause);
+        }
+    }
+
+    private static final class PendingItem {
+        private final DataHash hash;
+        private final IdentityMetadata metadata;
+        private final CompletableFuture<KSISignature> future = new CompletableFuture<>();
+
+        private PendingItem(DataHash hash, IdentityMetadata metadata) {
+            this.hash = hash;
+            this.metadata = metadata;
+        }
+    }
+}
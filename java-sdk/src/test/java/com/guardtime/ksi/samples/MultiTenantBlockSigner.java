@@ -0,0 +1,376 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.blocksigner.IdentityMetadata;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.service.client.KSISigningClient;
+import com.guardtime.ksi.unisignature.KSISignature;
+import com.guardtime.ksi.unisignature.KSISignatureComponentFactory;
+import com.guardtime.ksi.unisignature.inmemory.InMemoryKsiSignatureComponentFactory;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signing pipeline shared by many tenants, whose items carry different identity metadata, e.g. of the
+ * users of the tenants. Unlike a {@link com.guardtime.ksi.blocksigner.KsiBlockSigner} per user, the items
+ * of all the tenants go into the same blocks, which are signed one at a time by a background thread with
+ * a {@link ParallelBlockSigner}.
+ * <ul>
+ * <li>The identity metadata is interned: metadata with the same client and machine identifiers, and
+ * without a sequence number or request time, is replaced with one shared object, which is encoded once
+ * while it is interned. Up to a given number of identities are interned, the least recently used one is
+ * evicted first. Metadata with a sequence number or request time differs for every item and is used as
+ * is.</li>
+ * <li>Each tenant may have up to a quota of items submitted and not yet signed; more are rejected with
+ * {@link RejectedExecutionException}.</li>
+ * <li>A block is filled from the tenants in turns, each tenant with waiting items getting an equal share
+ * of the room left, so a tenant with a long queue does not delay the items of the others by more than a
+ * block. The tenant to start with rotates from block to block.</li>
+ * </ul>
+ * A block is cut when the given number of items is waiting, or the given delay after the first waiting
+ * item arrived.
+ * <p>
+ * The signing client is not owned by this class and is not closed by {@link #close()}.
+ */
+public class MultiTenantBlockSigner implements Closeable {
+
+    private final ParallelBlockSigner blockSigner;
+    private final int blockSize;
+    private final long blockDelayMillis;
+    private final int tenantQuota;
+    private final int maxInternedMetadata;
+    private final Object lock = new Object();
+    private final Map<String, Tenant> tenants = new HashMap<>();
+    // Tenants with waiting items, in the order they get into the next block
+    private final ArrayDeque<Tenant> active = new ArrayDeque<>();
+    // Interned metadata by the client and machine identifiers, in the order of use
+    private final LinkedHashMap<List<String>, IdentityMetadata> internedMetadata;
+    private final Map<IdentityMetadata, byte[]> metadataEncodings = new ConcurrentHashMap<>();
+    private final KSISignatureComponentFactory componentFactory = new InMemoryKsiSignatureComponentFactory();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final Thread dispatcher;
+    private int waitingCount;
+    private long firstWaitingNanos;
+    private volatile boolean closed;
+
+    private MultiTenantBlockSigner(Builder builder) {
+        this.blockSigner = new ParallelBlockSigner(builder.signingClient);
+        this.blockSigner.setSharedMetadataEncodings(metadataEncodings);
+        this.blockSize = builder.blockSize;
+        this.blockDelayMillis = builder.blockDelayMillis;
+        this.tenantQuota = builder.tenantQuota;
+        this.maxInternedMetadata = builder.maxInternedMetadata;
+        this.internedMetadata = new LinkedHashMap<List<String>, IdentityMetadata>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<String>, IdentityMetadata> eldest) {
+                if (size() <= maxInternedMetadata) {
+                    return false;
+                }
+                metadataEncodings.remove(eldest.getValue());
+                return true;
+            }
+        };
+        this.dispatcher = new Thread(this::dispatch, "ksi-multi-tenant-block-signer");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Submits a hash of the tenant to be signed without identity metadata.
+     */
+    public CompletableFuture<KSISignature> submit(String tenant, DataHash hash) {
+        return submit(tenant, hash, null);
+    }
+
+    /**
+     * Submits a hash of the tenant together with the identity metadata to be embedded into the signature.
+     *
+     * @return future that is completed with the signature once the block containing the hash is signed.
+     * @throws RejectedExecutionException if the tenant already has its quota of items waiting or being
+     *                                    signed.
+     */
+    public CompletableFuture<KSISignature> submit(String tenant, DataHash hash, IdentityMetadata metadata) {
+        if (tenant == null || hash == null) {
+            throw new IllegalArgumentException("Tenant and hash must be present");
+        }
+        Item item;
+        Tenant owner;
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("Signer is closed");
+            }
+            owner = tenants.computeIfAbsent(tenant, Tenant::new);
+            if (owner.outstanding == tenantQuota) {
+                rejectedCount.incrementAndGet();
+                throw new RejectedExecutionException("Quota of tenant " + tenant + " is exceeded");
+            }
+            owner.outstanding++;
+            item = new Item(hash, intern(metadata));
+            if (owner.waiting.isEmpty()) {
+                active.addLast(owner);
+            }
+            owner.waiting.addLast(item);
+            if (waitingCount++ == 0) {
+                firstWaitingNanos = System.nanoTime();
+            }
+            lock.notifyAll();
+        }
+        item.future.whenComplete((signature, e) -> {
+            synchronized (lock) {
+                owner.outstanding--;
+            }
+        });
+        return item.future;
+    }
+
+    /**
+     * Number of items of the tenant waiting or being signed.
+     */
+    public int getOutstandingCount(String tenant) {
+        synchronized (lock) {
+            Tenant owner = tenants.get(tenant);
+            return owner != null ? owner.outstanding : 0;
+        }
+    }
+
+    /**
+     * Number of items rejected over the quota of their tenant.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Number of distinct identity metadata objects shared by the submitted items.
+     */
+    public int getInternedMetadataCount() {
+        synchronized (lock) {
+            return internedMetadata.size();
+        }
+    }
+
+    /**
+     * Stops accepting new items, signs the items already submitted and waits for the background thread
+     * to finish.
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the shared metadata object with the same identifiers, called with the lock held.
+     */
+    private IdentityMetadata intern(IdentityMetadata metadata) {
+        if (metadata == null || metadata.getSequenceNumber() != null || metadata.getRequestTime() != null
+                || maxInternedMetadata == 0) {
+            return metadata;
+        }
+        List<String> key = Arrays.asList(metadata.getClientId(), metadata.getMachineId());
+        IdentityMetadata interned = internedMetadata.get(key);
+        if (interned != null) {
+            return interned;
+        }
+        try {
+            metadataEncodings.put(metadata, ParallelBlockSigner.encodeMetadata(componentFactory, metadata));
+        } catch (KSIException e) {
+            // Not shared, the block signer reports the failure
+            return metadata;
+        }
+        internedMetadata.put(key, metadata);
+        return metadata;
+    }
+
+    private void dispatch() {
+        while (true) {
+            List<Item> block;
+            try {
+                block = nextBlock();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (block == null) {
+                return;
+            }
+            sign(block);
+        }
+    }
+
+    /**
+     * Waits until a block is due and takes its items from the tenants in turns.
+     *
+     * @return the items of the block, or null if the signer is closed and there are no items left.
+     */
+    private List<Item> nextBlock() throws InterruptedException {
+        synchronized (lock) {
+            while (true) {
+                if (waitingCount == 0) {
+                    if (closed) {
+                        return null;
+                    }
+                    lock.wait();
+                    continue;
+                }
+                long remaining = firstWaitingNanos + TimeUnit.MILLISECONDS.toNanos(blockDelayMillis) - System.nanoTime();
+                if (waitingCount >= blockSize || remaining <= 0 || closed) {
+                    break;
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+            List<Item> block = new ArrayList<>(Math.min(waitingCount, blockSize));
+            while (block.size() < blockSize && !active.isEmpty()) {
+                // An equal share of the room left for each tenant with waiting items
+                int share = Math.max(1, (blockSize - block.size()) / active.size());
+                for (int turns = active.size(); turns > 0 && block.size() < blockSize; turns--) {
+                    Tenant tenant = active.pollFirst();
+                    for (int i = 0; i < share && block.size() < blockSize && !tenant.waiting.isEmpty(); i++) {
+                        block.add(tenant.waiting.pollFirst());
+                    }
+                    if (!tenant.waiting.isEmpty()) {
+                        active.addLast(tenant);
+                    }
+                }
+            }
+            // The items left over have waited for the delay already and go into the next block at once
+            waitingCount -= block.size();
+            return block;
+        }
+    }
+
+    private void sign(List<Item> block) {
+        try {
+            for (Item item : block) {
+                if (!blockSigner.add(item.hash, 0, item.metadata)) {
+                    throw new KSIException("Block of " + block.size() + " items does not fit into the tree");
+                }
+            }
+            List<KSISignature> signatures = blockSigner.sign().getSignatures();
+            for (int i = 0; i < block.size(); i++) {
+                block.get(i).future.complete(signatures.get(i));
+            }
+        } catch (Exception e) {
+            for (Item item : block) {
+                item.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static final class Tenant {
+
+        private final String name;
+        private final ArrayDeque<Item> waiting = new ArrayDeque<>();
+        private int outstanding;
+
+        private Tenant(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return "Tenant{" + name + "}";
+        }
+    }
+
+    private static final class Item {
+
+        private final DataHash hash;
+        private final IdentityMetadata metadata;
+        private final CompletableFuture<KSISignature> future = new CompletableFuture<>();
+
+        private Item(DataHash hash, IdentityMetadata metadata) {
+            this.hash = hash;
+            this.metadata = metadata;
+        }
+    }
+
+    public static class Builder {
+
+        private final KSISigningClient signingClient;
+        private int blockSize = 10000;
+        private long blockDelayMillis = 100;
+        private int tenantQuota = 10000;
+        private int maxInternedMetadata = 100000;
+
+        /**
+         * @param signingClient client used for signing the root hashes of the blocks, e.g. the one
+         *                      created in {@link KsiSamples#setUpKsi()}.
+         */
+        public Builder(KSISigningClient signingClient) {
+            if (signingClient == null) {
+                throw new IllegalArgumentException("Signing client must be present");
+            }
+            this.signingClient = signingClient;
+        }
+
+        /**
+         * Maximum number of items in a block and the maximum time an item waits for the block to fill up,
+         * 10000 items and 100 ms by default.
+         */
+        public Builder setBlock(int blockSize, long blockDelayMillis) {
+            this.blockSize = blockSize;
+            this.blockDelayMillis = blockDelayMillis;
+            return this;
+        }
+
+        /**
+         * Maximum number of items of a tenant waiting or being signed, 10000 by default.
+         */
+        public Builder setTenantQuota(int tenantQuota) {
+            this.tenantQuota = tenantQuota;
+            return this;
+        }
+
+        /**
+         * Maximum number of distinct identity metadata objects kept for sharing, 100000 by default. When
+         * there are more, the least recently used ones are evicted.
+         */
+        public Builder setMaxInternedMetadata(int maxInternedMetadata) {
+            this.maxInternedMetadata = maxInternedMetadata;
+            return this;
+        }
+
+        public MultiTenantBlockSigner build() {
+            if (blockSize < 1 || blockSize > 1000000 || blockDelayMillis < 0) {
+                throw new IllegalStateException("Invalid block settings");
+            }
+            if (tenantQuota < 1 || maxInternedMetadata < 0) {
+                throw new IllegalStateException("Invalid multi-tenant block signer settings");
+            }
+            return new MultiTenantBlockSigner(this);
+        }
+    }
+}
@@ -0,0 +1,653 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.KSI;
+import com.guardtime.ksi.KSIBuilder;
+import com.guardtime.ksi.Signer;
+import com.guardtime.ksi.SignatureReader;
+import com.guardtime.ksi.SignatureVerifier;
+import com.guardtime.ksi.SignerBuilder;
+import com.guardtime.ksi.Verifier;
+import com.guardtime.ksi.blocksigner.BlockSigner;
+import com.guardtime.ksi.blocksigner.IdentityMetadata;
+import com.guardtime.ksi.blocksigner.KsiBlockSigner;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.service.KSIProtocolException;
+import com.guardtime.ksi.service.KSISigningClientServiceAdapter;
+import com.guardtime.ksi.service.client.KSIExtenderClient;
+import com.guardtime.ksi.service.client.KSIServiceCredentials;
+import com.guardtime.ksi.service.client.KSISigningClient;
+import com.guardtime.ksi.service.client.ServiceCredentials;
+import com.guardtime.ksi.service.client.http.CredentialsAwareHttpSettings;
+import com.guardtime.ksi.service.client.http.HttpSettings;
+import com.guardtime.ksi.service.http.simple.SimpleHttpExtenderClient;
+import com.guardtime.ksi.service.http.simple.SimpleHttpPublicationsFileClient;
+import com.guardtime.ksi.service.http.simple.SimpleHttpSigningClient;
+import com.guardtime.ksi.unisignature.Identity;
+import com.guardtime.ksi.unisignature.KSISignature;
+import com.guardtime.ksi.unisignature.verifier.VerificationResult;
+import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicy;
+import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicyAdapter;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Samples that run without access to the KSI service, against the {@link StubKsiServer} started in the
+ * same process. Unlike the other samples, these do not need the service end points and credentials.
+ */
+public class OfflineSamples {
+
+    private final ServiceCredentials credentials = new KSIServiceCredentials("anon", "anon");
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * Signs, extends and verifies a signature through the HTTP clients, with the stub server in place of the
+     * KSI service.
+     */
+    @Test
+    public void signExtendAndVerifyOffline() throws Exception {
+        StubKsiService service = new StubKsiService(credentials);
+        try (StubKsiServer server = new StubKsiServer.Builder(service).build();
+             KSI ksi = createKsi(server)) {
+            DataHash hash = new DataHasher(HashAlgorithm.SHA2_256).addData("Hello, offline KSI!".getBytes()).getHash();
+            KSISignature signature = ksi.sign(hash);
+
+            // The stub publishes only when asked, then the signature can be extended to the publication
+            service.publish();
+            KSISignature extended = ksi.extend(signature);
+
+            VerificationResult result = ksi.verify(extended, ContextAwarePolicyAdapter.createPublicationsFilePolicy(ksi), hash);
+            assertTrue(result.isOk());
+        }
+    }
+
+    /**
+     * Signs from several threads through a stub server that delays the responses, answers some of them
+     * with errors and limits the request rate, and prints the latency percentiles and the failures, like a
+     * load test on a CI box.
+     */
+    @Test
+    public void measureSigningLatencyOffline() throws Exception {
+        StubKsiService service = new StubKsiService(credentials);
+        StubKsiServer.Builder builder = new StubKsiServer.Builder(service)
+                .setLatency(5, 10)
+                .setSlowResponses(0.02, 200)
+                .setErrors(0.01, 0x300)
+                .setMaxRequestsPerSecond(100);
+        int threads = 8;
+        int requestsPerThread = 50;
+        long[] latencies = new long[threads * requestsPerThread];
+        AtomicInteger count = new AtomicInteger();
+        AtomicInteger ksiErrors = new AtomicInteger();
+        AtomicInteger otherErrors = new AtomicInteger();
+        try (StubKsiServer server = builder.build();
+             Signer signer = new SignerBuilder().setSigningService(new KSISigningClientServiceAdapter(
+                     new SimpleHttpSigningClient(new CredentialsAwareHttpSettings(server.getAggregatorUrl(), credentials)))).build()) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            for (int i = 0; i < threads; i++) {
+                executor.execute(() -> {
+                    for (int j = 0; j < requestsPerThread; j++) {
+                        DataHash hash = new DataHasher(HashAlgorithm.SHA2_256).addData(new byte[]{(byte) j}).getHash();
+                        long start = System.nanoTime();
+                        try {
+                            signer.sign(hash);
+                            latencies[count.getAndIncrement()] = System.nanoTime() - start;
+                        } catch (KSIProtocolException e) {
+                            ksiErrors.incrementAndGet();
+                        } catch (KSIException e) {
+                            // HTTP errors from throttling
+                            otherErrors.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+            long[] signed = Arrays.copyOf(latencies, count.get());
+            Arrays.sort(signed);
+            System.out.println("measureSigningLatencyOffline > signed " + signed.length + ", p50 " + percentile(signed, 50)
+                    + " ms, p99 " + percentile(signed, 99) + " ms, max " + percentile(signed, 100) + " ms");
+            System.out.println("measureSigningLatencyOffline > KSI errors " + ksiErrors + ", other errors " + otherErrors
+                    + ", injected by the server " + server.getInjectedErrorCount() + " errors and " + server.getThrottledCount()
+                    + " throttled requests");
+            assertTrue(signed.length > 0);
+        }
+    }
+
+    /**
+     * Signs through a {@link LoadBalancingClient} over three stub servers: a fast one, a slow one and one
+     * that answers every request with an HTTP error. The requests are hedged to another server when the
+     * slow one is late and fail over when the failing one fails, and both bad servers are ejected.
+     */
+    @Test
+    public void balanceLoadOverGatewaysOffline() throws Exception {
+        StubKsiService service = new StubKsiService(credentials);
+        try (StubKsiServer slow = new StubKsiServer.Builder(service).setSlowResponses(1.0, 1000).build();
+             StubKsiServer failing = new StubKsiServer.Builder(service).setHttpErrors(1.0).build();
+             StubKsiServer fast = new StubKsiServer.Builder(service).setLatency(5, 5).build();
+             LoadBalancingClient client = new LoadBalancingClient.Builder()
+                     .addSigningEndpoint("slow", createSigningClient(slow))
+                     .addSigningEndpoint("failing", createSigningClient(failing))
+                     .addSigningEndpoint("fast", createSigningClient(fast))
+                     .setHedgeDelay(100)
+                     .setSlowThreshold(500)
+                     .setFailureThreshold(2)
+                     .setEjectionTime(60000)
+                     .setMaxConcurrentRequests(8)
+                     .build();
+             Signer signer = new SignerBuilder().setSigningService(new KSISigningClientServiceAdapter(client)).build()) {
+            DataHasher dh = new DataHasher(HashAlgorithm.SHA2_256);
+            for (int i = 0; i < 20; i++) {
+                dh.reset();
+                DataHash hash = dh.addData(new byte[]{(byte) i}).getHash();
+                assertEquals(hash, signer.sign(hash).getInputHash());
+            }
+
+            List<LoadBalancingClient.EndpointStats> stats = client.getStats();
+            for (LoadBalancingClient.EndpointStats endpoint : stats) {
+                System.out.println("balanceLoadOverGatewaysOffline > " + endpoint);
+            }
+            System.out.println("balanceLoadOverGatewaysOffline > hedged " + client.getHedgeCount() + " requests");
+            assertTrue(client.getHedgeCount() > 0);
+            assertTrue(stats.get(0).getEjections() > 0);
+            assertTrue(stats.get(1).isEjected());
+            assertEquals(stats.get(1).getRequests(), stats.get(1).getFailures());
+            // Every request not answered by the slow server was answered by the fast one
+            assertTrue(stats.get(2).getRequests() - stats.get(2).getFailures() >= 20 - stats.get(0).getRequests());
+        }
+    }
+
+    /**
+     * Correlates the signatures of a block in which the same hash is added with and without identity
+     * metadata, when the block signer returns the signatures in a different order than the items were
+     * added. Each item gets the signature with its own metadata.
+     */
+    @Test
+    public void correlateDuplicateHashesOffline() throws Exception {
+        StubKsiService service = new StubKsiService(credentials);
+        KsiBlockSigner reversingSigner = new KsiBlockSigner(new KSISigningClientServiceAdapter(service)) {
+            @Override
+            public List<KSISignature> sign() throws KSIException {
+                List<KSISignature> signatures = new ArrayList<>(super.sign());
+                Collections.reverse(signatures);
+                return signatures;
+            }
+        };
+        CorrelatingBlockSigner<Integer> signer = new CorrelatingBlockSigner<>(reversingSigner);
+        DataHash hash = new DataHasher(HashAlgorithm.SHA2_256).addData("duplicate".getBytes()).getHash();
+        IdentityMetadata[] metadata = {null, new IdentityMetadata("alice"), null, new IdentityMetadata("bob")};
+        for (int i = 0; i < metadata.length; i++) {
+            assertTrue(signer.add(hash, metadata[i], i));
+        }
+        assertTrue(signer.add(new DataHasher(HashAlgorithm.SHA2_256).addData("unique".getBytes()).getHash(), metadata.length));
+
+        Map<Integer, KSISignature> signatures = signer.sign();
+        int withoutMetadata = signatures.get(0).getAggregationHashChainIdentity().length;
+        for (int i = 0; i < metadata.length; i++) {
+            Identity[] identities = signatures.get(i).getAggregationHashChainIdentity();
+            if (metadata[i] == null) {
+                assertEquals(withoutMetadata, identities.length);
+            } else {
+                String clientId = metadata[i].getClientId();
+                assertEquals(withoutMetadata + 1, identities.length);
+                assertTrue(Arrays.stream(identities).anyMatch(identity -> clientId.equals(identity.getDecodedClientId())));
+            }
+        }
+    }
+
+    /**
+     * Signs from several threads and extends through {@link PooledHttpClient}s, which keep a few
+     * persistent connections to the stub server instead of one per request.
+     */
+    @Test
+    public void signAndExtendWithPooledClientOffline() throws Exception {
+        StubKsiService service = new StubKsiService(credentials);
+        try (StubKsiServer server = new StubKsiServer.Builder(service).setLatency(5, 5).build();
+             PooledHttpClient signingClient = new PooledHttpClient(
+                     new CredentialsAwareHttpSettings(server.getAggregatorUrl(), credentials), 4, HttpVersionPolicy.FORCE_HTTP_1);
+             PooledHttpClient extenderClient = new PooledHttpClient(
+                     new CredentialsAwareHttpSettings(server.getExtenderUrl(), credentials), 4);
+             KSI ksi = new KSIBuilder()
+                     .setKsiProtocolSignerClient(signingClient)
+                     .setKsiProtocolExtenderClient(extenderClient)
+                     .setKsiProtocolPublicationsFileClient(new SimpleHttpPublicationsFileClient(new HttpSettings(server.getPublicationsFileUrl())))
+                     .setPublicationsFilePkiTrustStore(service.getTrustStore())
+                     .setPublicationsFileTrustedCertSelector(service.getCertificateSelector())
+                     .build()) {
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            List<Future<KSISignature>> signatures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                DataHash hash = new DataHasher(HashAlgorithm.SHA2_256).addData(new byte[]{(byte) i}).getHash();
+                signatures.add(executor.submit(() -> ksi.sign(hash)));
+            }
+            executor.shutdown();
+            for (Future<KSISignature> signature : signatures) {
+                assertNotNull(signature.get(1, TimeUnit.MINUTES));
+            }
+
+            service.publish();
+            KSISignature extended = ksi.extend(signatures.get(0).get());
+            assertTrue(extended.isExtended());
+            assertTrue(ksi.verify(extended, ContextAwarePolicyAdapter.createPublicationsFilePolicy(ksi)).isOk());
+        }
+    }
+
+    /**
+     * Records the latencies, block sizes, bytes on the wire, cache hit ratio and verification failures of
+     * signing and verification, by wrapping the signer, block signer, verifier and HTTP client, and prints
+     * the summary. In an application, {@link KsiMetrics} would pass them on to its metrics library.
+     */
+    @Test
+    public void collectMetricsOffline() throws Exception {
+        StubKsiService service = new StubKsiService(credentials);
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        try (StubKsiServer server = new StubKsiServer.Builder(service).setLatency(2, 3).build();
+             KSISigningClient signingClient = Metered.signingClient(createSigningClient(server), metrics);
+             Signer signer = Metered.signer(new SignerBuilder().setSigningService(new KSISigningClientServiceAdapter(signingClient)).build(), metrics)) {
+            MemoizingVerifier memoizingVerifier = new MemoizingVerifier(new SignatureVerifier(), 1000);
+            metrics.registerCache("verifier", memoizingVerifier);
+            Verifier verifier = Metered.verifier(memoizingVerifier, metrics);
+            ContextAwarePolicy policy = ContextAwarePolicyAdapter.createInternalPolicy();
+
+            DataHasher dh = new DataHasher(HashAlgorithm.SHA2_256);
+            for (int i = 0; i < 20; i++) {
+                dh.reset();
+                KSISignature signature = signer.sign(dh.addData(new byte[]{(byte) i}).getHash());
+                verifier.verify(signature, policy);
+            }
+
+            BlockSigner<List<KSISignature>> blockSigner = Metered.blockSigner(new KsiBlockSigner(signingClient), metrics);
+            for (int i = 0; i < 100; i++) {
+                dh.reset();
+                blockSigner.add(dh.addData(new byte[]{(byte) i, 1}).getHash());
+            }
+            for (KSISignature signature : blockSigner.sign()) {
+                verifier.verify(signature, policy);
+            }
+
+            // A signature verified with a wrong document hash is counted as a failure by its error code
+            dh.reset();
+            KSISignature signature = signer.sign(dh.addData("document".getBytes()).getHash());
+            verifier.verify(signature, new DataHasher(HashAlgorithm.SHA2_256).addData("other".getBytes()).getHash(), policy);
+
+            // The signing client wrapper is not an extender client, the failures are counted by status
+            assertFalse(signingClient instanceof KSIExtenderClient);
+            try (StubKsiServer failing = new StubKsiServer.Builder(new StubKsiService(credentials)).setErrors(1.0, 0x0101).build();
+                 Signer failingSigner = Metered.signer(new SignerBuilder().setSigningService(new KSISigningClientServiceAdapter(
+                         Metered.signingClient(createSigningClient(failing), metrics))).build(), metrics)) {
+                try {
+                    dh.reset();
+                    failingSigner.sign(dh.addData("failing".getBytes()).getHash());
+                    fail("Signing should have failed");
+                } catch (KSIException expected) {
+                }
+            }
+
+            System.out.print(metrics);
+            assertEquals(22, metrics.getLatencies(KsiMetrics.Operation.SIGN).getCount());
+            assertEquals(Long.valueOf(1), metrics.getFailures().get("VERIFY GEN-01"));
+            assertEquals(Long.valueOf(1), metrics.getFailures().get("SIGN 0x101"));
+        }
+    }
+
+    /**
+     * Signs hashes from several producers through a stub server that limits the request rate. The
+     * {@link AdaptiveBlockSigner} grows the blocks and backs off when it is throttled, and the producers
+     * wait while its queue is full.
+     */
+    @Test
+    public void adaptToThrottlingOffline() throws Exception {
+        StubKsiService service = new StubKsiService(credentials);
+        StubKsiServer.Builder builder = new StubKsiServer.Builder(service)
+                .setLatency(10, 10)
+                .setMaxRequestsPerSecond(20);
+        int producers = 4;
+        int hashesPerProducer = 1000;
+        List<CompletableFuture<KSISignature>> futures = new CopyOnWriteArrayList<>();
+        try (StubKsiServer server = builder.build();
+             AdaptiveBlockSigner signer = new AdaptiveBlockSigner.Builder(
+                     new SimpleHttpSigningClient(new CredentialsAwareHttpSettings(server.getAggregatorUrl(), credentials)))
+                     .setBlockSize(1, 50)
+                     .setFlushInterval(5, 500)
+                     .setMaxOutstandingBlocks(16)
+                     .setTargetRoundTrip(200)
+                     .setQueue(500, AdaptiveBlockSigner.OverflowPolicy.BLOCK)
+                     .build()) {
+            ExecutorService executor = Executors.newFixedThreadPool(producers);
+            for (int i = 0; i < producers; i++) {
+                int producer = i;
+                executor.execute(() -> {
+                    DataHasher dh = new DataHasher(HashAlgorithm.SHA2_256);
+                    try {
+                        for (int j = 0; j < hashesPerProducer; j++) {
+                            dh.reset();
+                            futures.add(signer.submit(dh.addData(new byte[]{(byte) producer, (byte) j, (byte) (j >> 8)}).getHash()));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+
+            System.out.println("adaptToThrottlingOffline > signed " + futures.size() + " hashes, block size " + signer.getBlockSize()
+                    + ", flush interval " + signer.getFlushIntervalMillis() + " ms, outstanding limit " + signer.getOutstandingLimit()
+                    + ", throttled " + signer.getThrottledCount() + " blocks");
+            assertEquals(producers * hashesPerProducer, futures.size());
+        }
+    }
+
+    /**
+     * Accepts hashes into a {@link DurableSigningQueue} while the service fails every request, then opens
+     * the queue again, like after a restart, with the service working. The hashes accepted earlier are
+     * signed from the write-ahead log and the signatures end up in the {@link SignatureStore}.
+     */
+    @Test
+    public void replayDurableSigningQueueOffline() throws Exception {
+        Path directory = temporaryFolder.newFolder("ksi-durable-signing-queue").toPath();
+        StubKsiService service = new StubKsiService(credentials);
+        List<DataHash> hashes = new ArrayList<>();
+        DataHasher dh = new DataHasher(HashAlgorithm.SHA2_256);
+        for (int i = 0; i < 1000; i++) {
+            dh.reset();
+            hashes.add(dh.addData(new byte[]{(byte) i, (byte) (i >> 8)}).getHash());
+        }
+
+        try (StubKsiServer server = new StubKsiServer.Builder(service).setErrors(1.0, 0x300).build();
+             SignatureStore store = new SignatureStore(directory.resolve("signatures"), new SignatureReader(), 64 * 1024 * 1024, 10000);
+             AdaptiveBlockSigner signer = createAdaptiveBlockSigner(server);
+             DurableSigningQueue queue = new DurableSigningQueue(directory.resolve("wal"), 1024 * 1024, signer, store, 100)) {
+            long start = System.nanoTime();
+            for (DataHash hash : hashes) {
+                queue.submit(hash, new IdentityMetadata("sample-client"));
+            }
+            System.out.println("replayDurableSigningQueueOffline > accepted " + hashes.size() + " hashes in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, pending " + queue.getPendingCount());
+        }
+        // A segment that was being created at a crash is left in a temporary file and discarded
+        Path unfinishedSegment = Files.write(directory.resolve("wal").resolve("wal-00000099.log0.tmp"), new byte[16]);
+
+        try (StubKsiServer server = new StubKsiServer.Builder(service).build();
+             SignatureStore store = new SignatureStore(directory.resolve("signatures"), new SignatureReader(), 64 * 1024 * 1024, 10000);
+             AdaptiveBlockSigner signer = createAdaptiveBlockSigner(server);
+             DurableSigningQueue queue = new DurableSigningQueue(directory.resolve("wal"), 1024 * 1024, signer, store, 100)) {
+            assertEquals(hashes.size(), queue.getPendingCount());
+            assertFalse(Files.exists(unfinishedSegment));
+            assertTrue(queue.awaitDone(1, TimeUnit.MINUTES));
+            for (DataHash hash : hashes) {
+                assertTrue(Arrays.stream(store.get(hash).getAggregationHashChainIdentity())
+                        .anyMatch(identity -> "sample-client".equals(identity.getDecodedClientId())));
+            }
+            System.out.println("replayDurableSigningQueueOffline > signed " + store.size() + " hashes after reopening");
+        }
+    }
+
+    /**
+     * Closes a {@link DurableSigningQueue} while its feeder waits for room in the queue of a slow signer.
+     * Closing does not wait for the backlog, and the records not signed are signed after opening the queue
+     * again.
+     */
+    @Test
+    public void closeDurableSigningQueueUnderBacklogOffline() throws Exception {
+        Path directory = temporaryFolder.newFolder("ksi-durable-signing-queue").toPath();
+        StubKsiService service = new StubKsiService(credentials);
+        List<DataHash> hashes = new ArrayList<>();
+        DataHasher dh = new DataHasher(HashAlgorithm.SHA2_256);
+        for (int i = 0; i < 50; i++) {
+            dh.reset();
+            hashes.add(dh.addData(new byte[]{(byte) i}).getHash());
+        }
+
+        try (StubKsiServer server = new StubKsiServer.Builder(service).setLatency(1000, 1000).build();
+             SignatureStore store = new SignatureStore(directory.resolve("signatures"), new SignatureReader(), 1024 * 1024, 100);
+             AdaptiveBlockSigner signer = new AdaptiveBlockSigner.Builder(
+                     new SimpleHttpSigningClient(new CredentialsAwareHttpSettings(server.getAggregatorUrl(), credentials)))
+                     .setBlockSize(1, 5)
+                     .setMaxOutstandingBlocks(1)
+                     .setQueue(5, AdaptiveBlockSigner.OverflowPolicy.BLOCK)
+                     .build()) {
+            DurableSigningQueue queue = new DurableSigningQueue(directory.resolve("wal"), 64 * 1024, signer, store, 100);
+            for (DataHash hash : hashes) {
+                queue.submit(hash);
+            }
+            long start = System.nanoTime();
+            queue.close();
+            long closeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            System.out.println("closeDurableSigningQueueUnderBacklogOffline > closed in " + closeMillis + " ms with "
+                    + store.size() + " hashes signed");
+            assertTrue(closeMillis < 30000);
+        }
+
+        try (StubKsiServer server = new StubKsiServer.Builder(service).build();
+             SignatureStore store = new SignatureStore(directory.resolve("signatures"), new SignatureReader(), 1024 * 1024, 100);
+             AdaptiveBlockSigner signer = createAdaptiveBlockSigner(server);
+             DurableSigningQueue queue = new DurableSigningQueue(directory.resolve("wal"), 64 * 1024, signer, store, 100)) {
+            assertTrue(queue.getPendingCount() > 0);
+            assertTrue(queue.awaitDone(1, TimeUnit.MINUTES));
+            for (DataHash hash : hashes) {
+                assertTrue(store.get(hash) != null);
+            }
+        }
+    }
+
+    /**
+     * Opens a {@link SignatureStore} whose last segment ends with a torn write, here a zeroed region and a
+     * part of a signature. The torn tail is cut off and the store is appended to again.
+     */
+    @Test
+    public void recoverTornSignatureStoreOffline() throws Exception {
+        Path directory = temporaryFolder.newFolder("ksi-signature-store").toPath();
+        StubKsiService service = new StubKsiService(credentials);
+        Signer signer = new SignerBuilder().setSigningService(new KSISigningClientServiceAdapter(service)).build();
+        DataHasher dh = new DataHasher(HashAlgorithm.SHA2_256);
+        List<KSISignature> signatures = new ArrayList<>();
+        for (int i = 0; i < 11; i++) {
+            dh.reset();
+            signatures.add(signer.sign(dh.addData(new byte[]{(byte) i}).getHash()));
+        }
+
+        try (SignatureStore store = new SignatureStore(directory, new SignatureReader(), 1024 * 1024, 100)) {
+            store.append(signatures.subList(0, 10));
+        }
+        Path segment = directory.resolve("segment-00000001.tlv");
+        ByteArrayOutputStream torn = new ByteArrayOutputStream();
+        signatures.get(10).writeTo(torn);
+        try (OutputStream output = Files.newOutputStream(segment, StandardOpenOption.APPEND)) {
+            output.write(new byte[16]);
+            output.write(torn.toByteArray(), 0, torn.size() / 2);
+        }
+
+        try (SignatureStore store = new SignatureStore(directory, new SignatureReader(), 1024 * 1024, 100)) {
+            assertEquals(10, store.size());
+            store.append(signatures.subList(10, 11));
+        }
+        try (SignatureStore store = new SignatureStore(directory, new SignatureReader(), 1024 * 1024, 100)) {
+            assertEquals(11, store.size());
+            for (KSISignature signature : signatures) {
+                assertEquals(signature.getInputHash(), store.get(signature.getInputHash()).getInputHash());
+            }
+        }
+    }
+
+    /**
+     * Builds a {@link MerkleTreeFile} over the hashes of log records, signs only its root and creates the
+     * signatures of some records from the tree later, after opening the file again.
+     */
+    @Test
+    public void signLogWithMerkleTreeOffline() throws Exception {
+        Path file = temporaryFolder.newFolder("ksi-merkle-tree").toPath().resolve("log.tree");
+        StubKsiService service = new StubKsiService(credentials);
+        try (StubKsiServer server = new StubKsiServer.Builder(service).build();
+             KSI ksi = createKsi(server)) {
+            try (MerkleTreeFile.Writer writer = MerkleTreeFile.create(file, HashAlgorithm.SHA2_256)) {
+                DataHasher dh = new DataHasher(HashAlgorithm.SHA2_256);
+                for (int i = 0; i < 100000; i++) {
+                    dh.reset();
+                    writer.add(dh.addData(("Log record " + i).getBytes()).getHash());
+                }
+                try (MerkleTreeFile tree = writer.finish()) {
+                    // The root is signed at its level, so the chains of the leaves fit below the signature
+                    tree.sign(ksi);
+                    System.out.println("signLogWithMerkleTreeOffline > signed the root of " + tree.size()
+                            + " records at level " + tree.getRootLevel() + ", tree file " + Files.size(file) + " bytes");
+                }
+            }
+
+            try (MerkleTreeFile tree = MerkleTreeFile.open(file)) {
+                ContextAwarePolicy policy = ContextAwarePolicyAdapter.createKeyPolicy(ksi);
+                for (int i : new int[]{0, 4711, 99999}) {
+                    DataHash hash = new DataHasher(HashAlgorithm.SHA2_256).addData(("Log record " + i).getBytes()).getHash();
+                    KSISignature signature = tree.getSignature(i);
+                    assertTrue(ksi.verify(signature, policy, hash).isOk());
+                }
+            }
+        }
+    }
+
+    /**
+     * Signs the items of a noisy tenant and of many quiet tenants, each item with the identity of a user of
+     * the tenant, in the shared blocks of a {@link MultiTenantBlockSigner}. The noisy tenant runs into its
+     * quota, and the items of the quiet tenants are signed before the backlog of the noisy one.
+     */
+    @Test
+    public void shareBlocksBetweenTenantsOffline() throws Exception {
+        StubKsiService service = new StubKsiService(credentials);
+        List<CompletableFuture<KSISignature>> noisy = new ArrayList<>();
+        List<CompletableFuture<KSISignature>> quiet = new ArrayList<>();
+        int rejected = 0;
+        try (StubKsiServer server = new StubKsiServer.Builder(service).setLatency(20, 20).build();
+             MultiTenantBlockSigner signer = new MultiTenantBlockSigner.Builder(
+                     new SimpleHttpSigningClient(new CredentialsAwareHttpSettings(server.getAggregatorUrl(), credentials)))
+                     .setBlock(200, 10)
+                     .setTenantQuota(1000)
+                     .build()) {
+            DataHasher dh = new DataHasher(HashAlgorithm.SHA2_256);
+            for (int i = 0; i < 3000; i++) {
+                dh.reset();
+                try {
+                    noisy.add(signer.submit("noisy", dh.addData(("noisy " + i).getBytes()).getHash(),
+                            new IdentityMetadata("noisy/user-" + i % 10)));
+                } catch (RejectedExecutionException e) {
+                    rejected++;
+                }
+            }
+            for (int tenant = 0; tenant < 50; tenant++) {
+                for (int i = 0; i < 20; i++) {
+                    dh.reset();
+                    quiet.add(signer.submit("quiet-" + tenant, dh.addData(("quiet " + tenant + " " + i).getBytes()).getHash(),
+                            new IdentityMetadata("quiet-" + tenant + "/user-" + i % 2)));
+                }
+            }
+
+            long start = System.nanoTime();
+            CompletableFuture.allOf(quiet.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+            long quietMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(noisy.stream().anyMatch(future -> !future.isDone()));
+            CompletableFuture.allOf(noisy.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+            long noisyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            System.out.println("shareBlocksBetweenTenantsOffline > quiet tenants signed in " + quietMillis + " ms, noisy tenant in "
+                    + noisyMillis + " ms, rejected " + signer.getRejectedCount() + ", interned " + signer.getInternedMetadataCount() + " identities");
+
+            assertEquals(2000, rejected);
+            assertEquals(110, signer.getInternedMetadataCount());
+            KSISignature signature = quiet.get(0).get();
+            assertTrue(Arrays.stream(signature.getAggregationHashChainIdentity())
+                    .anyMatch(identity -> "quiet-0/user-0".equals(identity.getDecodedClientId())));
+
+            try (MultiTenantBlockSigner bounded = new MultiTenantBlockSigner.Builder(createSigningClient(server))
+                    .setBlock(200, 10)
+                    .setMaxInternedMetadata(5)
+                    .build()) {
+                List<CompletableFuture<KSISignature>> futures = new ArrayList<>();
+                for (int i = 0; i < 20; i++) {
+                    dh.reset();
+                    futures.add(bounded.submit("bounded", dh.addData(("bounded " + i).getBytes()).getHash(),
+                            new IdentityMetadata("bounded/user-" + i)));
+                }
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+                assertEquals(5, bounded.getInternedMetadataCount());
+                assertTrue(Arrays.stream(futures.get(0).get().getAggregationHashChainIdentity())
+                        .anyMatch(identity -> "bounded/user-0".equals(identity.getDecodedClientId())));
+            }
+        }
+    }
+
+    private AdaptiveBlockSigner createAdaptiveBlockSigner(StubKsiServer server) {
+        return new AdaptiveBlockSigner.Builder(
+                new SimpleHttpSigningClient(new CredentialsAwareHttpSettings(server.getAggregatorUrl(), credentials)))
+                .setFlushInterval(5, 100)
+                .setRetries(0, 0)
+                .build();
+    }
+
+    private KSISigningClient createSigningClient(StubKsiServer server) {
+        return new SimpleHttpSigningClient(new CredentialsAwareHttpSettings(server.getAggregatorUrl(), credentials));
+    }
+
+    private KSI createKsi(StubKsiServer server) throws KSIException {
+        StubKsiService service = server.getService();
+        return new KSIBuilder()
+                .setKsiProtocolSignerClient(new SimpleHttpSigningClient(new CredentialsAwareHttpSettings(server.getAggregatorUrl(), credentials)))
+                .setKsiProtocolExtenderClient(new SimpleHttpExtenderClient(new CredentialsAwareHttpSettings(server.getExtenderUrl(), credentials)))
+                .setKsiProtocolPublicationsFileClient(new SimpleHttpPublicationsFileClient(new HttpSettings(server.getPublicationsFileUrl())))
+                .setPublicationsFilePkiTrustStore(service.getTrustStore())
+                .setPublicationsFileTrustedCertSelector(service.getCertificateSelector())
+                .build();
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(index, 0)]);
+    }
+}
@@ -0,0 +1,521 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.SigningFuture;
+import com.guardtime.ksi.blocksigner.BlockSigner;
+import com.guardtime.ksi.blocksigner.IdentityMetadata;
+import com.guardtime.ksi.blocksigner.KsiBlockSigner;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.service.KSISigningClientServiceAdapter;
+import com.guardtime.ksi.service.KSISigningService;
+import com.guardtime.ksi.service.client.KSISigningClient;
+import com.guardtime.ksi.unisignature.AggregationChainLink;
+import com.guardtime.ksi.unisignature.AggregationHashChain;
+import com.guardtime.ksi.unisignature.AggregationHashChainUtil;
+import com.guardtime.ksi.unisignature.KSISignature;
+import com.guardtime.ksi.unisignature.KSISignatureComponentFactory;
+import com.guardtime.ksi.unisignature.KSISignatureFactory;
+import com.guardtime.ksi.unisignature.inmemory.InMemoryKsiSignatureComponentFactory;
+import com.guardtime.ksi.unisignature.inmemory.InMemoryKsiSignatureFactory;
+import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicyAdapter;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Block signer for blocks of millions of hashes. Like {@link KsiBlockSigner}, it aggregates the hashes
+ * into a local tree and signs the root with a single request, but:
+ * <ul>
+ * <li>the nodes are kept in flat byte arrays, one per level of the tree, instead of an object per
+ * node;</li>
+ * <li>each level of the tree is hashed in parallel on a {@link ForkJoinPool}, the level split into
+ * ranges of nodes, so the subtrees under the ranges are built by different threads;</li>
+ * <li>the aggregation hash chain and the signature of a hash are created only when
+ * {@link SignedBlock#getSignature(int)} is called, so a caller that stores the signatures as they come
+ * does not hold a million signatures in memory, and may create them in parallel.</li>
+ * </ul>
+ * The tree is built level by level: the nodes are paired from the left, and the last node of a level
+ * with an odd number of nodes moves up unchanged. A hash with identity metadata is first aggregated with
+ * the metadata, as by {@link KsiBlockSigner}. Hashes added with the same metadata object share its
+ * encoding within the block.
+ * <p>
+ * The signer is not thread-safe; the returned {@link SignedBlock} is.
+ */
+public class ParallelBlockSigner implements BlockSigner<ParallelBlockSigner.SignedBlock> {
+
+    private static final int MAX_LEVEL = 255;
+    // Numbers of nodes hashed and of signatures created by a task
+    private static final int HASHING_THRESHOLD = 2048;
+    private static final int SIGNING_THRESHOLD = 16;
+    // The leaf values of a block fit into an array with the longest imprints, of SHA-512
+    private static final int MAX_LEAVES = (Integer.MAX_VALUE - 8) / 65;
+    private static final int[] IMPRINT_LENGTHS = new int[256];
+
+    static {
+        for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+            IMPRINT_LENGTHS[algorithm.getId()] = algorithm.getLength() + 1;
+        }
+    }
+
+    private final KSISigningService signingService;
+    private final HashAlgorithm algorithm;
+    private final ForkJoinPool pool;
+    private final KSISignatureComponentFactory componentFactory = new InMemoryKsiSignatureComponentFactory();
+    private final KSISignatureFactory signatureFactory =
+            new InMemoryKsiSignatureFactory(ContextAwarePolicyAdapter.createInternalPolicy(), componentFactory);
+    private final ThreadLocal<MessageDigest> digests;
+    private Map<IdentityMetadata, byte[]> sharedMetadataEncodings = Collections.emptyMap();
+
+    private DataHash[] hashes = new DataHash[1024];
+    private byte[] levels = new byte[1024];
+    private IdentityMetadata[] metadata;
+    private int size;
+    private int maxLeafLevel;
+    private int maxLeafImprintLength;
+
+    /**
+     * Creates a signer aggregating with SHA-256 on the common pool.
+     */
+    public ParallelBlockSigner(KSISigningClient signingClient) {
+        this(signingClient, HashAlgorithm.SHA2_256, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param signingClient client used for signing the root hash.
+     * @param algorithm     algorithm of the tree nodes.
+     * @param pool          pool the tree is built on.
+     */
+    public ParallelBlockSigner(KSISigningClient signingClient, HashAlgorithm algorithm, ForkJoinPool pool) {
+        if (signingClient == null || algorithm == null || pool == null) {
+            throw new IllegalArgumentException("Signing client, hash algorithm and pool must be present");
+        }
+        algorithm.checkExpiration();
+        this.signingService = new KSISigningClientServiceAdapter(signingClient);
+        this.algorithm = algorithm;
+        this.pool = pool;
+        this.digests = ThreadLocal.withInitial(() -> createDigest(algorithm));
+        // Fails early if the algorithm is not implemented
+        createDigest(algorithm);
+    }
+
+    public boolean add(DataHash dataHash) throws KSIException {
+        return add(dataHash, 0, null);
+    }
+
+    public boolean add(DataHash dataHash, IdentityMetadata metadata) throws KSIException {
+        return add(dataHash, 0, metadata);
+    }
+
+    /**
+     * Adds the hash to the block.
+     *
+     * @return false if the tree would exceed the maximum level or the block the maximum size with the hash;
+     * the hash is then not added.
+     */
+    public boolean add(DataHash dataHash, long level, IdentityMetadata metadata) throws KSIException {
+        if (dataHash == null) {
+            throw new IllegalArgumentException("Hash must be present");
+        }
+        dataHash.getAlgorithm().checkExpiration();
+        if (level < 0 || level > MAX_LEVEL) {
+            throw new IllegalStateException("Level must be between 0 and 255");
+        }
+        int leafLevel = (int) level + (metadata != null ? 1 : 0);
+        if (size == MAX_LEAVES || height(size + 1, Math.max(maxLeafLevel, leafLevel)) > MAX_LEVEL) {
+            return false;
+        }
+        if (size == hashes.length) {
+            int capacity = (int) Math.min(MAX_LEAVES, hashes.length * 2L);
+            hashes = Arrays.copyOf(hashes, capacity);
+            levels = Arrays.copyOf(levels, capacity);
+            if (this.metadata != null) {
+                this.metadata = Arrays.copyOf(this.metadata, capacity);
+            }
+        }
+        if (metadata != null && this.metadata == null) {
+            this.metadata = new IdentityMetadata[hashes.length];
+        }
+        hashes[size] = dataHash;
+        levels[size] = (byte) level;
+        if (metadata != null) {
+            this.metadata[size] = metadata;
+        }
+        size++;
+        maxLeafLevel = Math.max(maxLeafLevel, leafLevel);
+        maxLeafImprintLength = Math.max(maxLeafImprintLength, dataHash.getImprint().length);
+        return true;
+    }
+
+    /**
+     * Builds the tree, signs the root and clears the signer for the next block.
+     */
+    public SignedBlock sign() throws KSIException {
+        if (size == 0) {
+            throw new IllegalStateException("There are no hashes to sign");
+        }
+        Tree tree = new Tree(Arrays.copyOf(hashes, size), Arrays.copyOf(levels, size),
+                metadata != null ? Arrays.copyOf(metadata, size) : null, maxLeafImprintLength);
+        hashes = new DataHash[1024];
+        levels = new byte[1024];
+        metadata = null;
+        size = 0;
+        maxLeafLevel = 0;
+        maxLeafImprintLength = 0;
+
+        tree.build();
+        DataHash root = tree.root();
+        long rootLevel = tree.rootLevel();
+        KSISignature rootSignature = new SigningFuture(signingService.sign(root, rootLevel), signatureFactory, root, rootLevel).getResult();
+        return new SignedBlock(tree, rootSignature);
+    }
+
+    /**
+     * Sets the encodings of metadata objects that are shared by the blocks, e.g. interned by the caller, so
+     * they are not encoded again for every block. The map is only read, from several threads.
+     */
+    void setSharedMetadataEncodings(Map<IdentityMetadata, byte[]> sharedMetadataEncodings) {
+        this.sharedMetadataEncodings = sharedMetadataEncodings;
+    }
+
+    /**
+     * Returns the content of the metadata link that aggregates the metadata with a hash.
+     */
+    static byte[] encodeMetadata(KSISignatureComponentFactory componentFactory, IdentityMetadata metadata) throws KSIException {
+        return componentFactory.createLinkMetadata(metadata.getClientId(), metadata.getMachineId(),
+                metadata.getSequenceNumber(), metadata.getRequestTime()).getMetadataStructure().getRootElement().getContent();
+    }
+
+    private static int height(long leaves, int leafLevel) {
+        int height = leafLevel;
+        for (long nodes = leaves; nodes > 1; nodes = (nodes + 1) / 2) {
+            height++;
+        }
+        return height;
+    }
+
+    static MessageDigest createDigest(HashAlgorithm algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm.getName());
+        } catch (NoSuchAlgorithmException e) {
+            // The hasher registers the Bouncy Castle provider, as e.g. RIPEMD-160 is not in the JDK
+            new DataHasher(algorithm);
+            try {
+                return MessageDigest.getInstance(algorithm.getName(), "BC");
+            } catch (NoSuchAlgorithmException | NoSuchProviderException ex) {
+                throw new IllegalArgumentException("Hash algorithm " + algorithm.getName() + " is not implemented", ex);
+            }
+        }
+    }
+
+    /**
+     * Signed block, the signatures of the hashes are created on demand.
+     */
+    public final class SignedBlock {
+
+        private final Tree tree;
+        private final KSISignature rootSignature;
+
+        private SignedBlock(Tree tree, KSISignature rootSignature) {
+            this.tree = tree;
+            this.rootSignature = rootSignature;
+        }
+
+        /**
+         * Number of hashes in the block.
+         */
+        public int size() {
+            return tree.hashes.length;
+        }
+
+        /**
+         * Returns the hash at the given position, in the order of adding.
+         */
+        public DataHash getHash(int index) {
+            return tree.hashes[index];
+        }
+
+        /**
+         * Signature of the root of the tree.
+         */
+        public KSISignature getRootSignature() {
+            return rootSignature;
+        }
+
+        /**
+         * Creates the signature of the hash at the given position, in the order of adding. May be called
+         * from several threads.
+         */
+        public KSISignature getSignature(int index) throws KSIException {
+            if (tree.values.size() == 1 && (tree.metadata == null || tree.metadata[0] == null)) {
+                // The only hash without metadata is the root itself
+                return rootSignature;
+            }
+            return signatureFactory.createSignature(rootSignature, tree.chain(index), tree.hashes[index]);
+        }
+
+        /**
+         * Creates the signatures of all the hashes in parallel, in the order of adding.
+         */
+        public List<KSISignature> getSignatures() throws KSIException {
+            KSISignature[] signatures = new KSISignature[size()];
+            try {
+                pool.invoke(new RangeAction(0, signatures.length, SIGNING_THRESHOLD, (from, to) -> {
+                    for (int i = from; i < to; i++) {
+                        try {
+                            signatures[i] = getSignature(i);
+                        } catch (KSIException e) {
+                            throw new UncheckedKsiException(e);
+                        }
+                    }
+                }));
+            } catch (UncheckedKsiException e) {
+                throw e.getCause();
+            }
+            return Arrays.asList(signatures);
+        }
+    }
+
+    /**
+     * Tree in flat arrays. Level 0 holds the leaf values: the imprints of the hashes, or of the hashes
+     * aggregated with their metadata. Each next level holds the parents of the previous one. A node is an
+     * imprint in a slot as wide as the longest imprint, and the level of the node in a byte.
+     */
+    private final class Tree {
+
+        private final DataHash[] hashes;
+        private final byte[] leafLevels;
+        private final IdentityMetadata[] metadata;
+        // A node moved up unchanged keeps the imprint of the hash, so all the slots fit the longest imprint
+        private final int width;
+        private final List<byte[]> values = new ArrayList<>();
+        private final List<byte[]> nodeLevels = new ArrayList<>();
+        // Encodings of the metadata by instance, a metadata object shared by many hashes is encoded once
+        private final Map<IdentityMetadata, byte[]> metadataEncodings = new ConcurrentHashMap<>();
+        private final Map<IdentityMetadata, byte[]> sharedEncodings = sharedMetadataEncodings;
+
+        private Tree(DataHash[] hashes, byte[] leafLevels, IdentityMetadata[] metadata, int maxLeafImprintLength) {
+            this.hashes = hashes;
+            this.leafLevels = leafLevels;
+            this.metadata = metadata;
+            this.width = Math.max(maxLeafImprintLength, algorithm.getLength() + 1);
+        }
+
+        void build() throws KSIException {
+            int count = hashes.length;
+            byte[] leafValues = new byte[count * width];
+            byte[] levels = new byte[count];
+            try {
+                pool.invoke(new RangeAction(0, count, HASHING_THRESHOLD, (from, to) -> {
+                    for (int i = from; i < to; i++) {
+                        leaf(i, leafValues, levels);
+                    }
+                }));
+            } catch (UncheckedKsiException e) {
+                throw e.getCause();
+            }
+            values.add(leafValues);
+            nodeLevels.add(levels);
+
+            while (count > 1) {
+                byte[] children = values.get(values.size() - 1);
+                byte[] childLevels = nodeLevels.get(nodeLevels.size() - 1);
+                int parentCount = (count + 1) / 2;
+                byte[] parents = new byte[parentCount * width];
+                byte[] parentLevels = new byte[parentCount];
+                int childCount = count;
+                pool.invoke(new RangeAction(0, parentCount, HASHING_THRESHOLD, (from, to) -> {
+                    for (int i = from; i < to; i++) {
+                        parent(children, childLevels, childCount, i, parents, parentLevels);
+                    }
+                }));
+                values.add(parents);
+                nodeLevels.add(parentLevels);
+                count = parentCount;
+            }
+        }
+
+        DataHash root() {
+            return new DataHash(imprint(values.size() - 1, 0));
+        }
+
+        long rootLevel() {
+            return nodeLevels.get(nodeLevels.size() - 1)[0] & 0xFF;
+        }
+
+        /**
+         * Aggregation hash chain from the leaf to the root of the tree.
+         */
+        AggregationHashChain chain(int index) throws KSIException {
+            LinkedList<AggregationChainLink> links = new LinkedList<>();
+            // The chain starts at level 0, the level of the hash goes into the correction of the first link
+            long chainLevel = 0;
+            if (metadata != null && metadata[index] != null) {
+                long parentLevel = (leafLevels[index] & 0xFF) + 1;
+                links.add(componentFactory.createLeftAggregationChainLink(metadataBytes(metadata[index]), parentLevel - chainLevel - 1));
+                chainLevel = parentLevel;
+            }
+            int position = index;
+            for (int row = 0; row < values.size() - 1; row++) {
+                int count = nodeLevels.get(row).length;
+                int sibling = position ^ 1;
+                if (sibling < count) {
+                    long parentLevel = nodeLevels.get(row + 1)[position / 2] & 0xFF;
+                    long correction = parentLevel - chainLevel - 1;
+                    DataHash siblingHash = new DataHash(imprint(row, sibling));
+                    links.add((position & 1) == 0
+                            ? componentFactory.createLeftAggregationChainLink(siblingHash, correction)
+                            : componentFactory.createRightAggregationChainLink(siblingHash, correction));
+                    chainLevel = parentLevel;
+                }
+                position /= 2;
+            }
+            LinkedList<Long> chainIndex = new LinkedList<>(Collections.singletonList(AggregationHashChainUtil.calculateIndex(links)));
+            return componentFactory.createAggregationHashChain(hashes[index], new Date(), chainIndex, links, algorithm);
+        }
+
+        private byte[] imprint(int row, int index) {
+            byte[] value = values.get(row);
+            int offset = index * width;
+            return Arrays.copyOfRange(value, offset, offset + IMPRINT_LENGTHS[value[offset] & 0xFF]);
+        }
+
+        private void leaf(int index, byte[] leafValues, byte[] levels) {
+            byte[] imprint = hashes[index].getImprint();
+            int level = leafLevels[index] & 0xFF;
+            if (metadata == null || metadata[index] == null) {
+                System.arraycopy(imprint, 0, leafValues, index * width, imprint.length);
+                levels[index] = (byte) level;
+                return;
+            }
+            MessageDigest digest = digests.get();
+            digest.update(imprint);
+            try {
+                digest.update(metadataBytes(metadata[index]));
+            } catch (KSIException e) {
+                digest.reset();
+                throw new UncheckedKsiException(e);
+            }
+            digest.update((byte) (level + 1));
+            digest(digest, leafValues, index * width);
+            levels[index] = (byte) (level + 1);
+        }
+
+        private void parent(byte[] children, byte[] childLevels, int childCount, int index, byte[] parents, byte[] parentLevels) {
+            int left = 2 * index;
+            int right = left + 1;
+            int leftOffset = left * width;
+            if (right == childCount) {
+                // The last node of an odd level moves up unchanged
+                int length = IMPRINT_LENGTHS[children[leftOffset] & 0xFF];
+                System.arraycopy(children, leftOffset, parents, index * width, length);
+                parentLevels[index] = childLevels[left];
+                return;
+            }
+            int rightOffset = right * width;
+            int level = Math.max(childLevels[left] & 0xFF, childLevels[right] & 0xFF) + 1;
+            MessageDigest digest = digests.get();
+            digest.update(children, leftOffset, IMPRINT_LENGTHS[children[leftOffset] & 0xFF]);
+            digest.update(children, rightOffset, IMPRINT_LENGTHS[children[rightOffset] & 0xFF]);
+            digest.update((byte) level);
+            digest(digest, parents, index * width);
+            parentLevels[index] = (byte) level;
+        }
+
+        private void digest(MessageDigest digest, byte[] target, int offset) {
+            target[offset] = (byte) algorithm.getId();
+            try {
+                digest.digest(target, offset + 1, algorithm.getLength());
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private byte[] metadataBytes(IdentityMetadata metadata) throws KSIException {
+            byte[] encoding = sharedEncodings.get(metadata);
+            if (encoding == null) {
+                encoding = metadataEncodings.get(metadata);
+            }
+            if (encoding == null) {
+                encoding = encodeMetadata(componentFactory, metadata);
+                metadataEncodings.putIfAbsent(metadata, encoding);
+            }
+            return encoding;
+        }
+    }
+
+    private interface RangeTask {
+        void run(int from, int to);
+    }
+
+    /**
+     * Runs the task over a range of indexes, splitting the range in halves down to the threshold.
+     */
+    private static final class RangeAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final int threshold;
+        private final RangeTask task;
+
+        private RangeAction(int from, int to, int threshold, RangeTask task) {
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                task.run(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangeAction(from, middle, threshold, task), new RangeAction(middle, to, threshold, task));
+        }
+    }
+
+    private static final class UncheckedKsiException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private UncheckedKsiException(KSIException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized KSIException getCause() {
+            return (KSIException) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.pdu.PduVersion;
+import com.guardtime.ksi.service.Future;
+import com.guardtime.ksi.service.client.KSIClientException;
+import com.guardtime.ksi.service.client.KSIExtenderClient;
+import com.guardtime.ksi.service.client.KSISigningClient;
+import com.guardtime.ksi.service.client.ServiceCredentials;
+import com.guardtime.ksi.service.client.http.AbstractHttpClient;
+import com.guardtime.ksi.service.client.http.CredentialsAwareHttpSettings;
+import com.guardtime.ksi.service.client.http.HttpPostRequestFuture;
+import com.guardtime.ksi.tlv.TLVElement;
+import com.guardtime.ksi.util.Util;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.auth.AuthScope;
+import org.apache.hc.client5.http.auth.UsernamePasswordCredentials;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.config.TlsConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.auth.BasicCredentialsProvider;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.Timeout;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Signing and extending client that keeps persistent connections to the KSI Gateway in a pool
+ * instead of blocking a thread and setting up a connection for every request as the simple HTTP
+ * clients do. The requests are sent asynchronously, the returned future is finished when the
+ * response has arrived.
+ * <p>
+ * With {@link HttpVersionPolicy#NEGOTIATE} HTTP/2 is used for HTTPS end points that support it and
+ * all the requests are multiplexed over a single connection. {@link HttpVersionPolicy#FORCE_HTTP_2}
+ * uses HTTP/2 also for plain HTTP end points.
+ * <p>
+ * Like the simple HTTP clients, an instance talks to a single end point, so use one instance for the
+ * Aggregator and another for the Extender.
+ */
+public class PooledHttpClient implements KSISigningClient, KSIExtenderClient {
+
+    private final CredentialsAwareHttpSettings settings;
+    private final CloseableHttpAsyncClient httpClient;
+
+    public PooledHttpClient(CredentialsAwareHttpSettings settings, int maxConnections) {
+        this(settings, maxConnections, HttpVersionPolicy.NEGOTIATE);
+    }
+
+    /**
+     * @param settings       the end point, credentials, timeouts and proxy.
+     * @param maxConnections maximum number of connections kept open to the end point.
+     * @param versionPolicy  whether to use HTTP/1.1 or HTTP/2.
+     */
+    public PooledHttpClient(CredentialsAwareHttpSettings settings, int maxConnections, HttpVersionPolicy versionPolicy) {
+        if (settings == null) {
+            throw new IllegalArgumentException("Settings must be present");
+        }
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Maximum number of connections must be positive");
+        }
+        this.settings = settings;
+
+        ConnectionConfig.Builder connectionConfig = ConnectionConfig.custom();
+        if (settings.getConnectionTimeout() > 0) {
+            connectionConfig.setConnectTimeout(Timeout.ofMilliseconds(settings.getConnectionTimeout()));
+        }
+        PoolingAsyncClientConnectionManager connectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+                .setMaxConnPerRoute(maxConnections)
+                .setMaxConnTotal(maxConnections)
+                .setDefaultConnectionConfig(connectionConfig.build())
+                .setDefaultTlsConfig(TlsConfig.custom().setVersionPolicy(versionPolicy).build())
+                .build();
+
+        RequestConfig.Builder requestConfig = RequestConfig.custom();
+        if (settings.getReadTimeout() > 0) {
+            requestConfig.setResponseTimeout(Timeout.ofMilliseconds(settings.getReadTimeout()));
+        }
+        HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig.build());
+        if (settings.getProxyUrl() != null) {
+            URL proxyUrl = settings.getProxyUrl();
+            HttpHost proxy = new HttpHost(proxyUrl.getProtocol(), proxyUrl.getHost(), proxyUrl.getPort());
+            builder.setProxy(proxy);
+            if (settings.getProxyUser() != null) {
+                BasicCredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+                String password = settings.getProxyPassword();
+                credentialsProvider.setCredentials(new AuthScope(proxy), new UsernamePasswordCredentials(
+                        settings.getProxyUser(), password != null ? password.toCharArray() : new char[0]));
+                builder.setDefaultCredentialsProvider(credentialsProvider);
+            }
+        }
+        this.httpClient = builder.build();
+        this.httpClient.start();
+    }
+
+    public Future<TLVElement> sign(InputStream request) throws KSIClientException {
+        return post(request);
+    }
+
+    public Future<TLVElement> extend(InputStream request) throws KSIClientException {
+        return post(request);
+    }
+
+    public ServiceCredentials getServiceCredentials() {
+        return settings.getCredentials();
+    }
+
+    public PduVersion getPduVersion() {
+        return settings.getPduVersion();
+    }
+
+    public void close() {
+        httpClient.close(CloseMode.GRACEFUL);
+    }
+
+    private Future<TLVElement> post(InputStream request) throws KSIClientException {
+        try {
+            SimpleHttpRequest httpRequest = SimpleRequestBuilder.post(settings.getUrl().toURI())
+                    .setBody(Util.toByteArray(request), ContentType.create(AbstractHttpClient.HEADER_APPLICATION_KSI_REQUEST))
+                    .build();
+            return new ResponseFuture(httpClient.execute(httpRequest, null));
+        } catch (IOException | URISyntaxException e) {
+            throw new KSIClientException("Sending request to " + settings.getUrl() + " failed", e);
+        }
+    }
+
+    private static final class ResponseFuture extends HttpPostRequestFuture {
+
+        private final java.util.concurrent.Future<SimpleHttpResponse> response;
+
+        private ResponseFuture(java.util.concurrent.Future<SimpleHttpResponse> response) {
+            this.response = response;
+        }
+
+        public boolean isFinished() {
+            return response.isDone();
+        }
+
+        public TLVElement getResult() throws KSIException {
+            try {
+                SimpleHttpResponse httpResponse = response.get();
+                byte[] body = httpResponse.getBodyBytes();
+                return parse(httpResponse.getCode(), httpResponse.getReasonPhrase(),
+                        new ByteArrayInputStream(body != null ? body : new byte[0]));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new KSIClientException("Waiting for the response was interrupted", e);
+            } catch (ExecutionException e) {
+                throw new KSIClientException("Request failed", e.getCause());
+            }
+        }
+    }
+}
@@ -25,6 +25,7 @@ import com.guardtime.ksi.unisignature.SignatureData;
 import com.guardtime.ksi.unisignature.SignaturePublicationRecord;
 
 import java.io.IOException;
+import java.util.Date;
 import org.junit.Test;
 
 public class SignatureContentSamples extends KsiSamples {
@@ -112,4 +113,22 @@ public class SignatureContentSamples extends KsiSamples {
 
         System.out.println("printCalendarAuthenticationRecord > signature type > " + signatureData.getSignatureType());
     }
+
+    /**
+     * Prints the signing time, publication time and identity of the signatures without parsing them
+     * into {@link KSISignature}s. Useful for indexing large archives, where only a few fields of each
+     * signature are needed (see {@link SignatureView}).
+     */
+    @Test
+    public void printMetadataWithoutParsing() throws IOException, KSIException {
+        SignatureView.Scanner scanner = new SignatureView.Scanner();
+
+        for (String name : new String[]{"signme.txt.extended-ksig", "signme.txt.unextended-ksig"}) {
+            // The view is valid until the next file is read with the same scanner
+            SignatureView signature = scanner.read(getFile(name).toPath());
+
+            System.out.println("printMetadataWithoutParsing > " + name + " > signing time > " + new Date(signature.getAggregationTime() * 1000)
+                    + ", extended > " + signature.isExtended() + ", identity > " + signature.getClientIds());
+        }
+    }
 }
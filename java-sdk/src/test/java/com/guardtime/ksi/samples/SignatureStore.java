@@ -0,0 +1,376 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.Reader;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.tlv.TLVParserException;
+import com.guardtime.ksi.unisignature.KSISignature;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only store keeping many signatures in a few large files instead of a file per signature.
+ * <p>
+ * The signatures are appended in their TLV encoding to segment files in a directory. When a segment
+ * reaches the maximum size, the next one is started and the index of the full segment is saved next to
+ * it. The location of each signature is kept in memory by its input hash, so a signature is found by
+ * the hash of the document without scanning the segments. On opening, the indexes of the full segments
+ * are loaded and the last segment is scanned; a signature that was only partly written when the
+ * process stopped, and anything after it, is cut off.
+ * <p>
+ * The appended signatures are forced to the disk after every given number of signatures, or when
+ * {@link #sync()} is called. A list of signatures, e.g. the output of a block signer, is appended with a
+ * single write.
+ */
+public class SignatureStore implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".tlv";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int SIGNATURE = 0x800;
+    private static final int HEADER_LENGTH = 4;
+    private static final int OFFSET_BITS = 40;
+    private static final long MAX_SEGMENT_SIZE = 1L << OFFSET_BITS;
+
+    private final Path directory;
+    private final Reader reader;
+    private final long maxSegmentSize;
+    private final int syncInterval;
+    private final Map<DataHash, Long> locations = new ConcurrentHashMap<>();
+    private final Map<Integer, FileChannel> readChannels = new HashMap<>();
+    private final List<IndexEntry> segmentEntries = new ArrayList<>();
+    private int segment;
+    private FileChannel segmentChannel;
+    private long segmentSize;
+    private int unsynced;
+
+    /**
+     * @param directory      directory of the segment files, created if it does not exist.
+     * @param reader         reader used to parse the signatures when they are read from the store.
+     * @param maxSegmentSize size in bytes after which a new segment is started.
+     * @param syncInterval   number of appended signatures after which they are forced to the disk.
+     */
+    public SignatureStore(Path directory, Reader reader, long maxSegmentSize, int syncInterval) throws IOException {
+        if (directory == null || reader == null) {
+            throw new IllegalArgumentException("Directory and reader must be present");
+        }
+        if (maxSegmentSize < 1 || maxSegmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size must be positive and at most " + MAX_SEGMENT_SIZE);
+        }
+        if (syncInterval < 1) {
+            throw new IllegalArgumentException("Sync interval must be positive");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.reader = reader;
+        this.maxSegmentSize = maxSegmentSize;
+        this.syncInterval = syncInterval;
+        open();
+    }
+
+    /**
+     * Appends the signature to the store.
+     *
+     * @return the location of the signature, to be used with {@link #read(long)}.
+     */
+    public long append(KSISignature signature) throws IOException, KSIException {
+        return append(Collections.singletonList(signature))[0];
+    }
+
+    /**
+     * Appends the signatures to the store with a single write.
+     *
+     * @return the locations of the signatures, in the same order.
+     */
+    public synchronized long[] append(List<KSISignature> signatures) throws IOException, KSIException {
+        if (segmentChannel == null) {
+            throw new IOException("Signature store is closed");
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        long[] offsets = new long[signatures.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = output.size();
+            signatures.get(i).writeTo(output);
+        }
+        if (segmentSize > 0 && segmentSize + output.size() > maxSegmentSize) {
+            roll();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(output.toByteArray());
+        while (buffer.hasRemaining()) {
+            segmentChannel.write(buffer, segmentSize + buffer.position());
+        }
+        long[] result = new long[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            long offset = segmentSize + offsets[i];
+            result[i] = location(segment, offset);
+            DataHash inputHash = signatures.get(i).getInputHash();
+            segmentEntries.add(new IndexEntry(inputHash, offset));
+            locations.put(inputHash, result[i]);
+        }
+        segmentSize += output.size();
+        unsynced += offsets.length;
+        if (unsynced >= syncInterval) {
+            sync();
+        }
+        return result;
+    }
+
+    /**
+     * Reads the signature at the given location.
+     */
+    public KSISignature read(long location) throws IOException, KSIException {
+        FileChannel channel = readChannel((int) (location >>> OFFSET_BITS));
+        long offset = location & (MAX_SEGMENT_SIZE - 1);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(channel, header, offset);
+        byte[] signature = new byte[HEADER_LENGTH + contentLength(header, 0)];
+        readFully(channel, ByteBuffer.wrap(signature), offset);
+        return reader.read(new ByteArrayInputStream(signature));
+    }
+
+    /**
+     * Returns the signature with the given input hash, the last one appended if there are several, or null
+     * if there is none.
+     */
+    public KSISignature get(DataHash inputHash) throws IOException, KSIException {
+        Long location = locations.get(inputHash);
+        return location != null ? read(location) : null;
+    }
+
+    /**
+     * Number of distinct input hashes in the store.
+     */
+    public int size() {
+        return locations.size();
+    }
+
+    /**
+     * Forces the appended signatures to the disk.
+     */
+    public synchronized void sync() throws IOException {
+        if (segmentChannel != null && unsynced > 0) {
+            segmentChannel.force(false);
+            unsynced = 0;
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (segmentChannel == null) {
+            return;
+        }
+        try {
+            sync();
+            segmentChannel.close();
+        } finally {
+            segmentChannel = null;
+            synchronized (readChannels) {
+                for (FileChannel channel : readChannels.values()) {
+                    channel.close();
+                }
+                readChannels.clear();
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        List<Integer> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segments.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected segment file name in " + directory, e);
+        }
+        Collections.sort(segments);
+        segment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1);
+        for (int number : segments) {
+            if (Files.isRegularFile(indexFile(number))) {
+                loadIndex(number);
+                if (number == segment) {
+                    segment++;
+                }
+            } else if (number == segment) {
+                // Only the last segment can be without an index
+                segmentSize = scan(number);
+            } else {
+                throw new IOException("Index of segment " + segmentFile(number) + " is missing");
+            }
+        }
+        segmentChannel = FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segmentChannel.truncate(segmentSize);
+    }
+
+    /**
+     * Saves the index of the current segment and starts a new one.
+     */
+    private void roll() throws IOException {
+        segmentChannel.force(false);
+        unsynced = 0;
+        Path indexFile = indexFile(segment);
+        Path temporaryFile = Files.createTempFile(directory, indexFile.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+                for (IndexEntry entry : segmentEntries) {
+                    byte[] imprint = entry.inputHash.getImprint();
+                    output.writeByte(imprint.length);
+                    output.write(imprint);
+                    output.writeLong(entry.offset);
+                }
+            }
+            Files.move(temporaryFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+        segmentChannel.close();
+        segmentEntries.clear();
+        segment++;
+        segmentSize = 0;
+        segmentChannel = FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    private void loadIndex(int number) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile(number))))) {
+            while (true) {
+                int length;
+                try {
+                    length = input.readUnsignedByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                byte[] imprint = new byte[length];
+                input.readFully(imprint);
+                locations.put(new DataHash(imprint), location(number, input.readLong()));
+            }
+        }
+    }
+
+    /**
+     * Indexes the signatures of the segment from its content. The segment ends at the first signature
+     * that is incomplete or invalid, i.e. was being written when the process stopped.
+     *
+     * @return the size of the complete signatures in the segment.
+     */
+    private long scan(int number) throws IOException {
+        Path file = segmentFile(number);
+        long size = Files.size(file);
+        long offset = 0;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            while (size - offset >= HEADER_LENGTH) {
+                input.readFully(header.array());
+                if (!isSignatureHeader(header, 0)) {
+                    break;
+                }
+                long end = offset + HEADER_LENGTH + contentLength(header, 0);
+                if (end > size) {
+                    break;
+                }
+                byte[] signature = new byte[(int) (end - offset)];
+                System.arraycopy(header.array(), 0, signature, 0, HEADER_LENGTH);
+                input.readFully(signature, HEADER_LENGTH, signature.length - HEADER_LENGTH);
+                DataHash inputHash;
+                try {
+                    inputHash = SignatureView.wrap(signature).getInputHash();
+                } catch (TLVParserException e) {
+                    break;
+                }
+                segmentEntries.add(new IndexEntry(inputHash, offset));
+                locations.put(inputHash, location(number, offset));
+                offset = end;
+            }
+        }
+        return offset;
+    }
+
+    private FileChannel readChannel(int number) throws IOException {
+        synchronized (readChannels) {
+            FileChannel channel = readChannels.get(number);
+            if (channel == null) {
+                channel = FileChannel.open(segmentFile(number), StandardOpenOption.READ);
+                readChannels.put(number, channel);
+            }
+            return channel;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Signature at " + offset + " is truncated");
+            }
+        }
+    }
+
+    /**
+     * Returns the content length from the TLV16 header of a signature.
+     */
+    private static int contentLength(ByteBuffer buffer, int offset) throws IOException {
+        if (!isSignatureHeader(buffer, offset)) {
+            throw new IOException("No signature at offset " + offset);
+        }
+        return ((buffer.get(offset + 2) & 0xFF) << 8) | (buffer.get(offset + 3) & 0xFF);
+    }
+
+    private static boolean isSignatureHeader(ByteBuffer buffer, int offset) {
+        int type = ((buffer.get(offset) & 0x1F) << 8) | (buffer.get(offset + 1) & 0xFF);
+        return (buffer.get(offset) & 0x80) != 0 && type == SIGNATURE;
+    }
+
+    private static long location(int segment, long offset) {
+        return ((long) segment << OFFSET_BITS) | offset;
+    }
+
+    private Path segmentFile(int number) {
+        return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private Path indexFile(int number) {
+        return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number, INDEX_SUFFIX));
+    }
+
+    private static final class IndexEntry {
+
+        private final DataHash inputHash;
+        private final long offset;
+
+        private IndexEntry(DataHash inputHash, long offset) {
+            this.inputHash = inputHash;
+            this.offset = offset;
+        }
+    }
+}
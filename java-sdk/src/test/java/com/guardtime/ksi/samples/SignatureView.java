@@ -0,0 +1,382 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.Reader;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.tlv.TLVParserException;
+import com.guardtime.ksi.unisignature.KSISignature;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read-only view of an encoded KSI signature, reading the fields directly from the TLV structure
+ * without parsing it into a {@link KSISignature}. The fields are located and decoded only when first
+ * asked for, and the times are returned as primitives, so reading them allocates nothing.
+ * <p>
+ * The signature is not verified in any way, not even the structure of the parts that are not read.
+ * When the full signature is needed, e.g. to verify it, it is parsed with {@link #toSignature(Reader)}.
+ * <p>
+ * The view reads the buffer it was created for, it does not copy it. A view is not thread-safe.
+ */
+public final class SignatureView {
+
+    private static final int SIGNATURE = 0x800;
+    private static final int AGGREGATION_HASH_CHAIN = 0x801;
+    private static final int SIGNATURE_PUBLICATION_RECORD = 0x803;
+    private static final int RFC3161_RECORD = 0x806;
+    private static final int AGGREGATION_TIME = 0x02;
+    private static final int CHAIN_INDEX = 0x03;
+    private static final int INPUT_HASH = 0x05;
+    private static final int LEFT_LINK = 0x07;
+    private static final int RIGHT_LINK = 0x08;
+    private static final int LEGACY_ID = 0x03;
+    private static final int METADATA = 0x04;
+    private static final int CLIENT_ID = 0x01;
+    private static final int PUBLISHED_DATA = 0x10;
+    private static final int PUBLICATION_TIME = 0x02;
+    private static final long NOT_READ = Long.MIN_VALUE;
+
+    private ByteBuffer buffer;
+    private int start;
+    private int end;
+    private int body;
+    private long aggregationTime;
+    private long publicationTime;
+
+    private SignatureView() {
+    }
+
+    /**
+     * Creates a view of the signature between the position and the limit of the buffer.
+     */
+    public static SignatureView wrap(ByteBuffer buffer) throws TLVParserException {
+        SignatureView view = new SignatureView();
+        view.reset(buffer);
+        return view;
+    }
+
+    public static SignatureView wrap(byte[] signature) throws TLVParserException {
+        return wrap(ByteBuffer.wrap(signature));
+    }
+
+    /**
+     * Aggregation (signing) time of the signature in seconds.
+     */
+    public long getAggregationTime() throws TLVParserException {
+        if (aggregationTime == NOT_READ) {
+            int chain = child(body, end, AGGREGATION_HASH_CHAIN);
+            if (chain < 0) {
+                throw new TLVParserException("Signature does not contain an aggregation hash chain");
+            }
+            int time = child(contentStart(chain), contentEnd(chain), AGGREGATION_TIME);
+            if (time < 0) {
+                throw new TLVParserException("Aggregation hash chain does not contain aggregation time");
+            }
+            aggregationTime = decodeLong(time);
+        }
+        return aggregationTime;
+    }
+
+    /**
+     * Publication time of the signature in seconds, or -1 if the signature is not extended.
+     */
+    public long getPublicationTime() throws TLVParserException {
+        if (publicationTime == NOT_READ) {
+            publicationTime = -1;
+            int record = child(body, end, SIGNATURE_PUBLICATION_RECORD);
+            if (record >= 0) {
+                int publishedData = child(contentStart(record), contentEnd(record), PUBLISHED_DATA);
+                int time = publishedData < 0 ? -1 : child(contentStart(publishedData), contentEnd(publishedData), PUBLICATION_TIME);
+                if (time < 0) {
+                    throw new TLVParserException("Publication record does not contain publication time");
+                }
+                publicationTime = decodeLong(time);
+            }
+        }
+        return publicationTime;
+    }
+
+    public boolean isExtended() throws TLVParserException {
+        return getPublicationTime() >= 0;
+    }
+
+    /**
+     * Hash of the signed data, i.e. the input hash of the RFC 3161 record if there is one, otherwise of
+     * the lowest aggregation hash chain.
+     */
+    public DataHash getInputHash() throws TLVParserException {
+        int record = child(body, end, RFC3161_RECORD);
+        if (record < 0) {
+            int[] chains = chainsFromLowest();
+            if (chains.length == 0) {
+                throw new TLVParserException("Signature does not contain an aggregation hash chain");
+            }
+            record = chains[0];
+        }
+        int inputHash = child(contentStart(record), contentEnd(record), INPUT_HASH);
+        if (inputHash < 0) {
+            throw new TLVParserException("Signature does not contain input hash");
+        }
+        return new DataHash(content(inputHash));
+    }
+
+    /**
+     * Client IDs of the identity metadata in the signature, from the top aggregator down to the client,
+     * in the same order as {@link KSISignature#getAggregationHashChainIdentity()}.
+     */
+    public List<String> getClientIds() throws TLVParserException {
+        List<String> clientIds = new ArrayList<>();
+        int[] chains = chainsFromLowest();
+        for (int i = chains.length - 1; i >= 0; i--) {
+            List<String> chainClientIds = new ArrayList<>();
+            for (int link = contentStart(chains[i]); link < contentEnd(chains[i]); link = next(link, contentEnd(chains[i]))) {
+                int type = type(link);
+                if (type != LEFT_LINK && type != RIGHT_LINK) {
+                    continue;
+                }
+                int legacyId = child(contentStart(link), contentEnd(link), LEGACY_ID);
+                int metadata = child(contentStart(link), contentEnd(link), METADATA);
+                if (legacyId >= 0) {
+                    chainClientIds.add(decodeLegacyId(legacyId));
+                } else if (metadata >= 0) {
+                    int clientId = child(contentStart(metadata), contentEnd(metadata), CLIENT_ID);
+                    if (clientId < 0) {
+                        throw new TLVParserException("Metadata does not contain client ID");
+                    }
+                    chainClientIds.add(decodeString(clientId));
+                }
+            }
+            for (int j = chainClientIds.size() - 1; j >= 0; j--) {
+                clientIds.add(chainClientIds.get(j));
+            }
+        }
+        return clientIds;
+    }
+
+    /**
+     * Size of the encoded signature in bytes.
+     */
+    public int getSize() {
+        return end - start;
+    }
+
+    /**
+     * Copies the encoded signature to a new array.
+     */
+    public byte[] toByteArray() {
+        ByteBuffer source = buffer.duplicate();
+        source.limit(end).position(start);
+        byte[] bytes = new byte[end - start];
+        source.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Parses the full signature with the given reader, which also verifies its internal consistency.
+     */
+    public KSISignature toSignature(Reader reader) throws KSIException {
+        return reader.read(new ByteArrayInputStream(toByteArray()));
+    }
+
+    private void reset(ByteBuffer buffer) throws TLVParserException {
+        this.buffer = buffer;
+        this.start = buffer.position();
+        this.end = buffer.limit();
+        this.aggregationTime = NOT_READ;
+        this.publicationTime = NOT_READ;
+        if (type(start) != SIGNATURE) {
+            throw new TLVParserException("Not a KSI signature");
+        }
+        if (contentEnd(start) != end) {
+            throw new TLVParserException("Signature length does not match the input length");
+        }
+        this.body = contentStart(start);
+    }
+
+    /**
+     * Returns the offsets of the aggregation hash chains sorted by the length of their chain index,
+     * the lowest chain first.
+     */
+    private int[] chainsFromLowest() throws TLVParserException {
+        int[] chains = new int[4];
+        int count = 0;
+        for (int element = body; element < end; element = next(element, end)) {
+            if (type(element) == AGGREGATION_HASH_CHAIN) {
+                if (count == chains.length) {
+                    chains = Arrays.copyOf(chains, count * 2);
+                }
+                chains[count++] = element;
+            }
+        }
+        // Insertion sort, there are only a few chains
+        for (int i = 1; i < count; i++) {
+            int chain = chains[i];
+            int length = chainIndexLength(chain);
+            int j = i - 1;
+            while (j >= 0 && chainIndexLength(chains[j]) < length) {
+                chains[j + 1] = chains[j];
+                j--;
+            }
+            chains[j + 1] = chain;
+        }
+        return Arrays.copyOf(chains, count);
+    }
+
+    private int chainIndexLength(int chain) throws TLVParserException {
+        int length = 0;
+        for (int element = contentStart(chain); element < contentEnd(chain); element = next(element, contentEnd(chain))) {
+            if (type(element) == CHAIN_INDEX) {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Returns the offset of the first child element of the given type between the offsets, or -1.
+     */
+    private int child(int from, int to, int type) throws TLVParserException {
+        for (int element = from; element < to; element = next(element, to)) {
+            if (type(element) == type) {
+                return element;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the offset following the element, checking that the element ends before the given offset.
+     */
+    private int next(int element, int to) throws TLVParserException {
+        int next = contentEnd(element);
+        if (next > to) {
+            throw new TLVParserException("TLV element at " + (element - start) + " exceeds its parent");
+        }
+        return next;
+    }
+
+    private int byteAt(int offset) throws TLVParserException {
+        if (offset >= end) {
+            throw new TLVParserException("Signature is truncated");
+        }
+        return buffer.get(offset) & 0xFF;
+    }
+
+    private boolean isTlv16(int element) throws TLVParserException {
+        return (byteAt(element) & 0x80) != 0;
+    }
+
+    private int type(int element) throws TLVParserException {
+        return isTlv16(element) ? ((byteAt(element) & 0x1F) << 8) | byteAt(element + 1) : byteAt(element) & 0x1F;
+    }
+
+    private int contentStart(int element) throws TLVParserException {
+        return element + (isTlv16(element) ? 4 : 2);
+    }
+
+    private int contentEnd(int element) throws TLVParserException {
+        int length = isTlv16(element) ? (byteAt(element + 2) << 8) | byteAt(element + 3) : byteAt(element + 1);
+        int contentEnd = contentStart(element) + length;
+        if (contentEnd > end) {
+            throw new TLVParserException("TLV element at " + (element - start) + " exceeds the signature");
+        }
+        return contentEnd;
+    }
+
+    private long decodeLong(int element) throws TLVParserException {
+        int from = contentStart(element);
+        int to = contentEnd(element);
+        if (to - from > 8) {
+            throw new TLVParserException("Integer of " + (to - from) + " bytes is too long");
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = (value << 8) | byteAt(i);
+        }
+        return value;
+    }
+
+    private byte[] content(int element) throws TLVParserException {
+        int from = contentStart(element);
+        byte[] content = new byte[contentEnd(element) - from];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) byteAt(from + i);
+        }
+        return content;
+    }
+
+    /**
+     * Decodes a string, which is encoded in UTF-8 and terminated by a zero byte.
+     */
+    private String decodeString(int element) throws TLVParserException {
+        byte[] content = content(element);
+        if (content.length == 0 || content[content.length - 1] != 0) {
+            throw new TLVParserException("String is not terminated by a zero byte");
+        }
+        return new String(content, 0, content.length - 1, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes the client ID of a legacy identity: a zero byte, the length and the UTF-8 bytes of the ID.
+     */
+    private String decodeLegacyId(int element) throws TLVParserException {
+        byte[] content = content(element);
+        if (content.length < 3 || (content[2] & 0xFF) > content.length - 3) {
+            throw new TLVParserException("Invalid legacy ID");
+        }
+        return new String(content, 3, content[2] & 0xFF, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads signature files one after another into the same buffer, for scanning large numbers of them.
+     * The view returned by {@link #read(Path)} is valid only until the next call.
+     */
+    public static final class Scanner {
+
+        private final SignatureView view = new SignatureView();
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);
+
+        public SignatureView read(Path file) throws IOException, TLVParserException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new TLVParserException("File " + file + " is too large for a signature");
+                }
+                if (size > buffer.capacity()) {
+                    buffer = ByteBuffer.allocateDirect(Integer.highestOneBit((int) size - 1) << 1);
+                }
+                buffer.clear();
+                buffer.limit((int) size);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // Read until the whole file is in the buffer
+                }
+                buffer.flip();
+            }
+            view.reset(buffer);
+            return view;
+        }
+    }
+}
@@ -24,18 +24,33 @@ import com.guardtime.ksi.hashing.DataHash;
 import com.guardtime.ksi.hashing.DataHasher;
 import com.guardtime.ksi.hashing.HashAlgorithm;
 import com.guardtime.ksi.unisignature.KSISignature;
+import com.guardtime.ksi.unisignature.verifier.VerificationResult;
 import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicy;
 import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicyAdapter;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -43,6 +58,9 @@ import static org.junit.Assert.assertTrue;
 
 public class SigningSamples extends KsiSamples {
 
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     /**
      * Creates a sample file, then signs it and stores the signature in a file.
      */
@@ -107,6 +125,126 @@ public class SigningSamples extends KsiSamples {
         // signature.writeTo(...);
     }
 
+    /**
+     * Hashes a large file by mapping it into memory instead of reading it through an input stream and
+     * then signs the hash. The progress of hashing is reported after every mapped region.
+     */
+    @Test
+    public void signLargeFileUsingMemoryMappedHashing() throws IOException, KSIException {
+        Signer signer = getSigner();
+
+        // Let's create a file to be signed, in practice it could be a database dump of several GB
+        Path largeFile = temporaryFolder.newFile("ksi-large-file.bin").toPath();
+        byte[] data = new byte[1024 * 1024];
+        try (OutputStream out = Files.newOutputStream(largeFile)) {
+            for (int i = 0; i < 16; i++) {
+                Arrays.fill(data, (byte) i);
+                out.write(data);
+            }
+        }
+
+        // Map the file into memory 4 MB at a time
+        ChannelHasher hasher = new ChannelHasher(HashAlgorithm.SHA2_256, 4 * 1024 * 1024);
+        DataHash hash = hasher.hash(largeFile, new ChannelHasher.ProgressListener() {
+            public void onProgress(long bytesHashed, long totalBytes) {
+                System.out.println("signLargeFileUsingMemoryMappedHashing > hashed " + bytesHashed + " of " + totalBytes + " bytes");
+            }
+        });
+
+        // The hash is exactly the same as DataHasher would compute
+        assertEquals(new DataHasher(HashAlgorithm.SHA2_256).addData(largeFile.toFile()).getHash(), hash);
+
+        @SuppressWarnings("unused")
+        KSISignature signature = signer.sign(hash);
+
+        // Persist signature to file
+        // signature.writeTo(...);
+    }
+
+    /**
+     * Signs and verifies a number of documents asynchronously. The calls return immediately with a
+     * {@link CompletableFuture}, at most 16 operations are in flight at a time and the rest wait in a
+     * queue without blocking the caller.
+     */
+    @Test
+    public void signAndVerifyAsynchronously() throws Exception {
+        final ContextAwarePolicy contextAwarePolicy = ContextAwarePolicyAdapter.createKeyPolicy(getPublicationsHandler());
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<CompletableFuture<VerificationResult>> results = new ArrayList<>();
+
+        try (final AsyncKsi asyncKsi = new AsyncKsi(getSigner(), getExtender(), getVerifier(), 16, executor)) {
+            DataHasher dh = new DataHasher(HashAlgorithm.SHA2_256);
+            for (int i = 0; i < 100; i++) {
+                dh.reset();
+                dh.addData(("Document " + i).getBytes(Charset.forName("UTF-8")));
+                final DataHash hash = dh.getHash();
+
+                // Verify each signature as soon as it has been received
+                results.add(asyncKsi.sign(hash).thenCompose(new Function<KSISignature, CompletableFuture<VerificationResult>>() {
+                    public CompletableFuture<VerificationResult> apply(KSISignature signature) {
+                        return asyncKsi.verify(signature, hash, contextAwarePolicy);
+                    }
+                }));
+            }
+
+            CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdown();
+        }
+
+        for (CompletableFuture<VerificationResult> result : results) {
+            assertTrue(result.get().isOk());
+        }
+    }
+
+    /**
+     * Signs a number of documents through several KSI Gateways. Run with the JVM property
+     * aggregator.urls listing the end points, e.g. -Daggregator.urls=http://gw1:8080/gt-signingservice,http://gw2:8080/gt-signingservice.
+     * Each request goes to the end point with the lowest expected latency, a failed request is retried
+     * on another end point and a failing or slow end point is left out for a while.
+     */
+    @Test
+    public void signUsingSeveralGateways() throws KSIException {
+        DataHasher dh = new DataHasher(HashAlgorithm.SHA2_256);
+        for (int i = 0; i < 20; i++) {
+            dh.reset();
+            dh.addData(("Document " + i).getBytes(Charset.forName("UTF-8")));
+            DataHash hash = dh.getHash();
+            KSISignature signature = getSigner().sign(hash);
+            assertEquals(hash, signature.getInputHash());
+        }
+
+        if (getKsiSigningClient() instanceof LoadBalancingClient) {
+            for (LoadBalancingClient.EndpointStats stats : ((LoadBalancingClient) getKsiSigningClient()).getStats()) {
+                System.out.println(stats);
+            }
+        }
+    }
+
+    /**
+     * Signs a million hashes with a single request using {@link ParallelBlockSigner}, which builds the
+     * local tree on all the processors. The signatures are created only when asked for, so here just a
+     * few of them are.
+     */
+    @Test
+    public void signMillionItemsWithParallelAggregation() throws KSIException {
+        ParallelBlockSigner blockSigner = new ParallelBlockSigner(getKsiSigningClient());
+        DataHasher dh = new DataHasher(HashAlgorithm.SHA2_256);
+        for (int i = 0; i < 1000000; i++) {
+            dh.reset();
+            dh.addData(String.valueOf(i).getBytes());
+            blockSigner.add(dh.getHash());
+        }
+        ParallelBlockSigner.SignedBlock block = blockSigner.sign();
+
+        ContextAwarePolicy contextAwarePolicy = ContextAwarePolicyAdapter.createKeyPolicy(getPublicationsHandler());
+        for (int i : new int[]{0, 500000, 999999}) {
+            KSISignature signature = block.getSignature(i);
+            assertEquals(block.getHash(i), signature.getInputHash());
+            assertTrue(getVerifier().verify(signature, contextAwarePolicy).isOk());
+        }
+    }
+
     /**
      * Signs numbers 1 - 50 (as text) using client side aggregation (block signer). The Merkle tree
      * is built locally and only a single request is sent to KSI Gateway. For each item individual
@@ -117,6 +255,10 @@ public class SigningSamples extends KsiSamples {
     public void signMultipleItemsWithLocalAggregation() throws KSIException {
         KsiBlockSigner ksiBlockSigner = new KsiBlockSigner(getKsiSigningClient());
 
+        // Wrap the block signer to get the signatures keyed by a correlation token
+        // of our choice, here the number of the item
+        CorrelatingBlockSigner<Integer> correlatingSigner = new CorrelatingBlockSigner<>(ksiBlockSigner);
+
         int itemCount = 50;
 
         // Add the items that need to be signed to the block signer
@@ -124,34 +266,166 @@ public class SigningSamples extends KsiSamples {
         for (int i = 1; i <= itemCount; i++) {
             dh.reset();
             dh.addData(String.valueOf(i).getBytes());
-            ksiBlockSigner.add(dh.getHash());
+            correlatingSigner.add(dh.getHash(), i);
         }
 
         // Submit the signing request
-        List<KSISignature> signatures = ksiBlockSigner.sign();
+        Map<Integer, KSISignature> signatures = correlatingSigner.sign();
 
         // Just to illustrate that there are as many signatures as items
         assertEquals(itemCount, signatures.size());
 
-        // Store the signatures as needed. Note that the signatures
-        // in the list are not in the same order as the hashes were added
-        // to the block signer. One simple option to find the right signature is by
-        // the input hash in the signature. It assumes that all the hashes added
-        // were unique which is currently the case.
+        // Store the signatures as needed. The signature of any item is found
+        // directly by its token, there is no need to scan all the signatures
+        // and the hashes of the items do not have to be unique.
+
+        // In this example we find the signature for the item 15
+        KSISignature s15 = signatures.get(15);
+
+        assertNotNull(s15);
 
-        // In this example we find the hash for the item 15
+        // If only the list returned by KsiBlockSigner is at hand, the signatures
+        // can still be looked up by the input hash in constant time
         dh.reset();
         dh.addData(String.valueOf(15).getBytes());
-        DataHash h = dh.getHash();
+        Map<DataHash, List<KSISignature>> byInputHash =
+                CorrelatingBlockSigner.indexByInputHash(new ArrayList<>(signatures.values()));
+        assertEquals(s15, byInputHash.get(dh.getHash()).get(0));
+    }
+
+    /**
+     * Signs all the files in a directory tree. The files are hashed in parallel and signed in blocks
+     * using client side aggregation, so only one request per block is sent to the KSI GW instead of one
+     * request per file. The signature of each file is stored next to it.
+     */
+    @Test
+    public void signDirectoryTree() throws IOException, KSIException {
+        // Let's create a small directory tree to be signed
+        Path directory = temporaryFolder.newFolder("ksi-directory-signing").toPath();
+        Files.createDirectories(directory.resolve("nested"));
+        for (int i = 0; i < 10; i++) {
+            Files.write(directory.resolve("file-" + i + ".txt"), ("Sample file " + i).getBytes(Charset.forName("UTF-8")));
+            Files.write(directory.resolve("nested").resolve("nested-file-" + i + ".txt"),
+                    ("Nested sample file " + i).getBytes(Charset.forName("UTF-8")));
+        }
+
+        // Hash the files on 4 threads, read each file through a 64 kB buffer
+        // and sign up to 10000 files with a single request
+        try (DirectorySigner directorySigner =
+                     new DirectorySigner(getKsiSigningClient(), HashAlgorithm.SHA2_256, 4, 10000, 64 * 1024)) {
+            assertEquals(20, directorySigner.sign(directory));
+        }
+
+        assertTrue(Files.exists(directory.resolve("nested").resolve("nested-file-5.txt" + DirectorySigner.SIGNATURE_SUFFIX)));
+    }
 
-        KSISignature s15 = null;
-        for (KSISignature s : signatures) {
-            if (s.getInputHash().equals(h)) {
-                s15 = s;
+    /**
+     * Signs items in a block and keeps the signatures in a {@link SignatureStore} instead of a file per
+     * signature. The whole block is written to the store at once and the signature of an item is later
+     * found by the hash of the item.
+     */
+    @Test
+    public void signMultipleItemsIntoSignatureStore() throws IOException, KSIException {
+        KsiBlockSigner ksiBlockSigner = new KsiBlockSigner(getKsiSigningClient());
+        DataHasher dh = new DataHasher(HashAlgorithm.SHA2_256);
+        for (int i = 1; i <= 100; i++) {
+            dh.reset();
+            dh.addData(String.valueOf(i).getBytes());
+            ksiBlockSigner.add(dh.getHash());
+        }
+
+        // Segments of up to 64 MB, forced to the disk after every 10000 signatures or when closed
+        Path directory = temporaryFolder.newFolder("ksi-signature-store").toPath();
+        try (SignatureStore store = new SignatureStore(directory, getReader(), 64 * 1024 * 1024, 10000)) {
+            store.append(ksiBlockSigner.sign());
+            assertEquals(100, store.size());
+        }
+
+        // The store can be opened again, the signatures are found by the hash of the item
+        try (SignatureStore store = new SignatureStore(directory, getReader(), 64 * 1024 * 1024, 10000)) {
+            dh.reset();
+            dh.addData(String.valueOf(15).getBytes());
+            KSISignature signature = store.get(dh.getHash());
+            assertNotNull(signature);
+            assertEquals(dh.getHash(), signature.getInputHash());
+        }
+    }
+
+    /**
+     * Signs items in a block and keeps the locations of the signatures in a {@link HashIndex}, a
+     * memory-mapped hash table that is not loaded into memory when opened. This suits a store of a very
+     * large number of signatures.
+     */
+    @Test
+    public void findSignatureByHashUsingIndex() throws IOException, KSIException {
+        KsiBlockSigner ksiBlockSigner = new KsiBlockSigner(getKsiSigningClient());
+        DataHasher dh = new DataHasher(HashAlgorithm.SHA2_256);
+        for (int i = 1; i <= 100; i++) {
+            dh.reset();
+            dh.addData(String.valueOf(i).getBytes());
+            ksiBlockSigner.add(dh.getHash());
+        }
+
+        Path directory = temporaryFolder.newFolder("ksi-signature-index").toPath();
+        Path indexFile = directory.resolve("signatures.idx");
+        try (SignatureStore store = new SignatureStore(directory.resolve("store"), getReader(), 64 * 1024 * 1024, 10000);
+             HashIndex index = new HashIndex(indexFile, HashAlgorithm.SHA2_256, 1000000)) {
+            List<KSISignature> signatures = ksiBlockSigner.sign();
+            long[] locations = store.append(signatures);
+            for (int i = 0; i < locations.length; i++) {
+                index.put(signatures.get(i).getInputHash(), locations[i]);
             }
         }
 
-        assertNotNull(s15);
+        // Later the index is opened again and the signature of an item is read from its location
+        try (SignatureStore store = new SignatureStore(directory.resolve("store"), getReader(), 64 * 1024 * 1024, 10000);
+             HashIndex index = new HashIndex(indexFile, HashAlgorithm.SHA2_256, 1000000)) {
+            dh.reset();
+            dh.addData(String.valueOf(15).getBytes());
+            long location = index.get(dh.getHash());
+            assertTrue(location != HashIndex.NOT_FOUND);
+            assertEquals(dh.getHash(), store.read(location).getInputHash());
+        }
+    }
+
+    /**
+     * Signs items that are produced continuously by several threads. Instead of collecting the
+     * block manually, the items are submitted to a long-running {@link MicroBatchingSigner} which cuts
+     * a block every 1000 items or 200 milliseconds and completes a future per item. This keeps the
+     * request rate to the KSI GW flat regardless of how many items are produced.
+     */
+    @Test
+    public void signContinuouslyWithMicroBatching() throws Exception {
+        final int producerCount = 4;
+        final int itemsPerProducer = 250;
+        final List<CompletableFuture<KSISignature>> futures = new CopyOnWriteArrayList<>();
+
+        try (final MicroBatchingSigner batchingSigner = new MicroBatchingSigner(getKsiSigningClient(), 1000, 200)) {
+            ExecutorService producers = Executors.newFixedThreadPool(producerCount);
+            for (int p = 0; p < producerCount; p++) {
+                final int producer = p;
+                producers.execute(new Runnable() {
+                    public void run() {
+                        DataHasher dh = new DataHasher(HashAlgorithm.SHA2_256);
+                        for (int i = 0; i < itemsPerProducer; i++) {
+                            dh.reset();
+                            dh.addData((producer + "-" + i).getBytes());
+                            futures.add(batchingSigner.submit(dh.getHash()));
+                        }
+                    }
+                });
+            }
+            producers.shutdown();
+            producers.awaitTermination(1, TimeUnit.MINUTES);
+
+            // Wait until all the blocks have been signed
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+        }
+
+        assertEquals(producerCount * itemsPerProducer, futures.size());
+        for (CompletableFuture<KSISignature> future : futures) {
+            assertNotNull(future.get());
+        }
     }
 
     /**
@@ -176,6 +450,7 @@ public class SigningSamples extends KsiSamples {
         String userId = "john.smith";
 
         // Add both, the data and the user to the block signer
+        // (items of many users can share a block, see MultiTenantBlockSigner)
         ksiBlockSigner.add(dh.getHash(), new IdentityMetadata(userId));
         List<KSISignature> signatures = ksiBlockSigner.sign();
 
@@ -226,6 +501,7 @@ public class SigningSamples extends KsiSamples {
 
         // In order to augment this signature with an aggregation hash chain,
         // that was below the provided root, the level correction has to be removed (set to 0).
+        // MerkleTreeFile builds such a tree, signs its root at its level and creates the signatures of the leaves.
     }
 
 }
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.util.Util;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP server in front of a {@link StubKsiService}, for running the signing and extending code with the
+ * HTTP clients, e.g. {@link com.guardtime.ksi.service.http.simple.SimpleHttpSigningClient} or
+ * {@link PooledHttpClient}, without network access. The server listens on the loopback interface and
+ * serves the Aggregator at {@link #getAggregatorUrl()}, the Extender at {@link #getExtenderUrl()} and
+ * the publications file at {@link #getPublicationsFileUrl()}.
+ * <p>
+ * For load tests, the signing and extending requests can be delayed, answered with errors and
+ * throttled, see the {@link Builder}. The delayed responses do not hold a thread, so the number of
+ * requests in progress is not limited by the threads of the server. The errors and throttling are
+ * counted, see {@link #getInjectedErrorCount()} and {@link #getThrottledCount()}.
+ */
+public class StubKsiServer implements Closeable {
+
+    private static final String AGGREGATOR_PATH = "/gt-signingservice";
+    private static final String EXTENDER_PATH = "/gt-extendingservice";
+    private static final String PUBLICATIONS_FILE_PATH = "/ksi-publications.bin";
+    private static final int AGGREGATION_RESPONSE = 0x221;
+    private static final int EXTENSION_RESPONSE = 0x321;
+
+    private final StubKsiService service;
+    private final long latencyMillis;
+    private final long latencyJitterMillis;
+    private final double slowRate;
+    private final long slowLatencyMillis;
+    private final double errorRate;
+    private final long errorStatus;
+    private final double httpErrorRate;
+    private final int maxRequestsPerSecond;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private long throttlingSecond;
+    private int throttlingCount;
+
+    private StubKsiServer(Builder builder) throws IOException {
+        this.service = builder.service;
+        this.latencyMillis = builder.latencyMillis;
+        this.latencyJitterMillis = builder.latencyJitterMillis;
+        this.slowRate = builder.slowRate;
+        this.slowLatencyMillis = builder.slowLatencyMillis;
+        this.errorRate = builder.errorRate;
+        this.errorStatus = builder.errorStatus;
+        this.httpErrorRate = builder.httpErrorRate;
+        this.maxRequestsPerSecond = builder.maxRequestsPerSecond;
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "stub-ksi-server-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        this.executor = Executors.newFixedThreadPool(builder.threads, threadFactory);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), builder.port), 1024);
+        server.setExecutor(executor);
+        server.createContext(AGGREGATOR_PATH, exchange -> handleRequest(exchange, AGGREGATION_RESPONSE));
+        server.createContext(EXTENDER_PATH, exchange -> handleRequest(exchange, EXTENSION_RESPONSE));
+        server.createContext(PUBLICATIONS_FILE_PATH, this::handlePublicationsFileRequest);
+        server.start();
+    }
+
+    public String getAggregatorUrl() {
+        return getUrl(AGGREGATOR_PATH);
+    }
+
+    public String getExtenderUrl() {
+        return getUrl(EXTENDER_PATH);
+    }
+
+    public String getPublicationsFileUrl() {
+        return getUrl(PUBLICATIONS_FILE_PATH);
+    }
+
+    public StubKsiService getService() {
+        return service;
+    }
+
+    /**
+     * Number of requests answered with an injected error, either a KSI error or an HTTP error.
+     */
+    public long getInjectedErrorCount() {
+        return injectedErrors.get();
+    }
+
+    /**
+     * Number of requests rejected by throttling.
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * Stops the server. The requests in progress are not answered.
+     */
+    public void close() {
+        server.stop(0);
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private String getUrl(String path) {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + path;
+    }
+
+    private void handleRequest(HttpExchange exchange, int responseType) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, null);
+                return;
+            }
+            byte[] request = Util.toByteArray(exchange.getRequestBody());
+            if (isThrottled()) {
+                throttled.incrementAndGet();
+                sendLater(exchange, 503, null);
+                return;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < httpErrorRate) {
+                injectedErrors.incrementAndGet();
+                sendLater(exchange, 500, null);
+                return;
+            }
+            byte[] response;
+            if (random.nextDouble() < errorRate) {
+                injectedErrors.incrementAndGet();
+                response = StubKsiService.createErrorResponse(responseType, errorStatus, "Injected error");
+            } else if (responseType == AGGREGATION_RESPONSE) {
+                response = service.handleAggregationRequest(request);
+            } else {
+                response = service.handleExtensionRequest(request);
+            }
+            sendLater(exchange, 200, response);
+        } catch (IOException | RuntimeException e) {
+            exchange.close();
+            throw e;
+        }
+    }
+
+    private void handlePublicationsFileRequest(HttpExchange exchange) throws IOException {
+        try {
+            send(exchange, 200, service.createPublicationsFile());
+        } catch (KSIException e) {
+            send(exchange, 500, null);
+        }
+    }
+
+    /**
+     * Fixed window rate limit, the requests above the limit in a second are rejected.
+     */
+    private synchronized boolean isThrottled() {
+        if (maxRequestsPerSecond <= 0) {
+            return false;
+        }
+        long second = System.nanoTime() / 1000000000L;
+        if (second != throttlingSecond) {
+            throttlingSecond = second;
+            throttlingCount = 0;
+        }
+        return ++throttlingCount > maxRequestsPerSecond;
+    }
+
+    private void sendLater(final HttpExchange exchange, final int status, final byte[] body) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delay = latencyMillis + (latencyJitterMillis > 0 ? random.nextLong(latencyJitterMillis + 1) : 0);
+        if (random.nextDouble() < slowRate) {
+            delay += slowLatencyMillis;
+        }
+        if (delay <= 0) {
+            send(exchange, status, body);
+            return;
+        }
+        scheduler.schedule(() -> {
+            try {
+                send(exchange, status, body);
+            } catch (IOException e) {
+                exchange.close();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/ksi-response");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    public static final class Builder {
+
+        private final StubKsiService service;
+        private int port;
+        private int threads = 16;
+        private long latencyMillis;
+        private long latencyJitterMillis;
+        private double slowRate;
+        private long slowLatencyMillis;
+        private double errorRate;
+        private long errorStatus = StubKsiService.STATUS_INTERNAL_ERROR;
+        private double httpErrorRate;
+        private int maxRequestsPerSecond;
+
+        public Builder(StubKsiService service) {
+            if (service == null) {
+                throw new IllegalArgumentException("Stub service must be present");
+            }
+            this.service = service;
+        }
+
+        /**
+         * Port to listen on, by default a free port is chosen.
+         */
+        public Builder setPort(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * Number of threads handling the requests, 16 by default.
+         */
+        public Builder setThreads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Delay of the signing and extending responses, the fixed delay plus a uniformly distributed random
+         * delay up to the jitter.
+         */
+        public Builder setLatency(long latencyMillis, long jitterMillis) {
+            this.latencyMillis = latencyMillis;
+            this.latencyJitterMillis = jitterMillis;
+            return this;
+        }
+
+        /**
+         * Additional delay of the given fraction of the signing and extending responses, for testing the tail
+         * latency.
+         */
+        public Builder setSlowResponses(double rate, long latencyMillis) {
+            this.slowRate = rate;
+            this.slowLatencyMillis = latencyMillis;
+            return this;
+        }
+
+        /**
+         * Fraction of the signing and extending requests answered with a KSI error of the given status, e.g.
+         * 0x300 for an upstream error. The error responses are not authenticated, like those of the KSI
+         * Gateway.
+         */
+        public Builder setErrors(double rate, long status) {
+            this.errorRate = rate;
+            this.errorStatus = status;
+            return this;
+        }
+
+        /**
+         * Fraction of the signing and extending requests answered with HTTP status 500.
+         */
+        public Builder setHttpErrors(double rate) {
+            this.httpErrorRate = rate;
+            return this;
+        }
+
+        /**
+         * Maximum number of signing and extending requests in a second, the rest are answered with HTTP status
+         * 503. Not limited by default.
+         */
+        public Builder setMaxRequestsPerSecond(int maxRequestsPerSecond) {
+            this.maxRequestsPerSecond = maxRequestsPerSecond;
+            return this;
+        }
+
+        /**
+         * Starts the server.
+         */
+        public StubKsiServer build() throws IOException {
+            if (port < 0 || threads < 1 || latencyMillis < 0 || latencyJitterMillis < 0 || slowLatencyMillis < 0
+                    || maxRequestsPerSecond < 0) {
+                throw new IllegalStateException("Invalid stub server settings");
+            }
+            if (slowRate < 0 || slowRate > 1 || errorRate < 0 || errorRate > 1 || httpErrorRate < 0 || httpErrorRate > 1) {
+                throw new IllegalStateException("Rates must be between 0 and 1");
+            }
+            return new StubKsiServer(this);
+        }
+    }
+}
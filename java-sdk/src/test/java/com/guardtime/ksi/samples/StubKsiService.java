@@ -0,0 +1,775 @@
+/*
+ * Copyright 2013-2016 Guardtime, Inc.
+ *
+ * This file is part of the Guardtime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES, CONDITIONS, OR OTHER LICENSES OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License. "Guardtime"
+ * and "KSI" are trademarks or registered trademarks of Guardtime, Inc., and no license to
+ * trademarks is granted; Guardtime reserves and retains all trademark rights.
+ */
+package com.guardtime.ksi.samples;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.pdu.PduVersion;
+import com.guardtime.ksi.publication.PublicationData;
+import com.guardtime.ksi.service.Future;
+import com.guardtime.ksi.service.client.KSIClientException;
+import com.guardtime.ksi.service.client.KSIExtenderClient;
+import com.guardtime.ksi.service.client.KSIPublicationsFileClient;
+import com.guardtime.ksi.service.client.KSISigningClient;
+import com.guardtime.ksi.service.client.ServiceCredentials;
+import com.guardtime.ksi.tlv.TLVElement;
+import com.guardtime.ksi.tlv.TLVParserException;
+import com.guardtime.ksi.tlv.TLVStructure;
+import com.guardtime.ksi.trust.X509CertificateSubjectRdnSelector;
+import com.guardtime.ksi.unisignature.AggregationChainLink;
+import com.guardtime.ksi.unisignature.AggregationHashChain;
+import com.guardtime.ksi.unisignature.AggregationHashChainUtil;
+import com.guardtime.ksi.unisignature.ChainResult;
+import com.guardtime.ksi.unisignature.KSISignatureComponentFactory;
+import com.guardtime.ksi.unisignature.inmemory.InMemoryKsiSignatureComponentFactory;
+import com.guardtime.ksi.util.Util;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.CertIOException;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * In-process stand-in for the KSI Aggregator, Extender and publications file, for running the signing,
+ * extending and verification code without network access and service credentials, e.g. in benchmarks
+ * and load tests. It speaks the same protocol (PDU version 2) as the KSI Gateway, so it can be given to
+ * {@link com.guardtime.ksi.KSIBuilder}, {@link com.guardtime.ksi.blocksigner.KsiBlockSigner} or the
+ * service adapters in place of the HTTP clients.
+ * <p>
+ * The requests are authenticated with the given credentials. The requests that arrive while a round is
+ * being built are aggregated into the next round, so under load a round holds many requests like in
+ * the real service. Each round takes the next second of a calendar kept in memory, whose hash chains
+ * have the same shape as in the KSI calendar; the seconds without a round hold a fixed empty value. The
+ * calendar roots are signed with a key generated for the instance, and the certificate of the key is
+ * in the publications file. The publications file is signed with another generated key, whose root
+ * certificate is in {@link #getTrustStore()} and which is selected by {@link #getCertificateSelector()}.
+ * The calendar roots get into the publications file only by {@link #publish()}.
+ * <p>
+ * The signatures are valid only with this trust store and publications file, of course.
+ */
+public class StubKsiService implements KSISigningClient, KSIExtenderClient, KSIPublicationsFileClient {
+
+    /**
+     * E-mail address in the certificate that signs the publications file.
+     */
+    public static final String PUBLICATIONS_FILE_EMAIL = "publications@stub.invalid";
+
+    static final long STATUS_OK = 0;
+    static final long STATUS_INVALID_REQUEST = 0x101;
+    static final long STATUS_AUTHENTICATION_FAILED = 0x102;
+    static final long STATUS_INVALID_PAYLOAD = 0x103;
+    static final long STATUS_INVALID_TIME_RANGE = 0x104;
+    static final long STATUS_TIME_TOO_NEW = 0x106;
+    static final long STATUS_INTERNAL_ERROR = 0x200;
+
+    private static final int AGGREGATION_REQUEST = 0x220;
+    private static final int AGGREGATION_RESPONSE = 0x221;
+    private static final int EXTENSION_REQUEST = 0x320;
+    private static final int EXTENSION_RESPONSE = 0x321;
+    private static final int HEADER = 0x01;
+    private static final int HEADER_LOGIN_ID = 0x01;
+    private static final int PAYLOAD = 0x02;
+    private static final int ERROR_PAYLOAD = 0x03;
+    private static final int CONFIGURATION = 0x04;
+    private static final int MAC = 0x1F;
+    private static final int REQUEST_ID = 0x01;
+    private static final int REQUEST_HASH = 0x02;
+    private static final int REQUEST_LEVEL = 0x03;
+    private static final int AGGREGATION_TIME = 0x02;
+    private static final int PUBLICATION_TIME = 0x03;
+    private static final int STATUS = 0x04;
+    private static final int ERROR_MESSAGE = 0x05;
+    private static final int CALENDAR_LAST_TIME = 0x12;
+    private static final int CALENDAR_HASH_CHAIN = 0x802;
+    private static final int CALENDAR_PUBLICATION_TIME = 0x01;
+    private static final int CALENDAR_AGGREGATION_TIME = 0x02;
+    private static final int CALENDAR_INPUT_HASH = 0x05;
+    private static final int CALENDAR_LEFT_LINK = 0x07;
+    private static final int CALENDAR_RIGHT_LINK = 0x08;
+    private static final int CALENDAR_AUTHENTICATION_RECORD = 0x805;
+    private static final int SIGNATURE_DATA = 0x0B;
+    private static final int SIGNATURE_TYPE = 0x01;
+    private static final int SIGNATURE_VALUE = 0x02;
+    private static final int CERTIFICATE_ID = 0x03;
+    private static final int PUBLICATIONS_FILE_HEADER = 0x701;
+    private static final int CERTIFICATE_RECORD = 0x702;
+    private static final int PUBLICATION_RECORD = 0x703;
+    private static final int PUBLICATIONS_FILE_SIGNATURE = 0x704;
+    private static final int PUBLICATION_REFERENCE = 0x09;
+    private static final byte[] PUBLICATIONS_FILE_MAGIC = "KSIPUBLF".getBytes(StandardCharsets.US_ASCII);
+    private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+    private static final String SIGNATURE_ALGORITHM_OID = "1.2.840.113549.1.1.11";
+    private static final HashAlgorithm ALGORITHM = HashAlgorithm.SHA2_256;
+    private static final int MAX_LEVEL = 200;
+
+    private final ServiceCredentials credentials;
+    private final KSISignatureComponentFactory componentFactory = new InMemoryKsiSignatureComponentFactory();
+    private final Calendar calendar = new Calendar();
+    private final ConcurrentLinkedQueue<PendingRequest> pendingRequests = new ConcurrentLinkedQueue<>();
+    private final List<PublicationData> publications = new ArrayList<>();
+    private final PrivateKey calendarKey;
+    private final X509Certificate calendarCertificate;
+    private final byte[] certificateId = {0x53, 0x54, 0x55, 0x42};
+    private final PrivateKey publicationsFileKey;
+    private final X509Certificate publicationsFileCertificate;
+    private final KeyStore trustStore;
+    private byte[] publicationsFile;
+
+    /**
+     * @param credentials login id and key the requests must be authenticated with, and the HMAC
+     *                    algorithm of the responses.
+     */
+    public StubKsiService(ServiceCredentials credentials) throws KSIException {
+        if (credentials == null) {
+            throw new IllegalArgumentException("Credentials must be present");
+        }
+        this.credentials = credentials;
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            KeyPair calendarKeyPair = generator.generateKeyPair();
+            KeyPair rootKeyPair = generator.generateKeyPair();
+            KeyPair publicationsFileKeyPair = generator.generateKeyPair();
+            X509Certificate rootCertificate = createCertificate("CN=Stub KSI Root", rootKeyPair,
+                    "CN=Stub KSI Root", rootKeyPair.getPrivate(), true);
+            this.calendarKey = calendarKeyPair.getPrivate();
+            this.calendarCertificate = createCertificate("CN=Stub KSI Calendar", calendarKeyPair,
+                    "CN=Stub KSI Calendar", calendarKeyPair.getPrivate(), false);
+            this.publicationsFileKey = publicationsFileKeyPair.getPrivate();
+            this.publicationsFileCertificate = createCertificate("CN=Stub KSI Publications,E=" + PUBLICATIONS_FILE_EMAIL,
+                    publicationsFileKeyPair, "CN=Stub KSI Root", rootKeyPair.getPrivate(), false);
+            this.trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            this.trustStore.load(null, null);
+            this.trustStore.setCertificateEntry("stub-ksi-root", rootCertificate);
+        } catch (GeneralSecurityException | IOException | OperatorCreationException e) {
+            throw new KSIException("Creating the keys of the stub service failed", e);
+        }
+    }
+
+    public Future<TLVElement> sign(InputStream request) throws KSIClientException {
+        return new CompletedFuture<>(parseResponse(handleAggregationRequest(readRequest(request))));
+    }
+
+    public Future<TLVElement> extend(InputStream request) throws KSIClientException {
+        return new CompletedFuture<>(parseResponse(handleExtensionRequest(readRequest(request))));
+    }
+
+    public Future<ByteBuffer> getPublicationsFile() throws KSIClientException {
+        try {
+            return new CompletedFuture<>(ByteBuffer.wrap(createPublicationsFile()));
+        } catch (KSIException e) {
+            throw new KSIClientException("Creating the publications file failed", e);
+        }
+    }
+
+    public ServiceCredentials getServiceCredentials() {
+        return credentials;
+    }
+
+    public PduVersion getPduVersion() {
+        return PduVersion.V2;
+    }
+
+    public void close() {
+    }
+
+    /**
+     * Trust store for verifying the publications file of this service.
+     */
+    public KeyStore getTrustStore() {
+        return trustStore;
+    }
+
+    /**
+     * Constraints of the certificate that signs the publications file of this service.
+     */
+    public CertSelector getCertificateSelector() throws KSIException {
+        return new X509CertificateSubjectRdnSelector("E=" + PUBLICATIONS_FILE_EMAIL);
+    }
+
+    /**
+     * Publishes the calendar root of the last round, so the signatures can be extended to it and
+     * verified against the publications file.
+     *
+     * @return the new publication.
+     */
+    public synchronized PublicationData publish() throws KSIException {
+        long time = calendar.getLastTime();
+        if (time < 0) {
+            throw new KSIException("Nothing has been signed yet");
+        }
+        PublicationData publication = new PublicationData(new Date(time * 1000), calendar.getRoot(time));
+        if (publications.isEmpty() || !publications.get(publications.size() - 1).equals(publication)) {
+            publications.add(publication);
+            publicationsFile = null;
+        }
+        return publication;
+    }
+
+    /**
+     * Handles an encoded aggregation request and returns the encoded response.
+     */
+    public byte[] handleAggregationRequest(byte[] request) {
+        try {
+            TLVElement pdu = readPdu(request, AGGREGATION_REQUEST);
+            if (pdu.getFirstChildElement(CONFIGURATION) != null) {
+                return createResponse(AGGREGATION_RESPONSE, pdu, createAggregatorConfiguration());
+            }
+            TLVElement payload = pdu.getFirstChildElement(PAYLOAD);
+            if (payload == null || payload.getFirstChildElement(REQUEST_ID) == null
+                    || payload.getFirstChildElement(REQUEST_HASH) == null) {
+                throw new StubException(STATUS_INVALID_PAYLOAD, "Aggregation request payload is missing or incomplete");
+            }
+            long level = payload.getFirstChildElement(REQUEST_LEVEL) != null
+                    ? payload.getFirstChildElement(REQUEST_LEVEL).getDecodedLong() : 0;
+            if (level < 0 || level > MAX_LEVEL) {
+                throw new StubException(STATUS_INVALID_PAYLOAD, "Request level " + level + " is above the maximum " + MAX_LEVEL);
+            }
+            PendingRequest pending = new PendingRequest(pdu, payload.getFirstChildElement(REQUEST_ID).getDecodedLong(),
+                    payload.getFirstChildElement(REQUEST_HASH).getDecodedDataHash(), level,
+                    pdu.getFirstChildElement(HEADER).getFirstChildElement(HEADER_LOGIN_ID).getDecodedString());
+            pendingRequests.add(pending);
+            synchronized (this) {
+                // The first thread to get here builds a round of all the requests that have arrived
+                if (pending.response == null) {
+                    aggregateRound();
+                }
+            }
+            return pending.response;
+        } catch (StubException e) {
+            return createErrorResponse(AGGREGATION_RESPONSE, e.status, e.getMessage());
+        } catch (KSIException | RuntimeException e) {
+            return createErrorResponse(AGGREGATION_RESPONSE, STATUS_INTERNAL_ERROR, String.valueOf(e.getMessage()));
+        }
+    }
+
+    /**
+     * Handles an encoded extension request and returns the encoded response.
+     */
+    public byte[] handleExtensionRequest(byte[] request) {
+        try {
+            TLVElement pdu = readPdu(request, EXTENSION_REQUEST);
+            if (pdu.getFirstChildElement(CONFIGURATION) != null) {
+                return createResponse(EXTENSION_RESPONSE, pdu, createExtenderConfiguration());
+            }
+            TLVElement payload = pdu.getFirstChildElement(PAYLOAD);
+            if (payload == null || payload.getFirstChildElement(REQUEST_ID) == null
+                    || payload.getFirstChildElement(AGGREGATION_TIME) == null) {
+                throw new StubException(STATUS_INVALID_PAYLOAD, "Extension request payload is missing or incomplete");
+            }
+            long aggregationTime = payload.getFirstChildElement(AGGREGATION_TIME).getDecodedLong();
+            TLVElement response = new TLVElement(false, false, PAYLOAD);
+            response.addChildElement(TLVElement.create(REQUEST_ID, payload.getFirstChildElement(REQUEST_ID).getDecodedLong()));
+            synchronized (this) {
+                long lastTime = calendar.getLastTime();
+                long publicationTime = payload.getFirstChildElement(PUBLICATION_TIME) != null
+                        ? payload.getFirstChildElement(PUBLICATION_TIME).getDecodedLong() : lastTime;
+                if (lastTime < 0 || aggregationTime > lastTime || publicationTime > lastTime) {
+                    throw new StubException(STATUS_TIME_TOO_NEW, "Request time is after the last second of the calendar");
+                }
+                if (aggregationTime < 0 || aggregationTime > publicationTime) {
+                    throw new StubException(STATUS_INVALID_TIME_RANGE, "Aggregation time is after the publication time");
+                }
+                response.addChildElement(TLVElement.create(STATUS, STATUS_OK));
+                response.addChildElement(TLVElement.create(CALENDAR_LAST_TIME, lastTime));
+                response.addChildElement(calendar.getHashChain(aggregationTime, publicationTime));
+            }
+            return createResponse(EXTENSION_RESPONSE, pdu, response);
+        } catch (StubException e) {
+            return createErrorResponse(EXTENSION_RESPONSE, e.status, e.getMessage());
+        } catch (KSIException | RuntimeException e) {
+            return createErrorResponse(EXTENSION_RESPONSE, STATUS_INTERNAL_ERROR, String.valueOf(e.getMessage()));
+        }
+    }
+
+    /**
+     * Returns the publications file with the certificate of the calendar key and the publications made so
+     * far. The file is signed again only after a new publication.
+     */
+    public synchronized byte[] createPublicationsFile() throws KSIException {
+        if (publicationsFile == null) {
+            publicationsFile = signPublicationsFile();
+        }
+        return publicationsFile;
+    }
+
+    private byte[] signPublicationsFile() throws KSIException {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            output.write(PUBLICATIONS_FILE_MAGIC);
+            TLVElement header = new TLVElement(false, false, PUBLICATIONS_FILE_HEADER);
+            header.addChildElement(TLVElement.create(0x01, 2));
+            header.addChildElement(TLVElement.create(0x02, new Date()));
+            header.writeTo(output);
+            TLVElement certificateRecord = new TLVElement(false, false, CERTIFICATE_RECORD);
+            certificateRecord.addChildElement(TLVElement.create(0x01, certificateId));
+            certificateRecord.addChildElement(TLVElement.create(0x02, calendarCertificate.getEncoded()));
+            certificateRecord.writeTo(output);
+            for (PublicationData publication : publications) {
+                TLVElement record = new TLVElement(false, false, PUBLICATION_RECORD);
+                record.addChildElement(publication.getRootElement());
+                record.addChildElement(TLVElement.create(PUBLICATION_REFERENCE, "Stub KSI publication " + publication.getPublicationString()));
+                record.writeTo(output);
+            }
+            CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+            generator.addSignerInfoGenerator(new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build())
+                    .build(new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(publicationsFileKey), publicationsFileCertificate));
+            generator.addCertificates(new JcaCertStore(Collections.singletonList(publicationsFileCertificate)));
+            byte[] signature = generator.generate(new CMSProcessableByteArray(output.toByteArray()), false).getEncoded();
+            TLVElement.create(PUBLICATIONS_FILE_SIGNATURE, signature).writeTo(output);
+            return output.toByteArray();
+        } catch (IOException | GeneralSecurityException | OperatorCreationException | CMSException e) {
+            throw new KSIException("Signing the publications file failed", e);
+        }
+    }
+
+    /**
+     * Aggregates the pending requests into a round of the next calendar second. Each request is a leaf of
+     * the round tree, linked to the metadata of its login id, and the tree is balanced by the number of
+     * leaves.
+     */
+    private void aggregateRound() {
+        List<PendingRequest> round = new ArrayList<>();
+        for (PendingRequest request = pendingRequests.poll(); request != null; request = pendingRequests.poll()) {
+            round.add(request);
+        }
+        if (round.isEmpty()) {
+            return;
+        }
+        try {
+            long time = calendar.nextTime();
+            Date aggregationTime = new Date(time * 1000);
+            List<Node> nodes = new ArrayList<>(round.size());
+            for (PendingRequest request : round) {
+                LinkedList<AggregationChainLink> links = new LinkedList<>();
+                links.add(componentFactory.createLeftAggregationChainLink(
+                        componentFactory.createLinkMetadata(request.loginId, null, null, null), 0L));
+                AggregationHashChain chain = componentFactory.createAggregationHashChain(request.hash, aggregationTime,
+                        new LinkedList<>(Collections.singletonList(AggregationHashChainUtil.calculateIndex(links))), links, ALGORITHM);
+                ChainResult leaf = chain.calculateOutputHash(request.level);
+                request.links = links;
+                request.leaf = new Node(leaf.getOutputHash(), leaf.getLevel());
+                nodes.add(request.leaf);
+            }
+            while (nodes.size() > 1) {
+                List<Node> parents = new ArrayList<>((nodes.size() + 1) / 2);
+                for (int i = 0; i + 1 < nodes.size(); i += 2) {
+                    parents.add(new Node(nodes.get(i), nodes.get(i + 1)));
+                }
+                if (nodes.size() % 2 == 1) {
+                    parents.add(nodes.get(nodes.size() - 1));
+                }
+                nodes = parents;
+            }
+            DataHash roundRoot = nodes.get(0).hash;
+            calendar.add(time, roundRoot);
+            TLVElement calendarHashChain = calendar.getHashChain(time, time);
+            TLVElement authenticationRecord = createAuthenticationRecord(new PublicationData(aggregationTime, calendar.getRoot(time)));
+
+            for (PendingRequest request : round) {
+                for (Node node = request.leaf; node.parent != null; node = node.parent) {
+                    long levelCorrection = node.parent.level - node.level - 1;
+                    request.links.add(node.isLeft()
+                            ? componentFactory.createLeftAggregationChainLink(node.sibling().hash, levelCorrection)
+                            : componentFactory.createRightAggregationChainLink(node.sibling().hash, levelCorrection));
+                }
+                AggregationHashChain chain = componentFactory.createAggregationHashChain(request.hash, aggregationTime,
+                        new LinkedList<>(Collections.singletonList(AggregationHashChainUtil.calculateIndex(request.links))),
+                        request.links, ALGORITHM);
+                if (!roundRoot.equals(chain.calculateOutputHash(request.level).getOutputHash())) {
+                    throw new KSIException("Aggregation hash chain does not end at the round root");
+                }
+                TLVElement payload = new TLVElement(false, false, PAYLOAD);
+                payload.addChildElement(TLVElement.create(REQUEST_ID, request.requestId));
+                payload.addChildElement(TLVElement.create(STATUS, STATUS_OK));
+                payload.addChildElement(((TLVStructure) chain).getRootElement());
+                payload.addChildElement(calendarHashChain);
+                payload.addChildElement(authenticationRecord);
+                request.response = createResponse(AGGREGATION_RESPONSE, request.pdu, payload);
+            }
+        } catch (KSIException | RuntimeException e) {
+            for (PendingRequest request : round) {
+                request.response = createErrorResponse(AGGREGATION_RESPONSE, STATUS_INTERNAL_ERROR, String.valueOf(e.getMessage()));
+            }
+        }
+    }
+
+    private TLVElement createAuthenticationRecord(PublicationData publicationData) throws KSIException {
+        try {
+            Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+            signature.initSign(calendarKey);
+            signature.update(publicationData.getEncoded());
+            TLVElement signatureData = new TLVElement(false, false, SIGNATURE_DATA);
+            signatureData.addChildElement(TLVElement.create(SIGNATURE_TYPE, SIGNATURE_ALGORITHM_OID));
+            signatureData.addChildElement(TLVElement.create(SIGNATURE_VALUE, signature.sign()));
+            signatureData.addChildElement(TLVElement.create(CERTIFICATE_ID, certificateId));
+            TLVElement record = new TLVElement(false, false, CALENDAR_AUTHENTICATION_RECORD);
+            record.addChildElement(publicationData.getRootElement());
+            record.addChildElement(signatureData);
+            return record;
+        } catch (GeneralSecurityException e) {
+            throw new KSIException("Signing the calendar root failed", e);
+        }
+    }
+
+    private TLVElement createAggregatorConfiguration() throws KSIException {
+        TLVElement configuration = new TLVElement(false, false, CONFIGURATION);
+        configuration.addChildElement(TLVElement.create(0x01, MAX_LEVEL));
+        configuration.addChildElement(TLVElement.create(0x02, ALGORITHM.getId()));
+        configuration.addChildElement(TLVElement.create(0x03, 1000));
+        configuration.addChildElement(TLVElement.create(0x04, 100000));
+        return configuration;
+    }
+
+    private TLVElement createExtenderConfiguration() throws KSIException {
+        TLVElement configuration = new TLVElement(false, false, CONFIGURATION);
+        configuration.addChildElement(TLVElement.create(0x04, 100000));
+        synchronized (this) {
+            if (calendar.getLastTime() >= 0) {
+                configuration.addChildElement(TLVElement.create(0x11, 0));
+                configuration.addChildElement(TLVElement.create(0x12, calendar.getLastTime()));
+            }
+        }
+        return configuration;
+    }
+
+    /**
+     * Parses the request PDU and checks its MAC and login id.
+     */
+    private TLVElement readPdu(byte[] request, int type) throws KSIException {
+        TLVElement pdu;
+        try {
+            pdu = TLVElement.create(request);
+        } catch (TLVParserException e) {
+            throw new StubException(STATUS_INVALID_REQUEST, "Request could not be parsed");
+        }
+        TLVElement header = pdu.getFirstChildElement(HEADER);
+        TLVElement mac = pdu.getLastChildElement();
+        if (pdu.getType() != type || header == null || header.getFirstChildElement(HEADER_LOGIN_ID) == null
+                || mac == null || mac.getType() != MAC) {
+            throw new StubException(STATUS_INVALID_REQUEST, "Request is not a PDU of type 0x" + Integer.toHexString(type));
+        }
+        DataHash requestMac = mac.getDecodedDataHash();
+        byte[] expectedMac = calculateMac(request, requestMac.getAlgorithm());
+        if (!credentials.getLoginId().equals(header.getFirstChildElement(HEADER_LOGIN_ID).getDecodedString())
+                || !MessageDigest.isEqual(expectedMac, requestMac.getValue())) {
+            throw new StubException(STATUS_AUTHENTICATION_FAILED, "Request could not be authenticated");
+        }
+        return pdu;
+    }
+
+    private byte[] createResponse(int type, TLVElement request, TLVElement payload) {
+        try {
+            HashAlgorithm algorithm = credentials.getHmacAlgorithm();
+            TLVElement pdu = new TLVElement(false, false, type);
+            pdu.addChildElement(TLVElement.create(request.getFirstChildElement(HEADER).getEncoded()));
+            pdu.addChildElement(payload);
+            TLVElement mac = TLVElement.create(MAC, new DataHash(algorithm, new byte[algorithm.getLength()]));
+            pdu.addChildElement(mac);
+            mac.setDataHashContent(new DataHash(algorithm, calculateMac(pdu.getEncoded(), algorithm)));
+            return pdu.getEncoded();
+        } catch (KSIException e) {
+            return createErrorResponse(type, STATUS_INTERNAL_ERROR, String.valueOf(e.getMessage()));
+        }
+    }
+
+    /**
+     * Creates a response with an error payload, which is not authenticated.
+     */
+    static byte[] createErrorResponse(int type, long status, String message) {
+        try {
+            TLVElement error = new TLVElement(false, false, ERROR_PAYLOAD);
+            error.addChildElement(TLVElement.create(STATUS, status));
+            error.addChildElement(TLVElement.create(ERROR_MESSAGE, message));
+            TLVElement pdu = new TLVElement(false, false, type);
+            pdu.addChildElement(error);
+            return pdu.getEncoded();
+        } catch (TLVParserException e) {
+            throw new IllegalStateException("Encoding the error response failed", e);
+        }
+    }
+
+    /**
+     * HMAC of the PDU without the value of the MAC, which is at the end of the PDU.
+     */
+    private byte[] calculateMac(byte[] pdu, HashAlgorithm algorithm) throws KSIException {
+        try {
+            return Util.calculateHMAC(Util.copyOf(pdu, 0, pdu.length - algorithm.getLength()), credentials.getLoginKey(),
+                    algorithm.getName());
+        } catch (GeneralSecurityException e) {
+            throw new KSIException("Calculating the HMAC failed", e);
+        }
+    }
+
+    private static byte[] readRequest(InputStream request) throws KSIClientException {
+        try {
+            return Util.toByteArray(request);
+        } catch (IOException e) {
+            throw new KSIClientException("Reading the request failed", e);
+        }
+    }
+
+    private static TLVElement parseResponse(byte[] response) throws KSIClientException {
+        try {
+            return TLVElement.create(response);
+        } catch (TLVParserException e) {
+            throw new KSIClientException("Parsing the response failed", e);
+        }
+    }
+
+    private static X509Certificate createCertificate(String subject, KeyPair keyPair, String issuer, PrivateKey issuerKey,
+                                                     boolean authority) throws OperatorCreationException, GeneralSecurityException, CertIOException {
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(new X500Name(issuer),
+                BigInteger.valueOf(System.nanoTime()), new Date(0), new Date(4102444800000L), new X500Name(subject), keyPair.getPublic());
+        builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(authority));
+        return new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(issuerKey)));
+    }
+
+    private static final class PendingRequest {
+
+        private final TLVElement pdu;
+        private final long requestId;
+        private final DataHash hash;
+        private final long level;
+        private final String loginId;
+        private LinkedList<AggregationChainLink> links;
+        private Node leaf;
+        private byte[] response;
+
+        private PendingRequest(TLVElement pdu, long requestId, DataHash hash, long level, String loginId) {
+            this.pdu = pdu;
+            this.requestId = requestId;
+            this.hash = hash;
+            this.level = level;
+            this.loginId = loginId;
+        }
+    }
+
+    /**
+     * Node of a round tree.
+     */
+    private static final class Node {
+
+        private final DataHash hash;
+        private final long level;
+        private Node parent;
+        private Node left;
+        private Node right;
+
+        private Node(DataHash hash, long level) {
+            this.hash = hash;
+            this.level = level;
+        }
+
+        private Node(Node left, Node right) {
+            this.level = Math.max(left.level, right.level) + 1;
+            this.hash = new DataHasher(ALGORITHM)
+                    .addData(left.hash.getImprint())
+                    .addData(right.hash.getImprint())
+                    .addData(new byte[]{(byte) level})
+                    .getHash();
+            this.left = left;
+            this.right = right;
+            left.parent = this;
+            right.parent = this;
+        }
+
+        private boolean isLeft() {
+            return parent.left == this;
+        }
+
+        private Node sibling() {
+            return isLeft() ? parent.right : parent.left;
+        }
+    }
+
+    /**
+     * Calendar of round roots by second. The calendar tree of a publication time P has the leaves 0 to P; it
+     * is split into a perfect tree of the largest power of two leaves and the tree of the rest, so that the
+     * trees of later publication times share the perfect subtrees. The hashes of the perfect subtrees that
+     * contain rounds are remembered.
+     */
+    private static final class Calendar {
+
+        private final TreeMap<Long, DataHash> rounds = new TreeMap<>();
+        private final Map<Long, DataHash> subtrees = new HashMap<>();
+        private final DataHash[] emptySubtrees = new DataHash[64];
+        private long lastTime = -1;
+
+        private Calendar() {
+            emptySubtrees[0] = new DataHash(ALGORITHM, new byte[ALGORITHM.getLength()]);
+            for (int height = 1; height < emptySubtrees.length; height++) {
+                emptySubtrees[height] = step(emptySubtrees[height - 1], emptySubtrees[height - 1]);
+            }
+        }
+
+        long getLastTime() {
+            return lastTime;
+        }
+
+        /**
+         * Second for the next round, the current time unless there already is a round in it.
+         */
+        long nextTime() {
+            return Math.max(System.currentTimeMillis() / 1000, lastTime + 1);
+        }
+
+        void add(long time, DataHash root) {
+            rounds.put(time, root);
+            lastTime = time;
+        }
+
+        DataHash getRoot(long publicationTime) {
+            return hash(0, publicationTime);
+        }
+
+        /**
+         * Hash chain from the leaf of the aggregation time to the root of the publication time.
+         */
+        TLVElement getHashChain(long aggregationTime, long publicationTime) throws TLVParserException {
+            LinkedList<TLVElement> links = new LinkedList<>();
+            long base = 0;
+            long rest = publicationTime;
+            while (rest > 0) {
+                long half = Long.highestOneBit(rest);
+                if (aggregationTime < base + half) {
+                    links.addFirst(TLVElement.create(CALENDAR_LEFT_LINK, hash(base + half, rest - half)));
+                    rest = half - 1;
+                } else {
+                    links.addFirst(TLVElement.create(CALENDAR_RIGHT_LINK, perfect(base, Long.numberOfTrailingZeros(half))));
+                    base += half;
+                    rest -= half;
+                }
+            }
+            TLVElement chain = new TLVElement(false, false, CALENDAR_HASH_CHAIN);
+            chain.addChildElement(TLVElement.create(CALENDAR_PUBLICATION_TIME, publicationTime));
+            chain.addChildElement(TLVElement.create(CALENDAR_AGGREGATION_TIME, aggregationTime));
+            chain.addChildElement(TLVElement.create(CALENDAR_INPUT_HASH, leaf(aggregationTime)));
+            for (TLVElement link : links) {
+                chain.addChildElement(link);
+            }
+            return chain;
+        }
+
+        /**
+         * Hash of the tree of the leaves from base to base + rest.
+         */
+        private DataHash hash(long base, long rest) {
+            if (rest == 0) {
+                return leaf(base);
+            }
+            long half = Long.highestOneBit(rest);
+            return step(perfect(base, Long.numberOfTrailingZeros(half)), hash(base + half, rest - half));
+        }
+
+        /**
+         * Hash of the perfect tree of 2^height leaves starting from base.
+         */
+        private DataHash perfect(long base, int height) {
+            if (height == 0) {
+                return leaf(base);
+            }
+            Long round = rounds.ceilingKey(base);
+            if (round == null || round >= base + (1L << height)) {
+                return emptySubtrees[height];
+            }
+            long key = base << 6 | height;
+            DataHash hash = subtrees.get(key);
+            if (hash == null) {
+                hash = step(perfect(base, height - 1), perfect(base + (1L << (height - 1)), height - 1));
+                subtrees.put(key, hash);
+            }
+            return hash;
+        }
+
+        private DataHash leaf(long time) {
+            DataHash root = rounds.get(time);
+            return root != null ? root : emptySubtrees[0];
+        }
+
+        private static DataHash step(DataHash left, DataHash right) {
+            return new DataHasher(ALGORITHM)
+                    .addData(left.getImprint())
+                    .addData(right.getImprint())
+                    .addData(new byte[]{(byte) 0xFF})
+                    .getHash();
+        }
+    }
+
+    private static final class StubException extends KSIException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long status;
+
+        private StubException(long status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private static final class CompletedFuture<T> implements Future<T> {
+
+        private final T result;
+
+        private CompletedFuture(T result) {
+            this.result = result;
+        }
+
+        public T getResult() {
+            return result;
+        }
+
+        public boolean isFinished() {
+            return true;
+        }
+    }
+}
@@ -18,10 +18,12 @@ import com.guardtime.ksi.Extender;
 import com.guardtime.ksi.PublicationsHandler;
 import com.guardtime.ksi.Reader;
 import com.guardtime.ksi.Verifier;
+import com.guardtime.ksi.blocksigner.KsiBlockSigner;
 import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
 import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
 import com.guardtime.ksi.publication.PublicationData;
-import com.guardtime.ksi.publication.PublicationsFile;
 import com.guardtime.ksi.publication.PublicationsFileFactory;
 import com.guardtime.ksi.publication.inmemory.InMemoryPublicationsFileFactory;
 import com.guardtime.ksi.trust.JKSTrustStore;
@@ -31,10 +33,18 @@ import com.guardtime.ksi.unisignature.KSISignature;
 import com.guardtime.ksi.unisignature.verifier.VerificationResult;
 import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicy;
 import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicyAdapter;
+import com.guardtime.ksi.util.Base16;
 import org.junit.Test;
 
 import java.io.*;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 public class VerificationSamples extends KsiSamples {
 
@@ -158,6 +168,36 @@ public class VerificationSamples extends KsiSamples {
         }
     }
 
+    /**
+     * Verifies many signatures using key-based verification policy. The signatures of the same aggregation
+     * round share the calendar authentication record, and its signature is checked only once (see
+     * {@link CachingKeyBasedVerificationPolicy}).
+     */
+    @Test
+    public void verifyManySignaturesKeyBased() throws IOException, KSIException {
+        Reader reader = getReader();
+        Verifier verifier = getVerifier();
+
+        DataHasher dataHasher = new DataHasher(HashAlgorithm.SHA2_256);
+        dataHasher.addData(getFile("signme.txt"));
+        DataHash documentHash = dataHasher.getHash();
+
+        // The policy is created once and used for all the signatures
+        CachingKeyBasedVerificationPolicy contextAwarePolicy = new CachingKeyBasedVerificationPolicy(getPublicationsHandler(), 1000);
+        for (int i = 0; i < 100; i++) {
+            // In an audit, the signatures would come from a listing of the archive
+            KSISignature signature = reader.read(getFile("signme.txt.unextended-ksig"));
+            VerificationResult verificationResult = verifier.verify(signature, documentHash, contextAwarePolicy);
+            if (!verificationResult.isOk()) {
+                System.out.println("verifyManySignaturesKeyBased > signature verification failed with error code > "
+                        + verificationResult.getErrorCode());
+            }
+        }
+
+        System.out.println("verifyManySignaturesKeyBased > authentication record signatures checked > "
+                + contextAwarePolicy.getMissCount() + ", reused > " + contextAwarePolicy.getHitCount());
+    }
+
     /**
      * Verifies signature using calendar-based verification policy.
      */
@@ -184,8 +224,80 @@ public class VerificationSamples extends KsiSamples {
     }
 
     /**
-     * Demonstrates a) how to fetch publications file from a custom input stream (e.g. a local file) instead of the
-     * default download from a given URL and b) how to use custom trust store to verify the publications file content.
+     * Verifies a large number of signatures in parallel. The policy is created once and shared by all
+     * the verifications, the signatures are read and verified by 8 worker threads and the results are
+     * reported as they are ready. At most 100 signatures are in progress at a time, however many there
+     * are in total.
+     */
+    @Test
+    public void verifyManySignaturesInParallel() throws IOException, KSIException, InterruptedException {
+        ContextAwarePolicy contextAwarePolicy = ContextAwarePolicyAdapter.createPublicationsFilePolicy(getPublicationsHandler());
+
+        DataHasher dataHasher = new DataHasher(HashAlgorithm.SHA2_256);
+        dataHasher.addData(getFile("signme.txt"));
+        final DataHash documentHash = dataHasher.getHash();
+        final Path signatureFile = getFile("signme.txt.extended-ksig").toPath();
+
+        // In an audit, the items would come from a listing of the archive
+        Stream<BatchVerifier.FileItem> items = IntStream.range(0, 1000).mapToObj(new IntFunction<BatchVerifier.FileItem>() {
+            public BatchVerifier.FileItem apply(int i) {
+                return new BatchVerifier.FileItem(signatureFile, documentHash, getReader());
+            }
+        });
+
+        try (BatchVerifier batchVerifier = new BatchVerifier(getVerifier(), contextAwarePolicy, 8, 100)) {
+            BatchVerifier.Summary summary = batchVerifier.verify(items, new BatchVerifier.ResultListener<BatchVerifier.FileItem>() {
+                public void onResult(BatchVerifier.FileItem item, VerificationResult result) {
+                    if (!result.isOk()) {
+                        System.out.println("verifyManySignaturesInParallel > " + item.getSignatureFile()
+                                + " > verification failed with error code > " + result.getErrorCode());
+                    }
+                }
+
+                public void onFailure(BatchVerifier.FileItem item, Exception failure) {
+                    System.out.println("verifyManySignaturesInParallel > " + item.getSignatureFile() + " > " + failure);
+                }
+            });
+
+            System.out.println("verifyManySignaturesInParallel > " + summary);
+        }
+    }
+
+    /**
+     * Verifies the signatures of a signed block. All of them share the calendar hash chain and the
+     * upper aggregation hash chains, which are verified with the policy only for the first signature
+     * (see {@link MemoizingVerifier}). For the rest, only their own aggregation hash chain is checked.
+     */
+    @Test
+    public void verifyBlockSignaturesWithMemoization() throws KSIException {
+        KsiBlockSigner blockSigner = new KsiBlockSigner(getKsiSigningClient());
+        DataHasher dataHasher = new DataHasher(HashAlgorithm.SHA2_256);
+        for (int i = 1; i <= 100; i++) {
+            dataHasher.reset();
+            dataHasher.addData(String.valueOf(i).getBytes());
+            blockSigner.add(dataHasher.getHash());
+        }
+        List<KSISignature> signatures = blockSigner.sign();
+
+        // The same policy instance must be used for all the signatures
+        ContextAwarePolicy contextAwarePolicy = ContextAwarePolicyAdapter.createKeyPolicy(getPublicationsHandler());
+        MemoizingVerifier verifier = new MemoizingVerifier(getVerifier(), 10000);
+        for (KSISignature signature : signatures) {
+            VerificationResult result = verifier.verify(signature, signature.getInputHash(), contextAwarePolicy);
+            if (!result.isOk()) {
+                System.out.println("verifyBlockSignaturesWithMemoization > signature verification failed with error code > "
+                        + result.getErrorCode());
+            }
+        }
+
+        System.out.println("verifyBlockSignaturesWithMemoization > verified in full > " + verifier.getMissCount()
+                + ", verified partially > " + verifier.getHitCount());
+    }
+
+    /**
+     * Demonstrates a) how to keep the publications file in memory and in a local file instead of the default
+     * download from a given URL (see {@link CachingPublicationsHandler}) and b) how to use custom trust store to
+     * verify the publications file content.
      * <p>
      * Note that this is just demonstration of how to accomplish the specific tasks with the KSI SDK, whether such non-default
      * behaviour makes sense and is needed for an integration, shall be analysed and justified case by case.
@@ -193,7 +305,7 @@ public class VerificationSamples extends KsiSamples {
     @Test
     public void verifyUsingCustomPublicationsFileAndTrustStore() throws IOException, KSIException {
         // The two following sections are the important parts of this sample. First the custom trust store is
-        // obtained and then it is used to verify a publications file from custom input stream.
+        // obtained and then it is used to verify the publications file kept by a custom publications handler.
 
         // If you want to use a custom trust store to verify publications file content, this is the way to do it.
         // However, in practice, consider that you manually then have to keep it up to date in case any of the CA root certificates
@@ -201,43 +313,41 @@ public class VerificationSamples extends KsiSamples {
         // Replace the getDefaultTrustStorePath() with the path of the trust store file you want to use.
         PKITrustStore trustStore = new JKSTrustStore(getDefaultTrustStorePath(), new X509CertificateSubjectRdnSelector("E=publications@guardtime.com"));
 
-        // The next step is to read in the publications file from a custom input stream and use
-        // the custom trust store from above for its verification. In the current case we read the publications file from temporary
-        // local file where we have downloaded the publications file content on the fly as part of this test.
-        File cachedLocalPublicationsFile = downloadPublicationsFile();
-
+        // The next step is to create a publications handler that uses the custom trust store from above for verifying
+        // the publications file. The handler keeps the verified publications file in memory and refreshes it in the
+        // background once an hour. A verified copy is kept in a local file, so the next run does not need to download it.
+        // The file is named after the URL, so that a copy downloaded from another URL is not taken for it.
         PublicationsFileFactory pubFileFactory = new InMemoryPublicationsFileFactory(trustStore);
-        final PublicationsFile publicationsFile = pubFileFactory.create(new FileInputStream(cachedLocalPublicationsFile));
-
-        // Now the "usual" verification of the KSI signature follows where
-        // the custom publications file from is used in the verification context.
+        URL publicationsFileUrl = new URL(System.getProperty("publications.file.url", "http://verify.guardtime.com/ksi-publications.bin"));
+        DataHash urlHash = new DataHasher(HashAlgorithm.SHA2_256).addData(publicationsFileUrl.toString().getBytes(StandardCharsets.UTF_8)).getHash();
+        File snapshotFile = new File(System.getProperty("java.io.tmpdir"), "ksi-publications-" + Base16.encode(urlHash.getValue(), 0, 8) + ".bin");
+        try (CachingPublicationsHandler publicationsHandler =
+                     new CachingPublicationsHandler(publicationsFileUrl, pubFileFactory, snapshotFile.toPath(), TimeUnit.HOURS.toMillis(1))) {
 
-        Verifier verifier = getVerifier();
-        Reader reader = getReader();
+            // Now the "usual" verification of the KSI signature follows where
+            // the custom publications file from is used in the verification context.
 
-        PublicationsHandler publicationsHandler = new PublicationsHandler() {
-            public PublicationsFile getPublicationsFile() throws KSIException {
-                return publicationsFile;
-            }
-        };
+            Verifier verifier = getVerifier();
+            Reader reader = getReader();
 
-        ContextAwarePolicy contextAwarePolicy = ContextAwarePolicyAdapter.createPublicationsFilePolicy(publicationsHandler);
+            ContextAwarePolicy contextAwarePolicy = ContextAwarePolicyAdapter.createPublicationsFilePolicy(publicationsHandler);
 
-        // Read the existing signature, assume it is extended
-        KSISignature signature = reader.read(getFile("signme.txt.extended-ksig"));
+            // Read the existing signature, assume it is extended
+            KSISignature signature = reader.read(getFile("signme.txt.extended-ksig"));
 
-        // As usual, hash the data to be verified
-        DataHasher dataHasher = new DataHasher(signature.getInputHash().getAlgorithm());
-        dataHasher.addData(getFile("signme.txt"));
+            // As usual, hash the data to be verified
+            DataHasher dataHasher = new DataHasher(signature.getInputHash().getAlgorithm());
+            dataHasher.addData(getFile("signme.txt"));
 
-        // Perform verification
-        VerificationResult verificationResult = verifier.verify(signature, dataHasher.getHash(), contextAwarePolicy);
+            // Perform verification
+            VerificationResult verificationResult = verifier.verify(signature, dataHasher.getHash(), contextAwarePolicy);
 
-        if (verificationResult.isOk()) {
-            System.out.println("verifyUsingCustomPublicationsFileAndTrustStore > signature valid");
-        } else {
-            System.out.println("verifyUsingCustomPublicationsFileAndTrustStore > verification failed with error code > "
-                    + verificationResult.getErrorCode());
+            if (verificationResult.isOk()) {
+                System.out.println("verifyUsingCustomPublicationsFileAndTrustStore > signature valid");
+            } else {
+                System.out.println("verifyUsingCustomPublicationsFileAndTrustStore > verification failed with error code > "
+                        + verificationResult.getErrorCode());
+            }
         }
     }
 
@@ -245,23 +355,4 @@ public class VerificationSamples extends KsiSamples {
         return System.getProperty("java.home") + File.separatorChar + "lib" + File.separatorChar
                 + "security" + File.separatorChar + "cacerts";
     }
-
-    private File downloadPublicationsFile() throws IOException {
-        File file = File.createTempFile("ksi-publications", ".bin");
-        file.deleteOnExit();
-
-        System.out.println("Downloading publications file to temporary file " + file.getAbsolutePath());
-
-        try (BufferedInputStream inputStream = new BufferedInputStream(new URL(System.getProperty("publications.file.url", "http://verify.guardtime.com/ksi-publications.bin")).openStream());
-             FileOutputStream outputStream = new FileOutputStream(file)) {
-
-            byte data[] = new byte[1024];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(data, 0, 1024)) != -1) {
-                outputStream.write(data, 0, bytesRead);
-            }
-        }
-
-        return file;
-    }
 }